@@ -2,7 +2,34 @@
 /*                                //For gitHub                                */
 /* -------------------------------------------------------------------------- */
 
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.*;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+import java.util.function.*;
+import java.util.zip.CRC32;
 
 // Custom Exceptions for the Pet Adoption System
 
@@ -55,26 +82,80 @@ class LivingSituationNotSuitableException extends Exception {
     }
 }
 
+class PetAlreadyAdoptedException extends Exception {
+    // This exception is thrown when an adopter tries to adopt a pet that has already been claimed by someone else.
+    public PetAlreadyAdoptedException(String message) {
+        super(message);
+    }
+}
+
+class PetNotFoundException extends Exception {
+    // This exception is thrown when no shelter holds a pet with the requested ID.
+    public PetNotFoundException(String message) {
+        super(message);
+    }
+}
+
+// Listener notified whenever a pet's adoption status flips, so the shelter can keep its indexes up to date
+@FunctionalInterface
+interface PetStatusListener {
+    void onAdoptionStatusChanged(Pet pet, boolean adopted);
+
+    // Called once an adopter's adoption of the pet has gone through (a claim given back never gets here)
+    default void onAdoptionCompleted(Pet pet, double fee) { }
+}
+
+// Listener notified when an adopter's balance or adoption count changes, so a registry can keep its indexes up to date
+@FunctionalInterface
+interface AdopterStateListener {
+    void onAdopterStateChanged(Adopter adopter);
+}
+
 // ============================== Pet Class ==============================
 class Pet {
     // Instance variables (attributes) representing the properties of a pet
     private String petId, name, species, breed, size, gender, temperament, healthStatus;
     private int age;
-    private boolean isAdopted;
-    private double adoptionFee;
+    private final AtomicBoolean isAdopted = new AtomicBoolean(); // Adoption state, claimed with a CAS so a pet is adopted exactly once
+    private volatile double adoptionFee; // Set from the default price book, then by the owning shelter's pricing rules
+    private volatile PetStatusListener statusListener; // Set by the shelter that owns this pet (null if not in a shelter)
+
+    // Constructor used by lightweight views (PetView) whose data lives in a pet store
+    Pet() {
+    }
 
     // Constructor for creating a new Pet object
     public Pet(String petId, String name, String species, String breed, String size, String gender, String temperament, int age, String healthStatus)
             throws InvalidAgeException, PetNotFitForAdoptionException {
 
         // Input validation: Check for invalid age (negative)
-        if (age < 0) throw new InvalidAgeException("Age cannot be negative for " + name);
+        if (!isValidAge(age)) throw new InvalidAgeException("Age cannot be negative for " + name);
 
         // Input validation: Check if the pet is fit for adoption (vaccinated and microchipped)
-        if (!healthStatus.equalsIgnoreCase("Vaccinated") && !healthStatus.equalsIgnoreCase("Microchipped"))
-            throw new PetNotFitForAdoptionException(name + " is not fit for adoption.");
+        if (!isFitForAdoption(healthStatus)) throw new PetNotFitForAdoptionException(name + " is not fit for adoption.");
+
+        initialize(petId, name, species, breed, size, gender, temperament, age, healthStatus);
+    }
+
+    // Method to check a pet's age without throwing (used by bulk import to avoid exceptions per rejected row)
+    static boolean isValidAge(int age) {
+        return age >= 0;
+    }
+
+    // Method to check a pet's health status without throwing
+    static boolean isFitForAdoption(String healthStatus) {
+        return healthStatus.equalsIgnoreCase("Vaccinated") || healthStatus.equalsIgnoreCase("Microchipped");
+    }
+
+    // Method to create a pet whose age and health status were already checked with the two methods above
+    static Pet createValidated(String petId, String name, String species, String breed, String size, String gender, String temperament, int age, String healthStatus) {
+        Pet pet = new Pet();
+        pet.initialize(petId, name, species, breed, size, gender, temperament, age, healthStatus);
+        return pet;
+    }
 
-        // Initialize the pet's attributes with the provided values
+    // Method to initialize the pet's attributes with the provided values
+    private void initialize(String petId, String name, String species, String breed, String size, String gender, String temperament, int age, String healthStatus) {
         this.petId = petId;
         this.name = name;
         this.species = species;
@@ -84,19 +165,8 @@ class Pet {
         this.temperament = temperament;
         this.age = age;
         this.healthStatus = healthStatus;
-        this.isAdopted = false; // Initially, the pet is not adopted
-        this.adoptionFee = calculateAdoptionFee(size); // Calculate adoption fee based on size
-    }
-
-    // Method to calculate the adoption fee based on the pet's size
-    private double calculateAdoptionFee(String size) {
-        // Switch statement to determine the fee based on size (case-insensitive)
-        return switch (size.toLowerCase()) {
-            case "small" -> 50.0;
-            case "medium" -> 100.0;
-            case "large" -> 150.0;
-            default -> 0.0; // Default fee if size is not recognized
-        };
+        // Initially, the pet is not adopted (isAdopted starts as false)
+        this.adoptionFee = PriceBook.DEFAULT.feeOf(species, size, breed, age); // Look up the default fee (cached per species, size and age)
     }
 
     // Getter method to retrieve the pet's ID
@@ -109,14 +179,44 @@ class Pet {
         return name;
     }
 
+    // Getter method to retrieve the pet's species
+    public String getSpecies() {
+        return species;
+    }
+
     // Getter method to retrieve the pet's breed
     public String getBreed() {
         return breed;
     }
 
+    // Getter method to retrieve the pet's size
+    public String getSize() {
+        return size;
+    }
+
+    // Getter method to retrieve the pet's gender
+    public String getGender() {
+        return gender;
+    }
+
+    // Getter method to retrieve the pet's temperament
+    public String getTemperament() {
+        return temperament;
+    }
+
+    // Getter method to retrieve the pet's age
+    public int getAge() {
+        return age;
+    }
+
+    // Getter method to retrieve the pet's health status
+    public String getHealthStatus() {
+        return healthStatus;
+    }
+
     // Getter method to check if the pet is adopted
     public boolean isAdopted() {
-        return isAdopted;
+        return isAdopted.get();
     }
 
     // Getter method to retrieve the adoption fee
@@ -124,35 +224,77 @@ class Pet {
         return adoptionFee;
     }
 
+    // Setter method used by pet stores when the shelter reprices the pet
+    void setAdoptionFee(double adoptionFee) {
+        this.adoptionFee = adoptionFee;
+    }
+
     // Setter method to set the adoption status of the pet
     public void setAdopted(boolean adopted) {
-        isAdopted = adopted;
+        if (isAdopted.getAndSet(adopted) == adopted) return; // Nothing changed, so there is nothing to notify
+        notifyStatusChanged(adopted);
+    }
+
+    // Method to atomically claim the pet for adoption; only one caller can ever win the claim
+    public boolean tryClaim() {
+        if (!isAdopted.compareAndSet(false, true)) return false; // Someone else already adopted this pet
+        notifyStatusChanged(true);
+        return true;
+    }
+
+    // Method to give a claimed pet back, e.g. when the rest of an adoption fails
+    void releaseClaim() {
+        if (isAdopted.compareAndSet(true, false)) notifyStatusChanged(false);
+    }
+
+    // Method used by the adopter to report that its claim on the pet turned into an adoption for the given fee
+    void completeAdoption(double fee) {
+        PetStatusListener listener = statusListener;
+        if (listener != null) listener.onAdoptionCompleted(this, fee);
+    }
+
+    // Method to let the owning shelter update its indexes
+    private void notifyStatusChanged(boolean adopted) {
+        PetStatusListener listener = statusListener;
+        if (listener != null) listener.onAdoptionStatusChanged(this, adopted);
+    }
+
+    // Method used by the shelter to register itself for adoption status changes
+    void setStatusListener(PetStatusListener statusListener) {
+        this.statusListener = statusListener;
     }
 
     // Override the toString() method to provide a string representation of the Pet object
     @Override
     public String toString() {
-        return "Pet ID: " + petId + ", Name: " + name + ", Adopted: " + isAdopted;
+        return "Pet ID: " + getPetId() + ", Name: " + getName() + ", Adopted: " + isAdopted();
     }
 }
 
 // ============================== Adopter Class ==============================
 class Adopter {
+    // Maximum number of pets a single adopter may adopt
+    public static final int MAX_ADOPTIONS = 3;
+
     // Instance variables (attributes) representing the properties of an adopter
     private String adopterId, name, contactInfo, livingSituation, petRestrictions;
     private int age;
     private boolean hasFilledAdoptionForm;
-    private double balance;
+    private double livingSpace;
+    private final AtomicLong balanceBits; // Balance stored as raw double bits so it can be updated with a CAS
+    private final AtomicInteger reservedSlots; // Adoption slots taken, including adoptions still in progress
     private List<Pet> adoptedPets;
+    private volatile EventBus events; // Where adoption events go (null = the default bus)
+    private volatile AdopterStateListener stateListener; // Set by the registry this adopter is in (null if none)
 
     // Constructor for creating a new Adopter object
     public Adopter(String adopterId, String name, String contactInfo, int age, boolean hasFilledAdoptionForm, double balance, String livingSituation, double livingSpace, String petRestrictions)
             throws AdopterAgeException, LivingSituationNotSuitableException {
         // Input validation: Check if the adopter is at least 18 years old
-        if (age < 18) throw new AdopterAgeException("Adopter must be at least 18 years old.");
+        if (!isAdult(age)) throw new AdopterAgeException("Adopter must be at least 18 years old.");
 
         // Input validation: Check if the living space is suitable (at least 300 units)
-        if (livingSpace < 300) throw new LivingSituationNotSuitableException("Living space is too small for a pet.");
+        if (!isLivingSpaceSuitable(livingSpace)) throw new LivingSituationNotSuitableException("Living space is too small for a pet.");
 
         // Initialize the adopter's attributes with the provided values
         this.adopterId = adopterId;
@@ -160,10 +302,22 @@ class Adopter {
         this.contactInfo = contactInfo;
         this.age = age;
         this.hasFilledAdoptionForm = hasFilledAdoptionForm;
-        this.balance = balance;
+        this.balanceBits = new AtomicLong(Double.doubleToRawLongBits(balance));
+        this.reservedSlots = new AtomicInteger();
         this.livingSituation = livingSituation;
+        this.livingSpace = livingSpace;
         this.petRestrictions = petRestrictions;
-        this.adoptedPets = new ArrayList<>(); // Initialize the list of adopted pets
+        this.adoptedPets = new CopyOnWriteArrayList<>(); // Initialize the list of adopted pets (safe to read during adoptions)
+    }
+
+    // Method to check the age rule without throwing (adopters must be at least 18)
+    static boolean isAdult(int age) {
+        return age >= 18;
+    }
+
+    // Method to check the living space rule without throwing (at least 300 units)
+    static boolean isLivingSpaceSuitable(double livingSpace) {
+        return livingSpace >= 300;
     }
 
     // Getter method to retrieve the adopter's ID
@@ -176,9 +330,51 @@ class Adopter {
         return name;
     }
 
+    // Getter method to retrieve the adopter's contact information
+    public String getContactInfo() {
+        return contactInfo;
+    }
+
+    // Getter method to retrieve the adopter's age
+    public int getAge() {
+        return age;
+    }
+
+    // Getter method to retrieve the adopter's living situation (e.g. House, Apartment)
+    public String getLivingSituation() {
+        return livingSituation;
+    }
+
+    // Getter method to retrieve the adopter's living space
+    public double getLivingSpace() {
+        return livingSpace;
+    }
+
+    // Getter method to retrieve the adopter's pet restrictions (e.g. No Restrictions, No Dogs)
+    public String getPetRestrictions() {
+        return petRestrictions;
+    }
+
+    // Method to check whether the adopter has filled the adoption form
+    public boolean hasFilledAdoptionForm() {
+        return hasFilledAdoptionForm;
+    }
+
+    // Method to check whether the adopter can still take another pet
+    public boolean hasFreeAdoptionSlot() {
+        return reservedSlots.get() < MAX_ADOPTIONS;
+    }
+
     // Getter method to retrieve the adopter's balance
     public double getBalance() {
-        return balance;
+        return Double.longBitsToDouble(balanceBits.get());
+    }
+
+    // Method to add money to the adopter's balance
+    public void addFunds(double amount) {
+        if (amount <= 0) throw new IllegalArgumentException("Amount must be positive.");
+        refundFunds(amount);
+        notifyStateChanged();
     }
 
     // Getter method to retrieve the list of adopted pets
@@ -186,147 +382,6522 @@ class Adopter {
         return adoptedPets;
     }
 
-    // Method to allow the adopter to adopt a pet
-    public void adoptPet(Pet pet) throws AdoptionLimitExceededException, AdoptionFormNotFilledException, InsufficientFundsException {
+    // Setter method to send this adopter's events to a specific bus instead of the default one
+    public void setEventBus(EventBus events) {
+        this.events = events;
+    }
+
+    // Setter method for the listener told about balance and adoption count changes (used by AdopterRegistry)
+    void setStateListener(AdopterStateListener stateListener) {
+        this.stateListener = stateListener;
+    }
+
+    // Method to tell the registry (if any) that the balance or adoption count changed
+    private void notifyStateChanged() {
+        AdopterStateListener listener = stateListener;
+        if (listener != null) listener.onAdopterStateChanged(this);
+    }
+
+    // Method to allow the adopter to adopt a pet (timed and counted by outcome when metrics are on)
+    public void adoptPet(Pet pet) throws AdoptionLimitExceededException, AdoptionFormNotFilledException, InsufficientFundsException, PetAlreadyAdoptedException {
+        AdoptionEvent event = new AdoptionEvent();
+        event.begin();
+        long start = Metrics.start();
+        String outcome = "success";
+        try {
+            reserveAndClaim(pet);
+        } catch (AdoptionLimitExceededException | AdoptionFormNotFilledException | InsufficientFundsException | PetAlreadyAdoptedException e) {
+            outcome = e.getClass().getSimpleName();
+            throw e;
+        } finally {
+            Metrics.global().adoptionFinished(start, outcome);
+            if (event.shouldCommit()) {
+                event.adopterId = adopterId;
+                event.petId = pet.getPetId();
+                event.outcome = outcome;
+                event.commit();
+            }
+        }
+    }
+
+    // Method to carry out an adoption.
+    // Safe to call from many threads at once: the pet, the adoption slot and the funds are each reserved with a
+    // CAS, and anything already reserved is given back if a later step fails. A pet is therefore never adopted
+    // twice, a balance never goes negative and nobody ends up with more than 3 pets. The pet is claimed first, so
+    // a failed claim never holds this adopter's slot or funds (which would make their other adoptions running at
+    // the same time fail with a limit or funds error they should not get).
+    private void reserveAndClaim(Pet pet) throws AdoptionLimitExceededException, AdoptionFormNotFilledException, InsufficientFundsException, PetAlreadyAdoptedException {
 
         // Check if the adopter has filled the adoption form
         if (!hasFilledAdoptionForm) throw new AdoptionFormNotFilledException("Adoption form not filled.");
 
-        // Check if the adopter has reached the adoption limit (3 pets)
-        if (adoptedPets.size() >= 3) throw new AdoptionLimitExceededException("Adoption limit exceeded.");
+        // Read the fee once so every step below uses the same price
+        double fee = pet.getAdoptionFee();
+
+        // Turn away adopters who cannot adopt anyway before the pet is touched (the CASes below still decide)
+        if (reservedSlots.get() >= MAX_ADOPTIONS) throw new AdoptionLimitExceededException("Adoption limit exceeded.");
+        if (getBalance() < fee) throw new InsufficientFundsException("Insufficient funds to adopt " + pet.getName());
+
+        // Claim the pet; if another adopter got there first, nothing else has been reserved yet
+        if (!pet.tryClaim()) throw new PetAlreadyAdoptedException(pet.getName() + " has already been adopted.");
+
+        // Reserve one of the adopter's 3 adoption slots; give the pet back if this adopter's other adoptions took them
+        if (!reserveSlot()) {
+            pet.releaseClaim();
+            throw new AdoptionLimitExceededException("Adoption limit exceeded.");
+        }
+
+        // Reserve the adoption fee from the adopter's balance
+        if (!reserveFunds(fee)) {
+            releaseSlot();
+            pet.releaseClaim();
+            throw new InsufficientFundsException("Insufficient funds to adopt " + pet.getName());
+        }
+
+        // Add the adopted pet to the adopter's list of adopted pets
+        adoptedPets.add(pet);
+        notifyStateChanged();
+
+        // Nothing can be rolled back any more, so let the shelter count the adoption
+        pet.completeAdoption(fee);
+
+        // Publish a confirmation event (skipped entirely when nobody is listening)
+        EventBus bus = events != null ? events : EventBus.defaultBus();
+        if (bus.hasSubscribers()) bus.publish(EventType.PET_ADOPTED, name, pet.getName(), fee, 0, 0);
+    }
+
+    // Method to take an adoption slot if fewer than MAX_ADOPTIONS are taken
+    private boolean reserveSlot() {
+        int taken;
+        do {
+            taken = reservedSlots.get();
+            if (taken >= MAX_ADOPTIONS) return false;
+        } while (!reservedSlots.compareAndSet(taken, taken + 1));
+        return true;
+    }
+
+    // Method to give back an adoption slot
+    private void releaseSlot() {
+        reservedSlots.decrementAndGet();
+    }
+
+    // Method to deduct an amount from the balance if the balance covers it
+    private boolean reserveFunds(double amount) {
+        long current;
+        double balance;
+        do {
+            current = balanceBits.get();
+            balance = Double.longBitsToDouble(current);
+            if (balance < amount) return false;
+        } while (!balanceBits.compareAndSet(current, Double.doubleToRawLongBits(balance - amount)));
+        return true;
+    }
+
+    // Method to put an amount back into the balance
+    private void refundFunds(double amount) {
+        long current;
+        do {
+            current = balanceBits.get();
+        } while (!balanceBits.compareAndSet(current, Double.doubleToRawLongBits(Double.longBitsToDouble(current) + amount)));
+    }
+}
+
+// ============================== Adopter Registry Classes ==============================
+
+// Eligibility flags precomputed for each registered adopter. The low bits say whether the adopter can adopt at
+// all right now; the restriction bits are matched against the conflict bits of a pet with a single AND.
+final class Eligibility {
+    static final int FORM_FILLED = 1;
+    static final int FREE_SLOT = 1 << 1;
+    static final int NO_DOGS = 1 << 2;
+    static final int NO_CATS = 1 << 3;
+    static final int SMALL_PETS_ONLY = 1 << 4;
+    static final int CAN_ADOPT = FORM_FILLED | FREE_SLOT;
+
+    private Eligibility() {
+    }
+
+    // Method to compute an adopter's flags from their current state
+    static int of(Adopter adopter) {
+        int flags = 0;
+        if (adopter.hasFilledAdoptionForm()) flags |= FORM_FILLED;
+        if (adopter.hasFreeAdoptionSlot()) flags |= FREE_SLOT;
+        String restrictions = adopter.getPetRestrictions() == null ? "" : adopter.getPetRestrictions().toLowerCase(Locale.ROOT);
+        if (restrictions.contains("no dogs")) flags |= NO_DOGS;
+        if (restrictions.contains("no cats")) flags |= NO_CATS;
+        if (restrictions.contains("small pets only") || restrictions.contains("no large")) flags |= SMALL_PETS_ONLY;
+        return flags;
+    }
+
+    // Method to compute which restriction flags rule a pet out
+    static int conflictsOf(Pet pet) {
+        int conflicts = 0;
+        if (pet.getSpecies().equalsIgnoreCase("Dog")) conflicts |= NO_DOGS;
+        if (pet.getSpecies().equalsIgnoreCase("Cat")) conflicts |= NO_CATS;
+        if (!pet.getSize().equalsIgnoreCase("Small")) conflicts |= SMALL_PETS_ONLY;
+        return conflicts;
+    }
+}
+
+// Registry entry: an adopter with the balance and flags last seen for them
+class AdopterEntry {
+    // Ordering of the eligible set: balance, then adopterId
+    static final Comparator<AdopterEntry> BY_BALANCE =
+            Comparator.comparingDouble(AdopterEntry::getBalance).thenComparing(AdopterEntry::getAdopterId);
+
+    private final Adopter adopter;
+    private final String adopterId;
+    private final double balance;
+    private final int flags;
+
+    // Constructor for an entry holding the adopter's current state
+    AdopterEntry(Adopter adopter) {
+        this(adopter, adopter.getAdopterId(), adopter.getBalance(), Eligibility.of(adopter));
+    }
+
+    // Constructor for an entry with explicit values
+    private AdopterEntry(Adopter adopter, String adopterId, double balance, int flags) {
+        this.adopter = adopter;
+        this.adopterId = adopterId;
+        this.balance = balance;
+        this.flags = flags;
+    }
+
+    // Method to create a search bound that sorts before every entry with at least the given balance
+    static AdopterEntry lowerBound(double balance) {
+        return new AdopterEntry(null, "", balance, 0);
+    }
+
+    // Getter methods for the entry's fields
+    Adopter getAdopter() { return adopter; }
+    String getAdopterId() { return adopterId; }
+    double getBalance() { return balance; }
+    int getFlags() { return flags; }
+}
+
+// Concurrent registry of adopters keyed by adopterId, with lookups by contact info and living situation.
+// Every adopter's eligibility flags are kept precomputed, and the adopters who can adopt right now (form filled,
+// fewer than 3 pets) are kept sorted by balance. Finding who can adopt a pet is then a range lookup on the
+// balance plus one AND per candidate, with no exceptions and no scan over adopters who cannot afford it.
+// Adopters tell the registry when their balance or adoption count changes, so the indexes stay current.
+class AdopterRegistry {
+    private final ConcurrentHashMap<String, AdopterEntry> entries = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Adopter> byContact = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Set<Adopter>> byLivingSituation = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListSet<AdopterEntry> canAdoptByBalance = new ConcurrentSkipListSet<>(AdopterEntry.BY_BALANCE);
+
+    // Method to register an adopter; the adopterId and the contact info must not be taken yet
+    public void register(Adopter adopter) {
+        String adopterId = adopter.getAdopterId();
+        if (entries.putIfAbsent(adopterId, new AdopterEntry(adopter)) != null) {
+            throw new IllegalArgumentException("Adopter ID " + adopterId + " is already registered.");
+        }
+        if (adopter.getContactInfo() != null && byContact.putIfAbsent(fold(adopter.getContactInfo()), adopter) != null) {
+            entries.remove(adopterId);
+            throw new IllegalArgumentException("Contact " + adopter.getContactInfo() + " is already registered.");
+        }
+        byLivingSituation.computeIfAbsent(fold(adopter.getLivingSituation()), key -> ConcurrentHashMap.newKeySet()).add(adopter);
+        adopter.setStateListener(this::refresh);
+        refresh(adopter); // Index the adopter's current state
+    }
+
+    // Method to remove an adopter from the registry; returns false if the ID was not registered
+    public boolean unregister(String adopterId) {
+        AdopterEntry entry = entries.remove(adopterId);
+        if (entry == null) return false;
+        Adopter adopter = entry.getAdopter();
+        adopter.setStateListener(null);
+        canAdoptByBalance.remove(entry);
+        if (adopter.getContactInfo() != null) byContact.remove(fold(adopter.getContactInfo()), adopter);
+        Set<Adopter> sameSituation = byLivingSituation.get(fold(adopter.getLivingSituation()));
+        if (sameSituation != null) sameSituation.remove(adopter);
+        return true;
+    }
+
+    // Method to bring an adopter's entry in line with their current state (called by the adopter on every change)
+    private void refresh(Adopter adopter) {
+        entries.computeIfPresent(adopter.getAdopterId(), (adopterId, previous) -> {
+            if (previous.getAdopter() != adopter) return previous; // A different adopter now holds this ID
+            canAdoptByBalance.remove(previous);
+            AdopterEntry current = new AdopterEntry(adopter);
+            if ((current.getFlags() & Eligibility.CAN_ADOPT) == Eligibility.CAN_ADOPT) canAdoptByBalance.add(current);
+            return current;
+        });
+    }
+
+    // Method to check whether an adopterId is registered
+    public boolean contains(String adopterId) {
+        return entries.containsKey(adopterId);
+    }
+
+    // Method to look up an adopter by ID (null if not registered)
+    public Adopter get(String adopterId) {
+        AdopterEntry entry = entries.get(adopterId);
+        return entry == null ? null : entry.getAdopter();
+    }
+
+    // Method to look up an adopter by contact info, ignoring case (null if nobody uses it)
+    public Adopter findByContact(String contactInfo) {
+        return byContact.get(fold(contactInfo));
+    }
+
+    // Method to find every adopter with the given living situation, ignoring case
+    public List<Adopter> findByLivingSituation(String livingSituation) {
+        Set<Adopter> adopters = byLivingSituation.get(fold(livingSituation));
+        return adopters == null ? List.of() : List.copyOf(adopters);
+    }
+
+    // Method to retrieve an adopter's precomputed eligibility flags (0 if not registered)
+    public int getEligibility(String adopterId) {
+        AdopterEntry entry = entries.get(adopterId);
+        return entry == null ? 0 : entry.getFlags();
+    }
+
+    // Getter method to retrieve the number of registered adopters
+    public int size() {
+        return entries.size();
+    }
+
+    // Method to find up to limit registered adopters who could adopt the pet right now (richest first)
+    public List<Adopter> findEligibleAdopters(Pet pet, int limit) {
+        List<Adopter> eligible = new ArrayList<>();
+        if (pet.isAdopted() || limit <= 0) return eligible;
+        double fee = pet.getAdoptionFee();
+        int conflicts = Eligibility.conflictsOf(pet);
+        // Everyone at or above the fee, from the highest balance down
+        for (AdopterEntry entry : canAdoptByBalance.tailSet(AdopterEntry.lowerBound(fee), true).descendingSet()) {
+            if ((entry.getFlags() & conflicts) != 0) continue; // Ruled out by the adopter's pet restrictions
+            Adopter adopter = entry.getAdopter();
+            if (adopter.getBalance() < fee || !adopter.hasFreeAdoptionSlot()) continue; // Changed a moment ago
+            eligible.add(adopter);
+            if (eligible.size() == limit) break;
+        }
+        return eligible;
+    }
+
+    // Method to normalize a lookup key
+    private static String fold(String value) {
+        return value == null ? "" : value.trim().toLowerCase(Locale.ROOT);
+    }
+}
+
+// ============================== Pet Index Classes ==============================
+
+// Searchable pet attributes that the shelter keeps a case-folded hash index for
+enum PetAttribute {
+    PET_ID, NAME, BREED, SPECIES, SIZE, GENDER, TEMPERAMENT;
+
+    // Method to read this attribute's value from a pet
+    String valueOf(Pet pet) {
+        return switch (this) {
+            case PET_ID -> pet.getPetId();
+            case NAME -> pet.getName();
+            case BREED -> pet.getBreed();
+            case SPECIES -> pet.getSpecies();
+            case SIZE -> pet.getSize();
+            case GENDER -> pet.getGender();
+            case TEMPERAMENT -> pet.getTemperament();
+        };
+    }
+
+    // Method to fold a value so that lookups are case-insensitive
+    static String fold(String value) {
+        return value == null ? "" : value.toLowerCase(Locale.ROOT);
+    }
+}
+
+// Growable list of primitive ints, used for posting lists so ordinals are never boxed
+class IntList {
+    private int[] values;
+    private int size;
+
+    // Constructor for creating an empty list with a small initial capacity
+    public IntList() {
+        this.values = new int[4];
+    }
+
+    // Method to append a value, doubling the backing array when it is full
+    public void add(int value) {
+        if (size == values.length) values = Arrays.copyOf(values, size * 2);
+        values[size++] = value;
+    }
+
+    // Getter method to retrieve the value at a position
+    public int get(int index) {
+        return values[index];
+    }
+
+    // Getter method to retrieve the number of values in the list
+    public int size() {
+        return size;
+    }
+
+    // Method to empty the list, keeping its backing array for reuse
+    public void clear() {
+        size = 0;
+    }
+
+    // Method to insert a value into a sorted list at its place (does nothing if the value is already there)
+    public void addSorted(int value) {
+        int position = Arrays.binarySearch(values, 0, size, value);
+        if (position >= 0) return;
+        position = -position - 1;
+        if (size == values.length) values = Arrays.copyOf(values, size * 2);
+        System.arraycopy(values, position, values, position + 1, size - position);
+        values[position] = value;
+        size++;
+    }
+
+    // Method to remove a value from a sorted list (does nothing if the value is absent)
+    public void removeSorted(int value) {
+        int position = Arrays.binarySearch(values, 0, size, value);
+        if (position < 0) return;
+        System.arraycopy(values, position + 1, values, position, size - position - 1);
+        size--;
+    }
+}
+
+// Append-only list of ints that one writer adds to while any number of readers read it without locking.
+// The writer stores a value before it publishes the new size, and a grown array already holds every earlier
+// value when it is published, so a reader that reads size() before values() never sees a missing value.
+class AppendOnlyIntList {
+    private volatile int[] values = new int[4];
+    private volatile int size;
+
+    // Method to append a value (one writer at a time)
+    public synchronized void add(int value) {
+        int[] current = values;
+        int index = size;
+        if (index == current.length) {
+            current = Arrays.copyOf(current, index * 2);
+            values = current;
+        }
+        current[index] = value;
+        size = index + 1; // Publish the value
+    }
+
+    // Getter method to retrieve the number of values (read this first)
+    public int size() {
+        return size;
+    }
+
+    // Getter method to retrieve the backing array; its first size() values are valid and never change
+    public int[] values() {
+        return values;
+    }
+
+    // Method to count the values of a sorted list that are below a bound, e.g. the ordinals a view can see
+    static int countBelow(int[] values, int size, int bound) {
+        if (size == 0 || values[size - 1] < bound) return size;
+        int position = Arrays.binarySearch(values, 0, size, bound);
+        return position >= 0 ? position : -position - 1;
+    }
+}
+
+// Append-only list of objects with the same guarantees as AppendOnlyIntList. Elements live in fixed-size
+// chunks that are never copied, so growing only copies the small chunk directory, not the elements.
+class AppendOnlyList<T> {
+    private static final int CHUNK_SHIFT = 12; // 4,096 elements per chunk
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    private volatile Object[][] chunks = new Object[4][];
+    private volatile int size;
+
+    // Method to append an element and return its index (one writer at a time)
+    public synchronized int add(T element) {
+        int index = size;
+        int chunk = index >>> CHUNK_SHIFT;
+        Object[][] current = chunks;
+        if (chunk == current.length) {
+            current = Arrays.copyOf(current, chunk * 2);
+            chunks = current;
+        }
+        if (current[chunk] == null) current[chunk] = new Object[CHUNK_SIZE];
+        current[chunk][index & (CHUNK_SIZE - 1)] = element;
+        size = index + 1; // Publish the element
+        return index;
+    }
+
+    // Getter method to retrieve the element at an index
+    @SuppressWarnings("unchecked")
+    public T get(int index) {
+        if (index < 0 || index >= size) throw new IndexOutOfBoundsException("Index " + index + " out of bounds for length " + size);
+        return (T) chunks[index >>> CHUNK_SHIFT][index & (CHUNK_SIZE - 1)];
+    }
+
+    // Getter method to retrieve the number of elements
+    public int size() {
+        return size;
+    }
+
+    // Method to view the first count elements as a read-only list that later appends never change
+    public List<T> prefix(int count) {
+        return new AbstractList<>() {
+            @Override
+            public T get(int index) {
+                return AppendOnlyList.this.get(Objects.checkIndex(index, count));
+            }
+
+            @Override
+            public int size() {
+                return count;
+            }
+        };
+    }
+}
+
+// Growable bit set whose bits can be flipped from many threads without locking.
+// Bits live in fixed-size segments, so growing never copies or moves bits that are already in use.
+class AtomicBitSet {
+    private static final int SEGMENT_BITS_SHIFT = 16; // 65,536 bits per segment
+    private static final int SEGMENT_WORDS = 1 << (SEGMENT_BITS_SHIFT - 6);
+    private volatile AtomicLongArray[] segments = new AtomicLongArray[0];
+
+    // Method to make sure a bit can be stored; called by the single writer that adds pets
+    public synchronized void ensureCapacity(int bit) {
+        int needed = (bit >>> SEGMENT_BITS_SHIFT) + 1;
+        if (needed <= segments.length) return;
+        AtomicLongArray[] grown = Arrays.copyOf(segments, needed);
+        for (int i = segments.length; i < needed; i++) grown[i] = new AtomicLongArray(SEGMENT_WORDS);
+        segments = grown;
+    }
+
+    // Method to set or clear a bit
+    public void set(int bit, boolean value) {
+        AtomicLongArray segment = segments[bit >>> SEGMENT_BITS_SHIFT];
+        int word = (bit >>> 6) & (SEGMENT_WORDS - 1);
+        long mask = 1L << bit;
+        long current;
+        do {
+            current = segment.get(word);
+        } while (!segment.compareAndSet(word, current, value ? current | mask : current & ~mask));
+    }
+
+    // Method to flip a bit from the expected value to a new one; fails if the bit did not hold the expected value
+    public boolean compareAndSet(int bit, boolean expected, boolean value) {
+        AtomicLongArray segment = segments[bit >>> SEGMENT_BITS_SHIFT];
+        int word = (bit >>> 6) & (SEGMENT_WORDS - 1);
+        long mask = 1L << bit;
+        long current;
+        do {
+            current = segment.get(word);
+            if (((current & mask) != 0) != expected) return false;
+        } while (!segment.compareAndSet(word, current, value ? current | mask : current & ~mask));
+        return true;
+    }
+
+    // Method to read a bit (bits beyond the capacity read as false)
+    public boolean get(int bit) {
+        AtomicLongArray[] current = segments;
+        int index = bit >>> SEGMENT_BITS_SHIFT;
+        if (index >= current.length) return false;
+        return (current[index].get((bit >>> 6) & (SEGMENT_WORDS - 1)) & (1L << bit)) != 0;
+    }
+}
+
+// Growable column of doubles that can be read and written from many threads.
+// Like AtomicBitSet, values live in fixed-size segments, so growing never moves a value another thread is writing.
+class DoubleColumn {
+    private static final int SEGMENT_SHIFT = 16; // 65,536 values per segment
+    private static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT;
+    private volatile AtomicLongArray[] segments = new AtomicLongArray[0];
+
+    // Method to make sure a position can be stored; called by the single writer that adds pets
+    public synchronized void ensureCapacity(int index) {
+        int needed = (index >>> SEGMENT_SHIFT) + 1;
+        if (needed <= segments.length) return;
+        AtomicLongArray[] grown = Arrays.copyOf(segments, needed);
+        for (int i = segments.length; i < needed; i++) grown[i] = new AtomicLongArray(SEGMENT_SIZE);
+        segments = grown;
+    }
+
+    // Method to store a value
+    public void set(int index, double value) {
+        segments[index >>> SEGMENT_SHIFT].set(index & (SEGMENT_SIZE - 1), Double.doubleToRawLongBits(value));
+    }
+
+    // Method to read a value
+    public double get(int index) {
+        return Double.longBitsToDouble(segments[index >>> SEGMENT_SHIFT].get(index & (SEGMENT_SIZE - 1)));
+    }
+}
+
+// Immutable adoption bitmap that the shelter views share. Changing a bit copies only the path to it (a 1,024-bit
+// leaf, a 32-leaf branch and the small root), so every view keeps the bitmap it was published with while
+// consecutive views share everything that did not change. Missing branches and leaves read as all clear.
+final class AdoptedBitmap {
+    private static final int LEAF_SHIFT = 10; // 1,024 bits (16 longs) per leaf
+    private static final int BRANCH_SHIFT = 5; // 32 leaves per branch
+    private static final int ROOT_SHIFT = LEAF_SHIFT + BRANCH_SHIFT;
+    private static final int BRANCH_MASK = (1 << BRANCH_SHIFT) - 1;
+    private static final int WORD_MASK = (1 << (LEAF_SHIFT - 6)) - 1;
+    static final AdoptedBitmap EMPTY = new AdoptedBitmap(new long[0][][]);
+    private final long[][][] root; // Bit i lives in root[i >>> 15][(i >>> 10) & 31][(i >>> 6) & 15]
+
+    // Constructor for a bitmap over a finished tree (never changed afterwards)
+    private AdoptedBitmap(long[][][] root) {
+        this.root = root;
+    }
+
+    // Method to read a bit
+    public boolean get(int bit) {
+        int r = bit >>> ROOT_SHIFT;
+        if (r >= root.length || root[r] == null) return false;
+        long[] leaf = root[r][(bit >>> LEAF_SHIFT) & BRANCH_MASK];
+        return leaf != null && (leaf[(bit >>> 6) & WORD_MASK] & (1L << bit)) != 0;
+    }
+
+    // Method to build a bitmap that differs from this one in one bit (copies the root, one branch and one leaf)
+    public AdoptedBitmap with(int bit, boolean value) {
+        if (get(bit) == value) return this; // Also covers clearing a bit in a missing branch or leaf
+        int r = bit >>> ROOT_SHIFT, b = (bit >>> LEAF_SHIFT) & BRANCH_MASK;
+        long[][][] copy = Arrays.copyOf(root, Math.max(root.length, r + 1));
+        long[][] branch = copy[r] == null ? new long[1 << BRANCH_SHIFT][] : copy[r].clone();
+        long[] leaf = branch[b] == null ? new long[WORD_MASK + 1] : branch[b].clone();
+        leaf[(bit >>> 6) & WORD_MASK] ^= 1L << bit;
+        branch[b] = leaf;
+        copy[r] = branch;
+        return new AdoptedBitmap(copy);
+    }
+
+    // Method to call the action for every bit that differs between this bitmap and another. Branches and leaves
+    // the two share are skipped by identity, so the cost follows how much changed, not how many bits there are.
+    public void forEachDifference(AdoptedBitmap other, IntConsumer action) {
+        for (int r = 0; r < Math.max(root.length, other.root.length); r++) {
+            long[][] mine = r < root.length ? root[r] : null, theirs = r < other.root.length ? other.root[r] : null;
+            if (mine == theirs) continue;
+            for (int b = 0; b <= BRANCH_MASK; b++) {
+                long[] leaf = mine == null ? null : mine[b], otherLeaf = theirs == null ? null : theirs[b];
+                if (leaf == otherLeaf) continue;
+                for (int w = 0; w <= WORD_MASK; w++) {
+                    long changed = (leaf == null ? 0 : leaf[w]) ^ (otherLeaf == null ? 0 : otherLeaf[w]);
+                    for (; changed != 0; changed &= changed - 1) {
+                        action.accept((r << ROOT_SHIFT) | (b << LEAF_SHIFT) | (w << 6) | Long.numberOfTrailingZeros(changed));
+                    }
+                }
+            }
+        }
+    }
+
+    // Method to start a batch of changes
+    public Editor edit() {
+        return new Editor(root.clone());
+    }
+
+    // Batch of changes to a bitmap; each touched leaf and branch is copied once, however many of its bits change
+    static final class Editor {
+        private long[][][] root;
+        private final Set<Object> copies = Collections.newSetFromMap(new IdentityHashMap<>()); // Branches and leaves this editor owns
+
+        // Constructor for an editor over a copy of the root
+        private Editor(long[][][] root) {
+            this.root = root;
+        }
+
+        // Method to set or clear a bit
+        public Editor set(int bit, boolean value) {
+            int r = bit >>> ROOT_SHIFT, b = (bit >>> LEAF_SHIFT) & BRANCH_MASK;
+            if (r >= root.length) {
+                if (!value) return this; // Already clear
+                root = Arrays.copyOf(root, r + 1);
+            }
+            long[][] branch = root[r];
+            if (branch == null) {
+                if (!value) return this;
+                branch = new long[1 << BRANCH_SHIFT][];
+            } else if (!copies.contains(branch)) {
+                branch = branch.clone();
+            }
+            copies.add(branch);
+            root[r] = branch;
+            long[] leaf = branch[b];
+            if (leaf == null) {
+                if (!value) return this;
+                leaf = new long[WORD_MASK + 1];
+            } else if (!copies.contains(leaf)) {
+                leaf = leaf.clone();
+            }
+            copies.add(leaf);
+            branch[b] = leaf;
+            if (value) leaf[(bit >>> 6) & WORD_MASK] |= 1L << bit;
+            else leaf[(bit >>> 6) & WORD_MASK] &= ~(1L << bit);
+            return this;
+        }
+
+        // Method to finish the batch (the editor must not be used afterwards)
+        public AdoptedBitmap build() {
+            return new AdoptedBitmap(root);
+        }
+    }
+}
+
+// Combined pet query, e.g. new PetQuery().breed("Labrador").size("Large").available()
+class PetQuery {
+    private final Map<PetAttribute, String> criteria = new EnumMap<>(PetAttribute.class);
+    private int minAge = 0;
+    private int maxAge = Integer.MAX_VALUE;
+    private boolean availableOnly;
+    private int limit = Integer.MAX_VALUE;
+
+    // Methods to add an equality criterion on one attribute (case-insensitive)
+    public PetQuery petId(String petId) { return where(PetAttribute.PET_ID, petId); }
+    public PetQuery name(String name) { return where(PetAttribute.NAME, name); }
+    public PetQuery breed(String breed) { return where(PetAttribute.BREED, breed); }
+    public PetQuery species(String species) { return where(PetAttribute.SPECIES, species); }
+    public PetQuery size(String size) { return where(PetAttribute.SIZE, size); }
+    public PetQuery gender(String gender) { return where(PetAttribute.GENDER, gender); }
+    public PetQuery temperament(String temperament) { return where(PetAttribute.TEMPERAMENT, temperament); }
+
+    // Method to add an equality criterion on any attribute
+    public PetQuery where(PetAttribute attribute, String value) {
+        criteria.put(attribute, PetAttribute.fold(value));
+        return this;
+    }
+
+    // Method to restrict the query to an inclusive age range
+    public PetQuery ageBetween(int minAge, int maxAge) {
+        this.minAge = minAge;
+        this.maxAge = maxAge;
+        return this;
+    }
+
+    // Method to restrict the query to pets that are not adopted yet
+    public PetQuery available() {
+        this.availableOnly = true;
+        return this;
+    }
+
+    // Method to stop the query after the first limit matches (in insertion order)
+    public PetQuery limit(int limit) {
+        this.limit = limit;
+        return this;
+    }
+
+    // Getter methods used by the index when running the query
+    Map<PetAttribute, String> getCriteria() { return criteria; }
+    int getMinAge() { return minAge; }
+    int getMaxAge() { return maxAge; }
+    boolean isAvailableOnly() { return availableOnly; }
+    boolean hasAgeRange() { return minAge > 0 || maxAge < Integer.MAX_VALUE; }
+    int getLimit() { return limit; }
+}
+
+// Inverted index over the shelter's pets. Every pet is identified by its ordinal (its position in the
+// shelter's pet list), so posting lists are append-only and always sorted, and queries intersect them
+// instead of scanning every pet. One writer adds pets while readers query without locking: every query runs
+// against a ShelterView and only sees the pets and adoption statuses that view was published with (the index
+// itself holds no statuses; they live in the view's AdoptedBitmap).
+class PetIndex {
+    private final Map<PetAttribute, ConcurrentHashMap<String, AppendOnlyIntList>> postings = new EnumMap<>(PetAttribute.class);
+    private final ConcurrentNavigableMap<Integer, AppendOnlyIntList> ageIndex = new ConcurrentSkipListMap<>(); // Age -> ordinals, for range queries
+    private final AppendOnlyIntList ages = new AppendOnlyIntList(); // Age of each ordinal, for cheap range checks on candidates
+
+    // Constructor for creating an empty index with one hash index per attribute
+    public PetIndex() {
+        for (PetAttribute attribute : PetAttribute.values()) postings.put(attribute, new ConcurrentHashMap<>());
+    }
+
+    // Method to index a newly added pet under the given ordinal (it becomes visible with the next published view)
+    public synchronized void add(Pet pet, int ordinal) {
+        for (PetAttribute attribute : PetAttribute.values()) {
+            postings.get(attribute).computeIfAbsent(PetAttribute.fold(attribute.valueOf(pet)), key -> new AppendOnlyIntList()).add(ordinal);
+        }
+        ageIndex.computeIfAbsent(pet.getAge(), key -> new AppendOnlyIntList()).add(ordinal);
+        ages.add(pet.getAge());
+    }
+
+    // Method to find the first ordinal a view can see with the given attribute value, or -1 if there is none
+    public int first(PetAttribute attribute, String value, ShelterView view) {
+        AppendOnlyIntList list = postings.get(attribute).get(PetAttribute.fold(value));
+        if (list == null || list.size() == 0) return -1;
+        int ordinal = list.values()[0];
+        return ordinal < view.getPetCount() ? ordinal : -1;
+    }
+
+    // Method to run a combined query against a view and return the matching ordinals in insertion order
+    public IntList query(PetQuery query, ShelterView view) {
+        IntList result = new IntList();
+        int petCount = view.getPetCount();
+
+        // Look up the posting list for every criterion, cut at the view's pet count; a missing value means nothing can match
+        int criteria = query.getCriteria().size();
+        int[][] lists = new int[criteria][];
+        int[] sizes = new int[criteria];
+        int driver = 0;
+        for (Map.Entry<PetAttribute, String> criterion : query.getCriteria().entrySet()) {
+            AppendOnlyIntList list = postings.get(criterion.getKey()).get(criterion.getValue());
+            if (list == null) return result;
+            int size = list.size(); // Read before the values, see AppendOnlyIntList
+            int[] values = list.values();
+            sizes[driver] = AppendOnlyIntList.countBelow(values, size, petCount);
+            lists[driver++] = values;
+        }
+
+        if (criteria == 0) {
+            // No attribute criteria: walk the age index for a range, otherwise every ordinal
+            if (!query.hasAgeRange()) {
+                for (int ordinal = 0; ordinal < petCount && result.size() < query.getLimit(); ordinal++) {
+                    if (!query.isAvailableOnly() || !view.adopted(ordinal)) result.add(ordinal);
+                }
+                return result;
+            }
+            if (query.getMinAge() > query.getMaxAge()) return result; // An empty range matches nothing (subMap would throw)
+            BitSet candidates = new BitSet(petCount);
+            for (AppendOnlyIntList list : ageIndex.subMap(query.getMinAge(), true, query.getMaxAge(), true).values()) {
+                int size = list.size();
+                int[] values = list.values();
+                for (int i = 0, end = AppendOnlyIntList.countBelow(values, size, petCount); i < end; i++) candidates.set(values[i]);
+            }
+            for (int ordinal = candidates.nextSetBit(0); ordinal >= 0 && result.size() < query.getLimit(); ordinal = candidates.nextSetBit(ordinal + 1)) {
+                if (!query.isAvailableOnly() || !view.adopted(ordinal)) result.add(ordinal);
+            }
+            return result;
+        }
+
+        // Drive the intersection from the shortest list and probe the others with a forward-moving search
+        driver = 0;
+        for (int l = 1; l < criteria; l++) {
+            if (sizes[l] < sizes[driver]) driver = l;
+        }
+        int[] cursors = new int[criteria];
+        int[] ageValues = query.hasAgeRange() ? ages.values() : null; // Holds every ordinal the view can see
+        outer:
+        for (int i = 0; i < sizes[driver] && result.size() < query.getLimit(); i++) {
+            int ordinal = lists[driver][i];
+            for (int l = 0; l < criteria; l++) {
+                if (l == driver) continue;
+                int position = Arrays.binarySearch(lists[l], cursors[l], sizes[l], ordinal);
+                cursors[l] = position >= 0 ? position : -position - 1;
+                if (position < 0) continue outer;
+            }
+            if (query.isAvailableOnly() && view.adopted(ordinal)) continue;
+            if (ageValues != null && (ageValues[ordinal] < query.getMinAge() || ageValues[ordinal] > query.getMaxAge())) continue;
+            result.add(ordinal);
+        }
+        return result;
+    }
+}
+
+// ============================== Pet Store Classes ==============================
+
+// Listener notified when the pet at an ordinal is adopted or given back
+@FunctionalInterface
+interface OrdinalStatusListener {
+    void onAdoptionStatusChanged(int ordinal, boolean adopted);
+
+    // Called once an adoption of the pet at an ordinal has gone through
+    default void onAdoptionCompleted(int ordinal, double fee) { }
+}
+
+// Where a shelter keeps its pets. A pet is identified by its ordinal (the position it was added at).
+interface PetStore {
+    // Method to store a pet and return its ordinal
+    int add(Pet pet);
+
+    // Method to retrieve the pet stored at an ordinal
+    Pet get(int ordinal);
+
+    // Method to retrieve the number of stored pets
+    int size();
+
+    // Method to change the fee of the pet stored at an ordinal (safe to call while pets are being added)
+    void setFee(int ordinal, double fee);
+
+    // Method to register the listener that is told about every adoption status change
+    void setStatusListener(OrdinalStatusListener listener);
+}
+
+// Default store: keeps the Pet objects themselves in an append-only list, so readers never wait for addPet
+class ListPetStore implements PetStore {
+    private final AppendOnlyList<Pet> pets = new AppendOnlyList<>();
+    private volatile OrdinalStatusListener statusListener;
+
+    @Override
+    public int add(Pet pet) {
+        int ordinal = pets.add(pet);
+        pet.setStatusListener(new PetStatusListener() {
+            @Override
+            public void onAdoptionStatusChanged(Pet changed, boolean adopted) {
+                OrdinalStatusListener listener = statusListener;
+                if (listener != null) listener.onAdoptionStatusChanged(ordinal, adopted);
+            }
+
+            @Override
+            public void onAdoptionCompleted(Pet changed, double fee) {
+                OrdinalStatusListener listener = statusListener;
+                if (listener != null) listener.onAdoptionCompleted(ordinal, fee);
+            }
+        });
+        return ordinal;
+    }
+
+    @Override
+    public Pet get(int ordinal) {
+        return pets.get(ordinal);
+    }
+
+    @Override
+    public int size() {
+        return pets.size();
+    }
+
+    @Override
+    public void setFee(int ordinal, double fee) {
+        pets.get(ordinal).setAdoptionFee(fee);
+    }
+
+    @Override
+    public void setStatusListener(OrdinalStatusListener listener) {
+        this.statusListener = listener;
+    }
+}
+
+// Dictionary that maps each distinct value of a low-cardinality field to a small integer code
+class CategoryDictionary {
+    private final String fieldName;
+    private final int maxCodes;
+    private final Map<String, Integer> codes = new HashMap<>();
+    private volatile String[] values = new String[8]; // Replaced only after the copy is filled, so readers never see an empty copy
+    private int size;
+
+    // Constructor for a dictionary that can hold at most maxCodes distinct values
+    public CategoryDictionary(String fieldName, int maxCodes) {
+        this.fieldName = fieldName;
+        this.maxCodes = maxCodes;
+    }
+
+    // Method to get the code of a value, assigning the next free code to a value seen for the first time
+    public int encode(String value) {
+        Integer code = codes.get(value);
+        if (code != null) return code;
+        if (size == maxCodes) throw new IllegalStateException("More than " + maxCodes + " distinct values for " + fieldName);
+        String[] current = values;
+        if (size == current.length) current = Arrays.copyOf(current, size * 2);
+        current[size] = value;
+        values = current; // Publish the copy (and the new value) to readers
+        codes.put(value, size);
+        return size++;
+    }
+
+    // Method to get the value behind a code
+    public String decode(int code) {
+        return values[code];
+    }
+}
+
+// Memory-compact store that keeps pets in primitive columns instead of one object per pet.
+// Categorical fields are dictionary-encoded (byte codes, short for breed), petId and name are packed into a
+// shared UTF-8 byte arena, adoption state lives in a bit set and fees in a DoubleColumn. get() returns a lightweight
+// PetView over the columns, so the Pet passed to add() is copied and is not tracked afterwards.
+class ColumnarPetStore implements PetStore {
+    private final CategoryDictionary species = new CategoryDictionary("species", 256);
+    private final CategoryDictionary breeds = new CategoryDictionary("breed", 65_536);
+    private final CategoryDictionary sizes = new CategoryDictionary("size", 256);
+    private final CategoryDictionary genders = new CategoryDictionary("gender", 256);
+    private final CategoryDictionary temperaments = new CategoryDictionary("temperament", 256);
+    private final CategoryDictionary healthStatuses = new CategoryDictionary("healthStatus", 256);
+    private final AtomicBitSet adopted = new AtomicBitSet();
+    // The column arrays are volatile: the writer swaps in a grown copy only after filling it, so a reader that
+    // picks up a newer array (through the volatile read) also sees everything copied into it
+    private volatile byte[] text; // UTF-8 petId followed by UTF-8 name for every pet
+    private int textLength;
+    private volatile int[] nameStart; // Where each pet's name starts in text (its petId ends there)
+    private volatile int[] nameEnd; // Where each pet's name ends (the next pet's petId starts there); written before size
+    private volatile byte[] speciesCodes, sizeCodes, genderCodes, temperamentCodes, healthCodes;
+    private volatile short[] breedCodes;
+    private volatile int[] ages;
+    private final DoubleColumn fees = new DoubleColumn(); // Segmented, so repricing never races with grow()
+    private volatile int size;
+    private volatile OrdinalStatusListener statusListener;
+
+    // Constructor for an empty store with room for the given number of pets before it has to grow
+    public ColumnarPetStore(int initialCapacity) {
+        int capacity = Math.max(16, initialCapacity);
+        text = new byte[capacity * 16];
+        nameStart = new int[capacity];
+        nameEnd = new int[capacity];
+        speciesCodes = new byte[capacity];
+        sizeCodes = new byte[capacity];
+        genderCodes = new byte[capacity];
+        temperamentCodes = new byte[capacity];
+        healthCodes = new byte[capacity];
+        breedCodes = new short[capacity];
+        ages = new int[capacity];
+    }
+
+    // Constructor for an empty store with a default capacity
+    public ColumnarPetStore() {
+        this(1024);
+    }
+
+    @Override
+    public int add(Pet pet) {
+        int ordinal = size;
+        if (ordinal == ages.length) grow();
+        appendText(pet.getPetId());
+        nameStart[ordinal] = textLength;
+        appendText(pet.getName());
+        nameEnd[ordinal] = textLength;
+        speciesCodes[ordinal] = (byte) species.encode(pet.getSpecies());
+        breedCodes[ordinal] = (short) breeds.encode(pet.getBreed());
+        sizeCodes[ordinal] = (byte) sizes.encode(pet.getSize());
+        genderCodes[ordinal] = (byte) genders.encode(pet.getGender());
+        temperamentCodes[ordinal] = (byte) temperaments.encode(pet.getTemperament());
+        healthCodes[ordinal] = (byte) healthStatuses.encode(pet.getHealthStatus());
+        ages[ordinal] = pet.getAge();
+        fees.ensureCapacity(ordinal);
+        fees.set(ordinal, pet.getAdoptionFee());
+        adopted.ensureCapacity(ordinal);
+        adopted.set(ordinal, pet.isAdopted());
+        size = ordinal + 1; // Publish the new pet
+        return ordinal;
+    }
+
+    @Override
+    public Pet get(int ordinal) {
+        if (ordinal < 0 || ordinal >= size) throw new IndexOutOfBoundsException("No pet at ordinal " + ordinal);
+        return new PetView(this, ordinal);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void setFee(int ordinal, double fee) {
+        fees.set(ordinal, fee);
+    }
+
+    @Override
+    public void setStatusListener(OrdinalStatusListener listener) {
+        this.statusListener = listener;
+    }
+
+    // Methods used by PetView to read one field of one pet
+    String petId(int ordinal) { return new String(text, idStart(ordinal), nameStart[ordinal] - idStart(ordinal), StandardCharsets.UTF_8); }
+    String name(int ordinal) { return new String(text, nameStart[ordinal], nameEnd[ordinal] - nameStart[ordinal], StandardCharsets.UTF_8); }
+    String species(int ordinal) { return species.decode(speciesCodes[ordinal] & 0xFF); }
+    String breed(int ordinal) { return breeds.decode(breedCodes[ordinal] & 0xFFFF); }
+    String size(int ordinal) { return sizes.decode(sizeCodes[ordinal] & 0xFF); }
+    String gender(int ordinal) { return genders.decode(genderCodes[ordinal] & 0xFF); }
+    String temperament(int ordinal) { return temperaments.decode(temperamentCodes[ordinal] & 0xFF); }
+    String healthStatus(int ordinal) { return healthStatuses.decode(healthCodes[ordinal] & 0xFF); }
+    int age(int ordinal) { return ages[ordinal]; }
+    double fee(int ordinal) { return fees.get(ordinal); }
+    boolean isAdopted(int ordinal) { return adopted.get(ordinal); }
+
+    // Method to set a pet's adoption status, notifying the listener if it changed
+    void setAdopted(int ordinal, boolean isAdopted) {
+        if (adopted.compareAndSet(ordinal, !isAdopted, isAdopted)) notifyStatusChanged(ordinal, isAdopted);
+    }
+
+    // Method to atomically claim a pet; only one caller can win
+    boolean claim(int ordinal) {
+        if (!adopted.compareAndSet(ordinal, false, true)) return false;
+        notifyStatusChanged(ordinal, true);
+        return true;
+    }
+
+    // Method to let the shelter update its indexes
+    private void notifyStatusChanged(int ordinal, boolean isAdopted) {
+        OrdinalStatusListener listener = statusListener;
+        if (listener != null) listener.onAdoptionStatusChanged(ordinal, isAdopted);
+    }
+
+    // Method to tell the shelter that an adoption of a pet went through
+    void completeAdoption(int ordinal, double fee) {
+        OrdinalStatusListener listener = statusListener;
+        if (listener != null) listener.onAdoptionCompleted(ordinal, fee);
+    }
+
+    // Method to find where a pet's petId starts in the text arena (right after the previous pet's name)
+    private int idStart(int ordinal) {
+        return ordinal == 0 ? 0 : nameEnd[ordinal - 1];
+    }
+
+    // Method to copy a string into the text arena
+    private void appendText(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        byte[] current = text;
+        if (textLength + bytes.length > current.length) {
+            current = Arrays.copyOf(current, Math.max(current.length * 2, textLength + bytes.length));
+            text = current; // Publish the filled copy
+        }
+        System.arraycopy(bytes, 0, current, textLength, bytes.length);
+        textLength += bytes.length;
+    }
+
+    // Method to double the capacity of every per-pet column
+    private void grow() {
+        int capacity = ages.length * 2;
+        nameStart = Arrays.copyOf(nameStart, capacity);
+        nameEnd = Arrays.copyOf(nameEnd, capacity);
+        speciesCodes = Arrays.copyOf(speciesCodes, capacity);
+        sizeCodes = Arrays.copyOf(sizeCodes, capacity);
+        genderCodes = Arrays.copyOf(genderCodes, capacity);
+        temperamentCodes = Arrays.copyOf(temperamentCodes, capacity);
+        healthCodes = Arrays.copyOf(healthCodes, capacity);
+        breedCodes = Arrays.copyOf(breedCodes, capacity);
+        ages = Arrays.copyOf(ages, capacity);
+    }
+}
+
+// Lightweight Pet that reads everything from a ColumnarPetStore; two views of the same pet are equal
+class PetView extends Pet {
+    private final ColumnarPetStore store;
+    private final int ordinal;
+
+    // Constructor for a view of the pet at the given ordinal
+    PetView(ColumnarPetStore store, int ordinal) {
+        this.store = store;
+        this.ordinal = ordinal;
+    }
+
+    @Override public String getPetId() { return store.petId(ordinal); }
+    @Override public String getName() { return store.name(ordinal); }
+    @Override public String getSpecies() { return store.species(ordinal); }
+    @Override public String getBreed() { return store.breed(ordinal); }
+    @Override public String getSize() { return store.size(ordinal); }
+    @Override public String getGender() { return store.gender(ordinal); }
+    @Override public String getTemperament() { return store.temperament(ordinal); }
+    @Override public int getAge() { return store.age(ordinal); }
+    @Override public String getHealthStatus() { return store.healthStatus(ordinal); }
+    @Override public double getAdoptionFee() { return store.fee(ordinal); }
+    @Override public boolean isAdopted() { return store.isAdopted(ordinal); }
+    @Override void setAdoptionFee(double adoptionFee) { store.setFee(ordinal, adoptionFee); }
+    @Override public void setAdopted(boolean adopted) { store.setAdopted(ordinal, adopted); }
+    @Override public boolean tryClaim() { return store.claim(ordinal); }
+    @Override void releaseClaim() { store.setAdopted(ordinal, false); }
+    @Override void completeAdoption(double fee) { store.completeAdoption(ordinal, fee); }
+    @Override void setStatusListener(PetStatusListener statusListener) { } // The store notifies its own listener
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof PetView view && view.store == store && view.ordinal == ordinal;
+    }
+
+    @Override
+    public int hashCode() {
+        return System.identityHashCode(store) * 31 + ordinal;
+    }
+}
+
+// ============================== Available Pet Classes ==============================
+
+// Sort orders for listing available pets (ties are broken by petId, then by the order pets were added)
+enum PetSort {
+    PET_ID(Comparator.comparing(AvailablePetKey::getPetId)),
+    AGE(Comparator.comparingInt(AvailablePetKey::getAge).thenComparing(AvailablePetKey::getPetId)),
+    FEE(Comparator.comparingDouble(AvailablePetKey::getFee).thenComparing(AvailablePetKey::getPetId));
+
+    private final Comparator<AvailablePetKey> comparator;
+
+    PetSort(Comparator<AvailablePetKey> comparator) {
+        this.comparator = comparator.thenComparingInt(AvailablePetKey::getOrdinal); // Keys must be unique
+    }
+
+    // Getter method to retrieve the comparator for this order
+    Comparator<AvailablePetKey> comparator() {
+        return comparator;
+    }
+}
+
+// Sort key of one available pet; a single key object is shared by every sort order (until a fee change replaces the FEE entry)
+class AvailablePetKey {
+    private final String petId;
+    private final int age;
+    private final double fee;
+    private final int ordinal;
+
+    // Constructor for the key of the pet stored at an ordinal
+    AvailablePetKey(String petId, int age, double fee, int ordinal) {
+        this.petId = petId;
+        this.age = age;
+        this.fee = fee;
+        this.ordinal = ordinal;
+    }
+
+    // Getter methods for the sort fields
+    String getPetId() { return petId; }
+    int getAge() { return age; }
+    double getFee() { return fee; }
+    int getOrdinal() { return ordinal; }
+}
+
+// One page of available pets plus the cursor for the next page (null on the last page)
+class PetPage {
+    private final List<Pet> pets;
+    private final String nextCursor;
+
+    // Constructor for a page of pets
+    PetPage(List<Pet> pets, String nextCursor) {
+        this.pets = Collections.unmodifiableList(pets);
+        this.nextCursor = nextCursor;
+    }
+
+    // Getter method to retrieve the pets on this page
+    public List<Pet> getPets() {
+        return pets;
+    }
+
+    // Getter method to retrieve the opaque cursor to pass in for the next page (null if there is none)
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+    // Method to check whether another page follows
+    public boolean hasMore() {
+        return nextCursor != null;
+    }
+}
+
+// Sorted sets of the pets that are still available, one per PetSort, kept current as pets are added and adopted.
+// Pages use keyset pagination: the cursor names the last key returned, and the next page starts right after it,
+// so a page costs O(log n + limit) no matter how many pets the shelter holds, and adoptions between page
+// requests never shift or repeat entries.
+class AvailablePetIndex {
+    private static final int LOCK_STRIPES = 64; // Power of two
+    private final PetStore store;
+    private final EnumMap<PetSort, ConcurrentSkipListSet<AvailablePetKey>> orders = new EnumMap<>(PetSort.class);
+    private final Object[] locks = new Object[LOCK_STRIPES]; // Serialize the updates of one pet, so a fee change and a status change never interleave
+
+    // Constructor for an index over the pets of a store
+    AvailablePetIndex(PetStore store) {
+        this.store = store;
+        for (PetSort sort : PetSort.values()) orders.put(sort, new ConcurrentSkipListSet<>(sort.comparator()));
+        for (int i = 0; i < LOCK_STRIPES; i++) locks[i] = new Object();
+    }
+
+    // Method to bring a pet's entries in line with its adoption status (called when it is added or its status changes).
+    // The status is re-read afterwards: if another thread flipped it meanwhile, the entries are fixed up again,
+    // so listener calls that arrive out of order cannot leave an available pet unlisted.
+    void update(int ordinal) {
+        synchronized (locks[ordinal & (LOCK_STRIPES - 1)]) {
+            Pet pet = store.get(ordinal);
+            AvailablePetKey key = new AvailablePetKey(pet.getPetId(), pet.getAge(), pet.getAdoptionFee(), ordinal);
+            boolean adopted;
+            do {
+                adopted = pet.isAdopted();
+                for (ConcurrentSkipListSet<AvailablePetKey> order : orders.values()) {
+                    if (adopted) order.remove(key);
+                    else order.add(key);
+                }
+            } while (pet.isAdopted() != adopted);
+        }
+    }
+
+    // Method to change a pet's fee in the store and move its entry to the new position in the fee order.
+    // The other orders ignore the fee, so their entries stay where they are. Only the pet's own stripe is locked,
+    // so adoptions of other pets carry on while a whole catalog is repriced.
+    void changeFee(int ordinal, double fee) {
+        synchronized (locks[ordinal & (LOCK_STRIPES - 1)]) {
+            Pet pet = store.get(ordinal);
+            ConcurrentSkipListSet<AvailablePetKey> byFee = orders.get(PetSort.FEE);
+            String petId = pet.getPetId();
+            boolean listed = byFee.remove(new AvailablePetKey(petId, pet.getAge(), pet.getAdoptionFee(), ordinal));
+            store.setFee(ordinal, fee);
+            if (listed) byFee.add(new AvailablePetKey(petId, pet.getAge(), fee, ordinal)); // Adopted pets stay unlisted
+        }
+    }
+
+    // Method to retrieve up to limit pets that are available in a view and come after the cursor (null cursor = first page)
+    PetPage page(ShelterView view, String cursor, int limit, PetSort sort) {
+        if (limit <= 0) throw new IllegalArgumentException("Page limit must be positive.");
+        NavigableSet<AvailablePetKey> order = orders.get(sort);
+        if (cursor != null) order = order.tailSet(decodeCursor(view, cursor, sort), false);
+        List<Pet> pets = new ArrayList<>(Math.min(limit, 1_000));
+        AvailablePetKey last = null;
+        for (AvailablePetKey key : order) {
+            if (!isAvailable(view, key)) continue;
+            if (pets.size() == limit) return new PetPage(pets, encodeCursor(last, sort));
+            pets.add(view.getPet(key.getOrdinal()));
+            last = key;
+        }
+        return new PetPage(pets, null);
+    }
+
+    // Method to stream every pet that is available in a view, in the given order; pets are fetched lazily as the stream is consumed
+    java.util.stream.Stream<Pet> stream(ShelterView view, PetSort sort) {
+        return orders.get(sort).stream().filter(key -> isAvailable(view, key)).map(key -> view.getPet(key.getOrdinal()));
+    }
+
+    // Method to check a listed pet against a view: the listing is updated right after each view is published,
+    // so it can briefly hold a pet the view does not contain yet or already shows as adopted
+    private static boolean isAvailable(ShelterView view, AvailablePetKey key) {
+        return key.getOrdinal() < view.getPetCount() && !view.adopted(key.getOrdinal());
+    }
+
+    // Method to encode a key as an opaque cursor (the petId is not included; it is looked up again by ordinal)
+    private static String encodeCursor(AvailablePetKey key, PetSort sort) {
+        String text = sort.name() + ":" + key.getOrdinal() + ":" + key.getAge() + ":" + Double.doubleToLongBits(key.getFee());
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Method to turn a cursor back into the key it was made from
+    private AvailablePetKey decodeCursor(ShelterView view, String cursor, PetSort sort) {
+        String[] parts;
+        try {
+            parts = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8).split(":");
+            if (parts.length == 4 && parts[0].equals(sort.name())) {
+                int ordinal = Integer.parseInt(parts[1]);
+                if (ordinal >= 0 && ordinal < view.getPetCount()) {
+                    return new AvailablePetKey(view.getPet(ordinal).getPetId(), Integer.parseInt(parts[2]),
+                            Double.longBitsToDouble(Long.parseLong(parts[3])), ordinal);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            // Fall through: not a cursor this index produced
+        }
+        throw new IllegalArgumentException("Invalid cursor for sort order " + sort + ".");
+    }
+}
+
+// ============================== Pricing Classes ==============================
+
+// How a pricing rule changes the fee of the pets it matches
+enum PriceAction {
+    SET, // Replace the fee with the amount
+    ADD, // Add the amount (negative for a flat discount)
+    MULTIPLY, // Multiply the fee by the amount (0.8 = 20% off)
+    AT_LEAST, // Raise the fee to the amount if it is lower
+    AT_MOST; // Cap the fee at the amount
+
+    // Method to apply this action to a fee
+    double apply(double fee, double amount) {
+        return switch (this) {
+            case SET -> amount;
+            case ADD -> fee + amount;
+            case MULTIPLY -> fee * amount;
+            case AT_LEAST -> Math.max(fee, amount);
+            case AT_MOST -> Math.min(fee, amount);
+        };
+    }
+}
+
+// One pricing rule, e.g. new PricingRule("Senior pets", PriceAction.MULTIPLY, 0.5).ages(10, Integer.MAX_VALUE).
+// Criteria that are not set match every pet (case-insensitive); a rule limited to one shelter lets a whole
+// federation share one list of rules.
+class PricingRule {
+    private final String name;
+    private final PriceAction action;
+    private final double amount;
+    private String species, size, breed, shelter; // Folded values, null = any
+    private int minAge = 0;
+    private int maxAge = Integer.MAX_VALUE;
+
+    // Constructor for a rule that applies an action to every pet until criteria are added
+    public PricingRule(String name, PriceAction action, double amount) {
+        if (action == null) throw new IllegalArgumentException("Pricing rule " + name + " needs an action.");
+        if (!Double.isFinite(amount)) throw new IllegalArgumentException("Pricing rule " + name + " needs a finite amount.");
+        this.name = name;
+        this.action = action;
+        this.amount = amount;
+    }
+
+    // Methods to restrict the rule to one value of an attribute (case-insensitive)
+    public PricingRule species(String species) { this.species = foldOrNull(species); return this; }
+    public PricingRule size(String size) { this.size = foldOrNull(size); return this; }
+    public PricingRule breed(String breed) { this.breed = foldOrNull(breed); return this; }
+    public PricingRule shelter(String shelter) { this.shelter = foldOrNull(shelter); return this; }
+
+    // Method to restrict the rule to an inclusive age range
+    public PricingRule ages(int minAge, int maxAge) {
+        if (minAge < 0 || maxAge < minAge) throw new IllegalArgumentException("Invalid age range " + minAge + "-" + maxAge + " for pricing rule " + name);
+        this.minAge = minAge;
+        this.maxAge = maxAge;
+        return this;
+    }
+
+    // Getter methods for the rule's values
+    public String getName() { return name; }
+    public PriceAction getAction() { return action; }
+    public double getAmount() { return amount; }
+    String getBreed() { return breed; }
+    int getMinAge() { return minAge; }
+    int getMaxAge() { return maxAge; }
+
+    // Method to check whether the rule is meant for a shelter
+    boolean appliesTo(String shelterName) {
+        return shelter == null || shelter.equals(PetAttribute.fold(shelterName));
+    }
+
+    // Method to check whether the rule matches a pet with these folded attributes (breed null = any breed not named by a rule)
+    boolean matches(String species, String size, String breed, int age) {
+        return (this.species == null || this.species.equals(species)) && (this.size == null || this.size.equals(size))
+                && (this.breed == null || this.breed.equals(breed)) && age >= minAge && age <= maxAge;
+    }
+
+    // Method to make an independent copy, so a compiled price book is not affected by later changes to the rule
+    PricingRule copy() {
+        PricingRule copy = new PricingRule(name, action, amount);
+        copy.species = species;
+        copy.size = size;
+        copy.breed = breed;
+        copy.shelter = shelter;
+        copy.minAge = minAge;
+        copy.maxAge = maxAge;
+        return copy;
+    }
+
+    // Method to write the rule to a journal record or snapshot ("" stands for a criterion that is not set)
+    void writeTo(DataOutput out) throws IOException {
+        out.writeUTF(name == null ? "" : name);
+        out.writeByte(action.ordinal());
+        out.writeDouble(amount);
+        for (String value : new String[]{species, size, breed, shelter}) out.writeUTF(value == null ? "" : value);
+        out.writeInt(minAge);
+        out.writeInt(maxAge);
+    }
+
+    // Method to read back a rule written by writeTo
+    static PricingRule readFrom(DataInput in) throws IOException {
+        PricingRule rule = new PricingRule(in.readUTF(), PriceAction.values()[in.readByte()], in.readDouble());
+        rule.species = foldOrNull(in.readUTF());
+        rule.size = foldOrNull(in.readUTF());
+        rule.breed = foldOrNull(in.readUTF());
+        rule.shelter = foldOrNull(in.readUTF());
+        return rule.ages(in.readInt(), in.readInt());
+    }
+
+    // Method to fold a criterion, treating null and "" as "any"
+    private static String foldOrNull(String value) {
+        return value == null || value.isEmpty() ? null : PetAttribute.fold(value);
+    }
+
+    @Override
+    public String toString() {
+        return name + ": " + action + " " + amount;
+    }
+}
+
+// Fee of one (species, size, age bucket) cell of a price book, plus the fees of breeds that rules price differently
+final class PriceCell {
+    private final double fee;
+    private final String[] breeds; // Folded
+    private final double[] breedFees;
+
+    // Constructor for a cell
+    PriceCell(double fee, String[] breeds, double[] breedFees) {
+        this.fee = fee;
+        this.breeds = breeds;
+        this.breedFees = breedFees;
+    }
+
+    // Method to look up the fee of a pet of the given breed
+    double feeFor(String breed) {
+        for (int i = 0; i < breeds.length; i++) {
+            if (breeds[i].equalsIgnoreCase(breed)) return breedFees[i];
+        }
+        return fee;
+    }
+}
+
+// Immutable, versioned set of pricing rules compiled for one shelter into a decision table.
+// Rules start from a fee of 0 and are applied in list order, each to the fee left by the ones before it; the
+// result is rounded to cents and never negative. Rules only look at species, size, breed and age, and ages are
+// cut into buckets at every bound a rule uses, so every pet with the same species, size and age bucket gets the
+// same fee, apart from the breeds a rule names. The table is filled lazily with one PriceCell per
+// (species, size, age bucket), so pricing a pet costs two hash lookups and a binary search instead of running the
+// rules. Changing the rules means compiling a new book with an empty table, so nothing is invalidated in place.
+final class PriceBook {
+    // The built-in fees by size (50/100/150, 0 for an unknown size), used for new pets and shelters without rules
+    static final PriceBook DEFAULT = new PriceBook(0, List.of(
+            new PricingRule("Small pets", PriceAction.SET, 50.0).size("Small"),
+            new PricingRule("Medium pets", PriceAction.SET, 100.0).size("Medium"),
+            new PricingRule("Large pets", PriceAction.SET, 150.0).size("Large")), null);
+
+    private final long version;
+    private final List<PricingRule> rules; // Every rule, as given (written to the journal)
+    private final List<PricingRule> applicable; // The rules meant for this book's shelter
+    private final int[] ageCuts; // Sorted ages at which a new age bucket starts
+    private final String[] namedBreeds; // Folded breeds that some rule is limited to
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, PriceCell[]>> cells = new ConcurrentHashMap<>(); // Species -> size -> bucket
+
+    // Constructor for a book of the given rules for one shelter (null = rules for every shelter apply)
+    PriceBook(long version, List<PricingRule> rules, String shelterName) {
+        this.version = version;
+        this.rules = rules.stream().map(PricingRule::copy).toList();
+        this.applicable = this.rules.stream().filter(rule -> shelterName == null || rule.appliesTo(shelterName)).toList();
+        TreeSet<Integer> cuts = new TreeSet<>();
+        TreeSet<String> breeds = new TreeSet<>();
+        for (PricingRule rule : applicable) {
+            if (rule.getMinAge() > 0) cuts.add(rule.getMinAge());
+            if (rule.getMaxAge() < Integer.MAX_VALUE) cuts.add(rule.getMaxAge() + 1);
+            if (rule.getBreed() != null) breeds.add(rule.getBreed());
+        }
+        this.ageCuts = cuts.stream().mapToInt(Integer::intValue).toArray();
+        this.namedBreeds = breeds.toArray(new String[0]);
+    }
+
+    // Getter method to retrieve the book's version (0 for the default book, then one more for every change)
+    public long getVersion() {
+        return version;
+    }
+
+    // Getter method to retrieve the rules the book was compiled from
+    public List<PricingRule> getRules() {
+        return rules;
+    }
+
+    // Method to price a pet
+    public double feeOf(Pet pet) {
+        return feeOf(pet.getSpecies(), pet.getSize(), pet.getBreed(), pet.getAge());
+    }
+
+    // Method to price a pet with the given attributes
+    public double feeOf(String species, String size, String breed, int age) {
+        species = species == null ? "" : species;
+        size = size == null ? "" : size;
+        ConcurrentHashMap<String, PriceCell[]> bySize = cells.get(species);
+        if (bySize == null) bySize = cells.computeIfAbsent(species, key -> new ConcurrentHashMap<>());
+        PriceCell[] row = bySize.get(size);
+        if (row == null) row = bySize.computeIfAbsent(size, key -> new PriceCell[ageCuts.length + 1]);
+        int position = Arrays.binarySearch(ageCuts, age);
+        int bucket = position >= 0 ? position + 1 : -position - 1;
+        PriceCell cell = row[bucket];
+        if (cell == null) row[bucket] = cell = compileCell(species, size, age); // Two threads may both compile it; they get the same cell
+        return cell.feeFor(breed);
+    }
+
+    // Method to run the rules for one cell: once for breeds no rule names, then once per named breed that ends up different
+    private PriceCell compileCell(String species, String size, int age) {
+        String foldedSpecies = PetAttribute.fold(species), foldedSize = PetAttribute.fold(size);
+        double fee = run(foldedSpecies, foldedSize, null, age);
+        List<String> breeds = new ArrayList<>();
+        List<Double> breedFees = new ArrayList<>();
+        for (String breed : namedBreeds) {
+            double breedFee = run(foldedSpecies, foldedSize, breed, age);
+            if (breedFee != fee) {
+                breeds.add(breed);
+                breedFees.add(breedFee);
+            }
+        }
+        return new PriceCell(fee, breeds.toArray(new String[0]), breedFees.stream().mapToDouble(Double::doubleValue).toArray());
+    }
+
+    // Method to apply every matching rule in order
+    private double run(String species, String size, String breed, int age) {
+        double fee = 0;
+        for (PricingRule rule : applicable) {
+            if (rule.matches(species, size, breed, age)) fee = rule.getAction().apply(fee, rule.getAmount());
+        }
+        return Math.max(0, Math.round(fee * 100) / 100.0);
+    }
+}
+
+// Result of repricing a shelter's catalog after its rules changed
+class RepriceReport {
+    private final long version;
+    private final int petsPriced;
+    private final long petsChanged;
+    private final long elapsedNanos;
+
+    // Constructor for a finished repricing pass
+    RepriceReport(long version, int petsPriced, long petsChanged, long elapsedNanos) {
+        this.version = version;
+        this.petsPriced = petsPriced;
+        this.petsChanged = petsChanged;
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    // Getter methods for the pass's results
+    public long getVersion() { return version; }
+    public int getPetsPriced() { return petsPriced; }
+    public long getPetsChanged() { return petsChanged; }
+    public long getElapsedNanos() { return elapsedNanos; }
+
+    // Method to compute the repricing throughput in pets per second
+    public double getPetsPerSecond() {
+        return elapsedNanos == 0 ? 0 : petsPriced / (elapsedNanos / 1e9);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Price book v%d: %,d pets priced, %,d changed in %.2f s (%,.0f pets/s)",
+                version, petsPriced, petsChanged, elapsedNanos / 1e9, getPetsPerSecond());
+    }
+}
+
+// A shelter's pricing: the current price book and the repricing of the pets already stored.
+// New pets are priced from the current book as they are added. A rule change publishes a new book and then walks
+// every ordinal in parallel on the common pool; only pets whose fee actually changes are touched, each with one
+// atomic write under that pet's index stripe, so adoptions never wait for the pass. An adoption reads the fee
+// once and charges exactly that, so it pays either the old or the new price. Rule changes run one at a time.
+class PricingEngine {
+    private final String shelterName;
+    private final PetStore store;
+    private final AvailablePetIndex availablePets;
+    private final ReentrantLock changeLock = new ReentrantLock(); // One rule change (and its repricing pass) at a time
+    private final AtomicLong feeVersion = new AtomicLong(); // Odd while a repricing pass is running
+    private volatile PriceBook book = PriceBook.DEFAULT;
+
+    // Constructor for the pricing of a shelter's store
+    PricingEngine(String shelterName, PetStore store, AvailablePetIndex availablePets) {
+        this.shelterName = shelterName;
+        this.store = store;
+        this.availablePets = availablePets;
+    }
+
+    // Getter method to retrieve the current price book
+    PriceBook current() {
+        return book;
+    }
+
+    // Method to price a pet with the current book
+    double priceOf(Pet pet) {
+        return book.feeOf(pet);
+    }
+
+    // Method to retrieve a counter that changes whenever stored fees change; it is odd while a pass is running
+    long getFeeVersion() {
+        return feeVersion.get();
+    }
+
+    // Method to compile new rules, publish them through the given step (which logs and installs the book), and
+    // reprice the first petCount pets. petCount must be read after the book is installed.
+    RepriceReport change(List<PricingRule> rules, Consumer<PriceBook> publish, IntSupplier petCount) {
+        changeLock.lock();
+        try {
+            PriceBook next = new PriceBook(book.getVersion() + 1, rules, shelterName);
+            publish.accept(next);
+            return reprice(next, petCount.getAsInt());
+        } finally {
+            changeLock.unlock();
+        }
+    }
+
+    // Method to install a book (used by publish steps and when a snapshot is loaded)
+    void install(PriceBook next) {
+        book = next;
+    }
+
+    // Method to compile and install a book of the given version without repricing (the pets are added afterwards)
+    void restore(long version, List<PricingRule> rules) {
+        install(new PriceBook(version, rules, shelterName));
+    }
+
+    // Method to reprice the first petCount pets in parallel
+    private RepriceReport reprice(PriceBook next, int petCount) {
+        long start = System.nanoTime();
+        feeVersion.incrementAndGet();
+        long changed;
+        try {
+            changed = java.util.stream.IntStream.range(0, petCount).parallel().filter(ordinal -> {
+                Pet pet = store.get(ordinal);
+                double fee = next.feeOf(pet);
+                if (fee == pet.getAdoptionFee()) return false;
+                availablePets.changeFee(ordinal, fee);
+                return true;
+            }).count();
+        } finally {
+            feeVersion.incrementAndGet();
+        }
+        return new RepriceReport(next.getVersion(), petCount, changed, System.nanoTime() - start);
+    }
+}
+
+// ============================== Text Search Classes ==============================
+
+// One term of a text index: its posting list holds the IDs of the documents that contain it, in increasing order,
+// with a document repeated once per occurrence, so the runs of equal IDs are the term frequencies
+class TextTerm {
+    final String text;
+    final int id;
+    final IntList postings = new IntList();
+    int documents; // Number of distinct documents in postings
+
+    // Constructor for a term that does not occur anywhere yet
+    TextTerm(String text, int id) {
+        this.text = text;
+        this.id = id;
+    }
+}
+
+// Scores of the documents one query matched. Scores live in a flat array indexed by document ID, and the IDs that
+// were touched are remembered, so ranking only looks at the matches however many documents the index holds.
+// Queries borrow their scores from a small pool and hand them back cleared (only the touched entries are reset),
+// so a query costs in proportion to its matches rather than allocating an array as large as the index.
+class TextScores {
+    private static final BlockingQueue<TextScores> SPARES = new ArrayBlockingQueue<>(Math.max(4, 2 * Runtime.getRuntime().availableProcessors()));
+
+    private float[] scores;
+    private final IntList touched = new IntList();
+
+    // Constructor for a query over documents 0 to documents - 1
+    TextScores(int documents) {
+        this.scores = new float[documents];
+    }
+
+    // Method to borrow cleared scores for a query over documents 0 to documents - 1; hand them back with release()
+    static TextScores acquire(int documents) {
+        TextScores spare = SPARES.poll();
+        if (spare == null) return new TextScores(documents);
+        if (spare.scores.length < documents) spare.scores = new float[Math.max(documents, spare.scores.length * 2)]; // Room to grow
+        return spare;
+    }
+
+    // Method to reset the matched documents' scores and return the scores to the pool (dropped if the pool is full)
+    void release() {
+        for (int i = 0; i < touched.size(); i++) scores[touched.get(i)] = 0;
+        touched.clear();
+        SPARES.offer(this);
+    }
+
+    // Method to add to a document's score
+    void add(int doc, double score) {
+        if (scores[doc] == 0) touched.add(doc);
+        scores[doc] += (float) score;
+    }
+
+    // Getter method to retrieve a document's score (0 if it did not match)
+    double scoreOf(int doc) {
+        return scores[doc];
+    }
+
+    // Method to rank the matched documents (highest score first, earlier documents breaking ties) and return the best.
+    // Keeps a min-heap of at most limit document IDs in a plain int array, so most matches cost one comparison.
+    IntList top(int limit) {
+        int[] heap = new int[Math.max(0, Math.min(limit, touched.size()))];
+        int size = 0;
+        for (int i = 0; i < touched.size() && heap.length > 0; i++) {
+            int doc = touched.get(i);
+            if (size < heap.length) {
+                heap[size++] = doc;
+                for (int child = size - 1; child > 0 && worse(heap[child], heap[(child - 1) / 2]); child = (child - 1) / 2) swap(heap, child, (child - 1) / 2);
+            } else if (worse(heap[0], doc)) {
+                heap[0] = doc;
+                siftDown(heap, size);
+            }
+        }
+        // Heap sort in place: moving the worst remaining document to the back each time leaves the best at the front
+        for (int end = size - 1; end > 0; end--) {
+            swap(heap, 0, end);
+            siftDown(heap, end);
+        }
+        IntList result = new IntList();
+        for (int i = 0; i < size; i++) result.add(heap[i]);
+        return result;
+    }
+
+    // Method to move the root of a heap of the given size down until no child ranks below it
+    private void siftDown(int[] heap, int size) {
+        for (int parent = 0; ; ) {
+            int child = 2 * parent + 1;
+            if (child >= size) break;
+            if (child + 1 < size && worse(heap[child + 1], heap[child])) child++;
+            if (!worse(heap[child], heap[parent])) break;
+            swap(heap, child, parent);
+            parent = child;
+        }
+    }
+
+    // Method to check whether document a ranks below document b
+    private boolean worse(int a, int b) {
+        return scores[a] < scores[b] || (scores[a] == scores[b] && a > b);
+    }
+
+    // Method to swap two heap entries
+    private static void swap(int[] heap, int i, int j) {
+        int swapped = heap[i];
+        heap[i] = heap[j];
+        heap[j] = swapped;
+    }
+}
+
+// In-memory inverted index over short texts with exact, prefix and fuzzy term matching and BM25 ranking.
+// Texts are split into lower-case tokens of letters and digits. Terms are kept in a sorted map, so a query token
+// also matches the terms it is a prefix of, and every term containing a letter is indexed by its trigrams: a
+// misspelled token only has to be compared with the terms that share enough trigrams with it (each edit changes
+// at most three), and those few candidates are checked with a bounded edit distance. A query matches the
+// documents containing any of its tokens, and documents matching more (and rarer) tokens rank higher.
+// Not thread-safe: the owner guards it with a read-write lock. Document IDs are dense and added in increasing order.
+class TextIndex {
+    private static final double PREFIX_WEIGHT = 0.7, FUZZY_WEIGHT = 0.6; // Exact matches weigh 1 (fuzzy is divided by the distance)
+    private static final int MAX_EXPANSIONS = 50; // Most terms one token expands to by prefix, and again by fuzzy matching
+    private static final double K1 = 1.2, B = 0.75; // BM25 parameters
+    private final boolean indexNumbers;
+    private final TreeMap<String, TextTerm> terms = new TreeMap<>();
+    private final List<TextTerm> termsById = new ArrayList<>();
+    private final Map<String, IntList> trigrams = new HashMap<>(); // Trigram -> IDs of the terms containing it
+    private final IntList lengths = new IntList(); // Number of tokens in each document
+    private final BitSet deleted = new BitSet();
+    private long totalLength;
+    private int liveDocuments;
+
+    // Constructor for an empty index; tokens made only of digits are skipped unless indexNumbers is set
+    TextIndex(boolean indexNumbers) {
+        this.indexNumbers = indexNumbers;
+    }
+
+    // Method to add a document under the next free ID (IDs that are skipped become empty documents)
+    void add(int docId, String text) {
+        while (lengths.size() < docId) lengths.add(0);
+        List<String> tokens = tokenize(text);
+        int length = 0;
+        for (String token : tokens) {
+            if (!indexNumbers && isNumber(token)) continue;
+            TextTerm term = terms.get(token);
+            if (term == null) term = newTerm(token);
+            int postings = term.postings.size();
+            if (postings == 0 || term.postings.get(postings - 1) != docId) term.documents++;
+            term.postings.add(docId);
+            length++;
+        }
+        lengths.add(length);
+        totalLength += length;
+        liveDocuments++;
+    }
+
+    // Method to remove a document from future results (its postings stay until the index is rebuilt)
+    void delete(int docId) {
+        if (docId >= lengths.size() || deleted.get(docId)) return;
+        deleted.set(docId);
+        totalLength -= lengths.get(docId);
+        liveDocuments--;
+    }
+
+    // Method to retrieve the number of document IDs in use
+    int size() {
+        return lengths.size();
+    }
+
+    // Method to score every document matching a query into scores, scaled by weight
+    void score(String query, double weight, TextScores scores) {
+        for (String token : new LinkedHashSet<>(tokenize(query))) {
+            TextTerm exact = terms.get(token);
+            if (exact != null) accumulate(exact, weight, scores);
+
+            // Terms the token is a prefix of, e.g. "lab" -> "labrador"
+            int expansions = 0;
+            if (token.length() >= 2) {
+                for (TextTerm term : terms.subMap(token, false, token + Character.MAX_VALUE, false).values()) {
+                    if (expansions++ == MAX_EXPANSIONS) break;
+                    accumulate(term, weight * PREFIX_WEIGHT, scores);
+                }
+            }
+
+            // Terms within a small edit distance, e.g. "labradour" -> "labrador"
+            if (token.length() >= 3 && !isNumber(token)) {
+                int maxDistance = token.length() <= 5 ? 1 : 2;
+                for (long match : fuzzyMatches(token, maxDistance)) {
+                    accumulate(termsById.get((int) match), weight * FUZZY_WEIGHT / (match >>> 32), scores);
+                }
+            }
+        }
+    }
+
+    // Method to find the terms within maxDistance edits of a token that it neither equals nor is a prefix of.
+    // Returns (distance << 32 | term ID) values, closest and then most frequent terms first.
+    private List<Long> fuzzyMatches(String token, int maxDistance) {
+        Map<Integer, Integer> shared = new HashMap<>();
+        for (String gram : trigramsOf(token)) {
+            IntList termIds = trigrams.get(gram);
+            if (termIds == null) continue;
+            for (int i = 0; i < termIds.size(); i++) shared.merge(termIds.get(i), 1, Integer::sum);
+        }
+        List<Long> matches = new ArrayList<>();
+        for (Map.Entry<Integer, Integer> candidate : shared.entrySet()) {
+            TextTerm term = termsById.get(candidate.getKey());
+            if (Math.abs(term.text.length() - token.length()) > maxDistance) continue;
+            if (candidate.getValue() < Math.max(term.text.length(), token.length()) - 3 * maxDistance) continue; // Too few shared trigrams
+            if (term.text.startsWith(token)) continue; // Already matched exactly or as a prefix
+            int distance = editDistance(token, term.text, maxDistance);
+            if (distance <= maxDistance) matches.add((long) distance << 32 | term.id);
+        }
+        matches.sort(Comparator.<Long>comparingLong(match -> match >>> 32)
+                .thenComparing(match -> -termsById.get((int) (long) match).documents));
+        return matches.size() > MAX_EXPANSIONS ? matches.subList(0, MAX_EXPANSIONS) : matches;
+    }
+
+    // Method to add a term's BM25 contribution to every live document containing it
+    private void accumulate(TextTerm term, double weight, TextScores scores) {
+        if (liveDocuments == 0) return;
+        double idf = Math.log(1 + (liveDocuments - term.documents + 0.5) / (term.documents + 0.5));
+        double averageLength = Math.max(1, (double) totalLength / liveDocuments);
+        IntList postings = term.postings;
+        for (int i = 0; i < postings.size(); ) {
+            int doc = postings.get(i), frequency = 0;
+            while (i < postings.size() && postings.get(i) == doc) {
+                frequency++;
+                i++;
+            }
+            if (deleted.get(doc)) continue;
+            double norm = K1 * (1 - B + B * lengths.get(doc) / averageLength);
+            scores.add(doc, weight * idf * frequency * (K1 + 1) / (frequency + norm));
+        }
+    }
+
+    // Method to register a term seen for the first time
+    private TextTerm newTerm(String text) {
+        TextTerm term = new TextTerm(text, termsById.size());
+        terms.put(text, term);
+        termsById.add(term);
+        if (!isNumber(text)) {
+            for (String gram : trigramsOf(text)) trigrams.computeIfAbsent(gram, key -> new IntList()).add(term.id);
+        }
+        return term;
+    }
+
+    // Method to split a text into lower-case tokens of letters and digits
+    static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        if (text == null) return tokens;
+        StringBuilder token = new StringBuilder();
+        for (int i = 0; i <= text.length(); i++) {
+            char c = i < text.length() ? text.charAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                token.append(Character.toLowerCase(c));
+            } else if (token.length() > 0) {
+                tokens.add(token.toString());
+                token.setLength(0);
+            }
+        }
+        return tokens;
+    }
+
+    // Method to list the distinct trigrams of a term, padded so that its first and last letters count as well
+    private static Set<String> trigramsOf(String term) {
+        String padded = "$" + term + "$";
+        Set<String> grams = new HashSet<>();
+        for (int i = 0; i + 3 <= padded.length(); i++) grams.add(padded.substring(i, i + 3));
+        return grams;
+    }
+
+    // Method to check whether a token is made only of digits
+    private static boolean isNumber(String token) {
+        for (int i = 0; i < token.length(); i++) {
+            if (!Character.isDigit(token.charAt(i))) return false;
+        }
+        return true;
+    }
+
+    // Method to compute the edit distance between two strings, counting a swap of adjacent letters as one edit.
+    // Gives up as soon as the distance must exceed max and then returns max + 1.
+    static int editDistance(String a, String b, int max) {
+        if (Math.abs(a.length() - b.length()) > max) return max + 1;
+        int[] previous2 = new int[b.length() + 1], previous = new int[b.length() + 1], current = new int[b.length() + 1];
+        for (int j = 0; j <= b.length(); j++) previous[j] = j;
+        for (int i = 1; i <= a.length(); i++) {
+            current[0] = i;
+            int rowMin = i;
+            for (int j = 1; j <= b.length(); j++) {
+                int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+                current[j] = Math.min(Math.min(current[j - 1] + 1, previous[j] + 1), previous[j - 1] + cost);
+                if (i > 1 && j > 1 && a.charAt(i - 1) == b.charAt(j - 2) && a.charAt(i - 2) == b.charAt(j - 1)) {
+                    current[j] = Math.min(current[j], previous2[j - 2] + 1);
+                }
+                rowMin = Math.min(rowMin, current[j]);
+            }
+            if (rowMin > max) return max + 1;
+            int[] recycled = previous2;
+            previous2 = previous;
+            previous = current;
+            current = recycled;
+        }
+        return Math.min(previous[b.length()], max + 1);
+    }
+}
+
+// Full-text index over the names and breeds of a shelter's pets; document IDs are the pets' ordinals.
+// Name matches weigh twice as much as breed matches. Pets are added under the write lock as the shelter stores
+// them, and searches share the read lock.
+class PetTextIndex {
+    private static final double NAME_WEIGHT = 2.0, BREED_WEIGHT = 1.0;
+    private final TextIndex names = new TextIndex(false); // Numeric name suffixes ("Buddy 621841") are not searchable words
+    private final TextIndex breeds = new TextIndex(true);
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // Method to index a newly stored pet
+    void add(int ordinal, Pet pet) {
+        lock.writeLock().lock();
+        try {
+            names.add(ordinal, pet.getName());
+            breeds.add(ordinal, pet.getBreed());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Method to find the ordinals of the pets best matching a query, best first
+    IntList search(String query, int limit) {
+        lock.readLock().lock();
+        try {
+            TextScores scores = TextScores.acquire(names.size());
+            try {
+                names.score(query, NAME_WEIGHT, scores);
+                breeds.score(query, BREED_WEIGHT, scores);
+                return scores.top(limit);
+            } finally {
+                scores.release();
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+}
+
+// One review found by a review search
+class ReviewHit {
+    private final String adopterId; // null for a review of the shelter
+    private final String review;
+    private final double score;
+
+    // Constructor for a matching review
+    ReviewHit(String adopterId, String review, double score) {
+        this.adopterId = adopterId;
+        this.review = review;
+        this.score = score;
+    }
+
+    // Getter method to retrieve the reviewed adopter's ID (null if the review is about the shelter)
+    public String getAdopterId() {
+        return adopterId;
+    }
+
+    // Getter method to retrieve the review text
+    public String getReview() {
+        return review;
+    }
+
+    // Getter method to retrieve the relevance score (higher is better)
+    public double getScore() {
+        return score;
+    }
+
+    @Override
+    public String toString() {
+        return (adopterId == null ? "Shelter" : "Adopter " + adopterId) + ": " + review;
+    }
+}
+
+// Full-text index over a shelter's reviews. Shelter reviews accumulate; an adopter only has a current review
+// (a new one replaces it), so the replaced review is deleted from the index.
+class ReviewIndex {
+    private final TextIndex text = new TextIndex(true);
+    private final List<String> reviews = new ArrayList<>(); // Review text by document ID
+    private final List<String> reviewers = new ArrayList<>(); // Adopter ID by document ID (null = the shelter)
+    private final Map<String, Integer> currentReviews = new HashMap<>(); // Adopter ID -> document ID of their current review
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // Method to index an adopter's new review, replacing their previous one
+    void addAdopterReview(String adopterId, String review) {
+        lock.writeLock().lock();
+        try {
+            Integer previous = currentReviews.put(adopterId, reviews.size());
+            if (previous != null) text.delete(previous);
+            add(adopterId, review);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Method to index a new review of the shelter
+    void addShelterReview(String review) {
+        lock.writeLock().lock();
+        try {
+            add(null, review);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Method to find the reviews best matching a query, best first
+    List<ReviewHit> search(String query, int limit) {
+        lock.readLock().lock();
+        try {
+            TextScores scores = TextScores.acquire(text.size());
+            try {
+                text.score(query, 1.0, scores);
+                IntList docs = scores.top(limit);
+                List<ReviewHit> hits = new ArrayList<>(docs.size());
+                for (int i = 0; i < docs.size(); i++) {
+                    int doc = docs.get(i);
+                    hits.add(new ReviewHit(reviewers.get(doc), reviews.get(doc), scores.scoreOf(doc)));
+                }
+                return hits;
+            } finally {
+                scores.release();
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Method to store and index a review under the next document ID (called under the write lock)
+    private void add(String adopterId, String review) {
+        text.add(reviews.size(), review);
+        reviews.add(review);
+        reviewers.add(adopterId);
+    }
+}
+
+// ============================== Rating Classes ==============================
+
+// Running statistics for a stream of 1-5 star ratings. Only a per-star histogram of striped counters is
+// stored; count, sum, min, max, average and percentiles are all derived from its five buckets, so every
+// read takes constant time, nothing is boxed, and concurrent raters never block each other.
+class RatingAggregate {
+    public static final int MIN_RATING = 1;
+    public static final int MAX_RATING = 5;
+
+    private final LongAdder[] histogram = new LongAdder[MAX_RATING + 1]; // histogram[stars] = number of ratings with that many stars
+
+    // Constructor for an aggregate with no ratings
+    public RatingAggregate() {
+        for (int stars = MIN_RATING; stars <= MAX_RATING; stars++) histogram[stars] = new LongAdder();
+    }
+
+    // Method to check whether a rating is within the allowed range
+    public static boolean isValid(int rating) {
+        return rating >= MIN_RATING && rating <= MAX_RATING;
+    }
+
+    // Method to record one rating (must be valid)
+    public void record(int rating) {
+        histogram[rating].increment();
+    }
+
+    // Method to record several ratings with the same number of stars at once (used when restoring a snapshot)
+    void record(int rating, long times) {
+        histogram[rating].add(times);
+    }
+
+    // Getter method to retrieve how many ratings had the given number of stars
+    public long countOf(int stars) {
+        return isValid(stars) ? histogram[stars].sum() : 0;
+    }
+
+    // Getter method to retrieve the number of ratings
+    public long count() {
+        long count = 0;
+        for (int stars = MIN_RATING; stars <= MAX_RATING; stars++) count += histogram[stars].sum();
+        return count;
+    }
+
+    // Getter method to retrieve the sum of all ratings
+    public long sum() {
+        long sum = 0;
+        for (int stars = MIN_RATING; stars <= MAX_RATING; stars++) sum += stars * histogram[stars].sum();
+        return sum;
+    }
+
+    // Getter method to retrieve the average rating (0.0 if there are no ratings)
+    public double average() {
+        long count = 0, sum = 0;
+        for (int stars = MIN_RATING; stars <= MAX_RATING; stars++) {
+            long times = histogram[stars].sum(); // Read each bucket once so count and sum agree
+            count += times;
+            sum += stars * times;
+        }
+        return count == 0 ? 0.0 : (double) sum / count;
+    }
+
+    // Getter method to retrieve the lowest rating (0 if there are no ratings)
+    public int min() {
+        for (int stars = MIN_RATING; stars <= MAX_RATING; stars++) if (histogram[stars].sum() > 0) return stars;
+        return 0;
+    }
+
+    // Getter method to retrieve the highest rating (0 if there are no ratings)
+    public int max() {
+        for (int stars = MAX_RATING; stars >= MIN_RATING; stars--) if (histogram[stars].sum() > 0) return stars;
+        return 0;
+    }
+
+    // Method to find the rating at a percentile between 0 and 100, e.g. 50 for the median (0 if there are no ratings)
+    public int percentile(double percent) {
+        long[] counts = new long[MAX_RATING + 1];
+        long count = 0;
+        for (int stars = MIN_RATING; stars <= MAX_RATING; stars++) count += counts[stars] = histogram[stars].sum();
+        if (count == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(percent / 100.0 * count)); // Nearest-rank method
+        long seen = 0;
+        for (int stars = MIN_RATING; stars <= MAX_RATING; stars++) {
+            seen += counts[stars];
+            if (seen >= rank) return stars;
+        }
+        return MAX_RATING;
+    }
+}
+
+// ============================== Donation Classes ==============================
+
+// A single donation, used for batch intake
+class Donation {
+    private final String donorName;
+    private final double amount;
+
+    // Constructor for creating a donation
+    public Donation(String donorName, double amount) {
+        this.donorName = donorName;
+        this.amount = amount;
+    }
+
+    // Getter method to retrieve the donor's name
+    public String getDonorName() {
+        return donorName;
+    }
+
+    // Getter method to retrieve the donated amount
+    public double getAmount() {
+        return amount;
+    }
+}
+
+// Point-in-time copy of the ledger: the total always equals the sum of the donor amounts it contains
+class DonationSnapshot {
+    private final long totalCents;
+    private final Map<String, Long> donorCents;
+
+    // Constructor for a snapshot (the map is not copied again)
+    DonationSnapshot(long totalCents, Map<String, Long> donorCents) {
+        this.totalCents = totalCents;
+        this.donorCents = Collections.unmodifiableMap(donorCents);
+    }
+
+    // Getter method to retrieve the total donations
+    public double getTotal() {
+        return DonationLedger.toAmount(totalCents);
+    }
+
+    // Getter method to retrieve the amount each donor gave, in cents
+    public Map<String, Long> getDonorCents() {
+        return donorCents;
+    }
+}
+
+// Thread-safe donation ledger. Amounts are kept as exact fixed-point cents in striped LongAdder counters,
+// one per donor in a ConcurrentHashMap plus one for the total, so concurrent donors never lose updates,
+// never box a value and rarely touch the same memory. Readers take a snapshot without blocking writers.
+class DonationLedger {
+    static final long MAX_DONATION_CENTS = 1_000_000_000L; // ₹10,000,000 per donation, so totals stay far from overflowing
+    private final LongAdder totalCents = new LongAdder();
+    private final ConcurrentHashMap<String, LongAdder> donorCents = new ConcurrentHashMap<>();
+
+    // Method to convert an amount to whole cents
+    static long toCents(double amount) {
+        return Math.round(amount * 100);
+    }
+
+    // Method to convert whole cents back to an amount
+    static double toAmount(long cents) {
+        return cents / 100.0;
+    }
+
+    // Method to check whether an amount is a valid donation: whole cents, at least one cent and at most MAX_DONATION_CENTS
+    static boolean isValidAmount(double amount) {
+        if (!(amount > 0) || amount > toAmount(MAX_DONATION_CENTS)) return false; // Also rejects NaN and infinity
+        double cents = amount * 100;
+        return Math.abs(cents - Math.rint(cents)) < 1e-6; // Sub-cent amounts would otherwise be rounded to a cent
+    }
+
+    // Method to record a donation in cents
+    public void record(String donorName, long cents) {
+        LongAdder donor = donorCents.get(donorName); // Plain get first: no lambda or lock for returning donors
+        if (donor == null) donor = donorCents.computeIfAbsent(donorName, key -> new LongAdder());
+        donor.add(cents);
+        totalCents.add(cents);
+    }
+
+    // Getter method to retrieve the total donations (may miss donations that are still being recorded)
+    public double getTotal() {
+        return toAmount(totalCents.sum());
+    }
+
+    // Getter method to retrieve one donor's total in cents (0 if they never donated)
+    public long getDonorCents(String donorName) {
+        LongAdder donor = donorCents.get(donorName);
+        return donor == null ? 0 : donor.sum();
+    }
+
+    // Getter method to retrieve the number of distinct donors
+    public int getDonorCount() {
+        return donorCents.size();
+    }
+
+    // Method to take a snapshot without blocking writers; the total is computed from the copied donor amounts
+    public DonationSnapshot snapshot() {
+        Map<String, Long> copy = new LinkedHashMap<>(donorCents.size() * 4 / 3 + 1);
+        long total = 0;
+        for (Map.Entry<String, LongAdder> donor : donorCents.entrySet()) {
+            long cents = donor.getValue().sum();
+            copy.put(donor.getKey(), cents);
+            total = Math.addExact(total, cents);
+        }
+        return new DonationSnapshot(total, copy);
+    }
+}
+
+// ============================== Event Classes ==============================
+
+// Kinds of domain events the shelter publishes
+enum EventType {
+    PET_ADDED, PETS_ADDED, PET_ADOPTED, DONATION_ACCEPTED, DONATIONS_ACCEPTED, RATING_SUBMITTED, REQUEST_REJECTED, PETS_REPRICED
+}
+
+// A domain event. Instances in the event bus are reused ring-buffer slots, so a sink that wants to keep
+// an event after its write() call returns must keep copy() instead. Messages are only built in format(),
+// which runs on the consumer thread, so publishers never pay for string concatenation.
+class ShelterEvent {
+    private EventType type;
+    private long timestamp; // Milliseconds since the epoch
+    private String subject; // Pet name, adopter name/ID or donor name (null for the shelter itself)
+    private String object; // Adopted pet name or rejection message
+    private double amount; // Fee, donation amount or price book version
+    private int count; // Rating stars, or number of donations, pets or repriced pets in a batch
+    private int skipped; // Invalid donations skipped in a batch
+
+    // Method to fill this event with new values
+    void set(EventType type, String subject, String object, double amount, int count, int skipped) {
+        this.type = type;
+        this.timestamp = System.currentTimeMillis();
+        this.subject = subject;
+        this.object = object;
+        this.amount = amount;
+        this.count = count;
+        this.skipped = skipped;
+    }
+
+    // Method to mark a claimed ring slot as holding no event (its publisher found the bus closed)
+    void clear() {
+        this.type = null;
+        this.subject = null;
+        this.object = null;
+    }
+
+    // Method to make an independent copy that may be kept
+    public ShelterEvent copy() {
+        ShelterEvent copy = new ShelterEvent();
+        copy.set(type, subject, object, amount, count, skipped);
+        copy.timestamp = timestamp;
+        return copy;
+    }
+
+    // Getter methods for the event's values
+    public EventType getType() { return type; }
+    public long getTimestamp() { return timestamp; }
+    public String getSubject() { return subject; }
+    public String getObject() { return object; }
+    public double getAmount() { return amount; }
+    public int getCount() { return count; }
+    public int getSkipped() { return skipped; }
+
+    // Method to build the human-readable message for this event
+    public String format() {
+        return switch (type) {
+            case PET_ADDED -> subject + " added to the shelter.";
+            case PETS_ADDED -> count + " pets added to the shelter.";
+            case PET_ADOPTED -> subject + " adopted " + object + " for $" + amount;
+            case DONATION_ACCEPTED -> subject + " donated ₹" + amount + ".";
+            case DONATIONS_ACCEPTED -> "Accepted " + count + " donations totalling ₹" + amount
+                    + (skipped > 0 ? " (" + skipped + " invalid skipped)." : ".");
+            case RATING_SUBMITTED -> subject == null ? "Shelter received a rating of " + count + " stars."
+                    : "Adopter " + subject + " received a rating of " + count + " stars.";
+            case REQUEST_REJECTED -> object;
+            case PETS_REPRICED -> "Price book v" + (long) amount + " applied: " + count + " pets repriced.";
+        };
+    }
+
+    @Override
+    public String toString() {
+        return format();
+    }
+}
+
+// Destination for published events; write() receives events in batches on the bus's consumer thread
+interface EventSink extends Closeable {
+    void write(List<ShelterEvent> batch) throws IOException;
+
+    // Method to push out anything the sink buffered (called after every batch and on flush)
+    default void flush() throws IOException {
+    }
+
+    @Override
+    default void close() throws IOException {
+        flush();
+    }
+}
+
+// Sink that prints each event's message to the console, one print call per batch
+class ConsoleEventSink implements EventSink {
+    private final StringBuilder lines = new StringBuilder();
+
+    @Override
+    public void write(List<ShelterEvent> batch) {
+        lines.setLength(0);
+        for (ShelterEvent event : batch) lines.append(event.format()).append(System.lineSeparator());
+        System.out.print(lines);
+    }
+
+    @Override
+    public void flush() {
+        System.out.flush();
+    }
+}
+
+// Sink that appends each event to a text file as "timestamp<TAB>type<TAB>message"
+class FileEventSink implements EventSink {
+    private final Writer writer;
+
+    // Constructor for a sink that appends to the given file
+    public FileEventSink(Path file) throws IOException {
+        this.writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    @Override
+    public void write(List<ShelterEvent> batch) throws IOException {
+        for (ShelterEvent event : batch) {
+            writer.write(Long.toString(event.getTimestamp()));
+            writer.write('\t');
+            writer.write(event.getType().name());
+            writer.write('\t');
+            writer.write(event.format());
+            writer.write('\n');
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        writer.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+}
+
+// Sink that keeps copies of the most recent events in memory (useful for tests and dashboards)
+class InMemoryEventSink implements EventSink {
+    private final int capacity;
+    private final ArrayDeque<ShelterEvent> events = new ArrayDeque<>();
+    private long received;
+
+    // Constructor for a sink that keeps at most capacity events (the oldest are dropped first)
+    public InMemoryEventSink(int capacity) {
+        this.capacity = capacity;
+    }
+
+    @Override
+    public synchronized void write(List<ShelterEvent> batch) {
+        for (ShelterEvent event : batch) {
+            if (events.size() == capacity) events.pollFirst();
+            events.addLast(event.copy());
+        }
+        received += batch.size();
+    }
+
+    // Getter method to retrieve the kept events, oldest first
+    public synchronized List<ShelterEvent> getEvents() {
+        return new ArrayList<>(events);
+    }
+
+    // Getter method to retrieve how many events this sink has received in total
+    public synchronized long getReceived() {
+        return received;
+    }
+}
+
+// Event bus that decouples publishing from output. Publishers claim a slot in a bounded, lock-free
+// multi-producer ring buffer of preallocated events and fill it in place; a background consumer drains
+// ready slots in batches and hands each batch to every sink. With no sink subscribed, publish() returns
+// right away, so the hot paths neither allocate nor build strings. A synchronous bus (for scripts)
+// hands every event to the sinks on the publishing thread instead.
+class EventBus implements Closeable {
+    private static final int MAX_BATCH = 512;
+    private static volatile EventBus defaultBus;
+
+    private final boolean asynchronous;
+    private final ShelterEvent[] slots;
+    private final AtomicLongArray slotSequences; // Which round each slot is ready for (Vyukov-style ring)
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong(); // Next sequence to claim
+    private volatile long head; // Next sequence the consumer will read
+    private final List<EventSink> sinks = new CopyOnWriteArrayList<>();
+    private final List<ShelterEvent> batch = new ArrayList<>(MAX_BATCH);
+    private final List<ShelterEvent> single; // The only slot of a synchronous bus, as a batch of one
+    private final AtomicLong failedWrites = new AtomicLong();
+    private final AtomicLong droppedEvents = new AtomicLong();
+    private volatile boolean active; // True while at least one sink is subscribed
+    private volatile boolean closed;
+    private volatile Thread consumer;
+
+    // Constructor for an asynchronous bus whose ring holds capacity events (rounded up to a power of two)
+    public EventBus(int capacity) {
+        this(capacity, true);
+    }
+
+    private EventBus(int capacity, boolean asynchronous) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.asynchronous = asynchronous;
+        this.slots = new ShelterEvent[size];
+        this.slotSequences = new AtomicLongArray(size);
+        this.mask = size - 1;
+        for (int i = 0; i < size; i++) {
+            slots[i] = new ShelterEvent();
+            slotSequences.set(i, i);
+        }
+        this.single = Collections.singletonList(slots[0]);
+    }
+
+    // Method to create a bus that delivers every event on the publishing thread, in order
+    public static EventBus synchronous() {
+        return new EventBus(2, false);
+    }
+
+    // Getter method to retrieve the process-wide bus used by shelters and adopters unless they are given another one
+    public static EventBus defaultBus() {
+        EventBus bus = defaultBus;
+        if (bus == null) {
+            synchronized (EventBus.class) {
+                if (defaultBus == null) defaultBus = new EventBus(16_384);
+                bus = defaultBus;
+            }
+        }
+        return bus;
+    }
+
+    // Setter method to replace the process-wide bus
+    public static void setDefaultBus(EventBus bus) {
+        defaultBus = bus;
+    }
+
+    // Method to start delivering events to a sink (starts the consumer thread on first use)
+    public synchronized void subscribe(EventSink sink) {
+        sinks.add(sink);
+        if (asynchronous && consumer == null) {
+            Thread thread = new Thread(this::runConsumer, "shelter-event-consumer");
+            thread.setDaemon(true);
+            thread.start();
+            consumer = thread; // Set before active, so publishers that see a sink also see the consumer
+        }
+        active = true;
+    }
+
+    // Method to stop delivering events to a sink
+    public synchronized void unsubscribe(EventSink sink) {
+        sinks.remove(sink);
+        active = !sinks.isEmpty();
+    }
+
+    // Method to check whether any sink is subscribed; callers use it to skip building event arguments
+    public boolean hasSubscribers() {
+        return active;
+    }
+
+    // Getter method to retrieve how many batches a sink failed to write
+    public long getFailedWrites() {
+        return failedWrites.get();
+    }
+
+    // Getter method to retrieve how many events were dropped because the bus was closed or its consumer had stopped
+    public long getDroppedEvents() {
+        return droppedEvents.get();
+    }
+
+    // Method to publish an event; waits for a free slot if the ring is full, unless nothing will ever free one
+    public void publish(EventType type, String subject, String object, double amount, int count, int skipped) {
+        if (!active) return; // Nobody is listening: no allocation, no work
+        if (closed) {
+            droppedEvents.incrementAndGet();
+            return;
+        }
+        if (!asynchronous) {
+            synchronized (this) {
+                slots[0].set(type, subject, object, amount, count, skipped);
+                deliver(single);
+            }
+            return;
+        }
+        long sequence;
+        int index;
+        while (true) {
+            sequence = tail.get();
+            index = (int) (sequence & mask);
+            long ready = slotSequences.get(index);
+            if (ready == sequence) {
+                if (tail.compareAndSet(sequence, sequence + 1)) break; // Slot claimed
+            } else if (ready < sequence) {
+                // Ring is full: let the consumer catch up, but give up if it has stopped (closed, or killed by a sink's Error)
+                if (closed || !consumer.isAlive()) {
+                    droppedEvents.incrementAndGet();
+                    return;
+                }
+                Thread.yield();
+            }
+        }
+        // Check again now that the slot is claimed: once the bus is closed, the consumer may already have drained up
+        // to the tail and stopped. Such a slot is handed over empty (the consumer skips it) and the event counted.
+        if (closed) {
+            slots[index].clear();
+            droppedEvents.incrementAndGet();
+        } else {
+            slots[index].set(type, subject, object, amount, count, skipped);
+        }
+        slotSequences.set(index, sequence + 1); // Hand the slot to the consumer
+    }
+
+    // Method to wait until everything published so far has been written to the sinks
+    public void flush() {
+        if (asynchronous) {
+            long target = tail.get();
+            while (head < target && consumer != null && consumer.isAlive()) LockSupport.parkNanos(50_000);
+        }
+        for (EventSink sink : sinks) {
+            try {
+                sink.flush();
+            } catch (IOException e) {
+                failedWrites.incrementAndGet();
+            }
+        }
+    }
+
+    // Method to stop taking events, deliver everything already published, stop the consumer and close the sinks
+    @Override
+    public void close() throws IOException {
+        closed = true; // The consumer drains up to the last claimed slot before it stops
+        Thread consumer = this.consumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+            try {
+                consumer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        for (EventSink sink : sinks) sink.close();
+    }
+
+    // Background loop: take up to MAX_BATCH ready events, write them as one batch, then free their slots.
+    // Once the bus is closed it keeps going until every claimed slot has been delivered.
+    private void runConsumer() {
+        int idle = 0;
+        while (true) {
+            long start = head;
+            long sequence = start;
+            batch.clear();
+            while (batch.size() < MAX_BATCH) {
+                int index = (int) (sequence & mask);
+                if (slotSequences.get(index) != sequence + 1) break; // Not published yet
+                if (slots[index].getType() != null) batch.add(slots[index]); // Skip slots given up after close()
+                sequence++;
+            }
+            if (sequence == start) {
+                if (closed && start == tail.get()) return; // Everything published before close() was delivered
+                // Back off gently while idle: spin, then yield, then sleep briefly
+                if (++idle < 100) Thread.onSpinWait();
+                else if (idle < 200) Thread.yield();
+                else LockSupport.parkNanos(200_000);
+                continue;
+            }
+            idle = 0;
+            if (!batch.isEmpty()) deliver(batch);
+            for (long released = start; released < sequence; released++) {
+                slotSequences.set((int) (released & mask), released + slots.length); // Free the slot for the next round
+            }
+            head = sequence;
+        }
+    }
+
+    // Method to hand a batch to every sink; a failing sink never stops the others
+    private void deliver(List<ShelterEvent> events) {
+        for (EventSink sink : sinks) {
+            try {
+                sink.write(events);
+                if (asynchronous) sink.flush();
+            } catch (IOException | RuntimeException e) {
+                failedWrites.incrementAndGet();
+            }
+        }
+    }
+}
+
+// ============================== History Classes ==============================
+
+// One bucket of a time series: the events that fell into [start, start + width) and the sum of their amounts
+class HistoryPoint {
+    private final long startMillis;
+    private final long count;
+    private final long sum; // In cents for money series
+
+    // Constructor for a bucket
+    HistoryPoint(long startMillis, long count, long sum) {
+        this.startMillis = startMillis;
+        this.count = count;
+        this.sum = sum;
+    }
+
+    // Getter methods for the bucket's values
+    public Instant getStart() { return Instant.ofEpochMilli(startMillis); }
+    public long getCount() { return count; }
+    public long getSum() { return sum; }
+
+    @Override
+    public String toString() {
+        return getStart() + " " + count + " (" + DonationLedger.toAmount(sum) + ")";
+    }
+}
+
+// Fixed-size ring of equal-width time buckets; a bucket is recycled once the ring comes round to it again,
+// so only the most recent capacity buckets are kept. Buckets are aligned to the epoch (UTC).
+class HistoryTier {
+    private final long widthMillis;
+    private final long[] buckets; // Bucket number held by each slot (-1 = empty)
+    private final long[] counts;
+    private final long[] sums;
+
+    // Constructor for a ring of capacity buckets of the given width
+    HistoryTier(Duration width, int capacity) {
+        this.widthMillis = width.toMillis();
+        this.buckets = new long[capacity];
+        this.counts = new long[capacity];
+        this.sums = new long[capacity];
+        Arrays.fill(buckets, -1);
+    }
+
+    // Getter methods for the tier's shape
+    long getWidthMillis() { return widthMillis; }
+    int getCapacity() { return buckets.length; }
+
+    // Method to add an event; events older than everything the ring still holds are dropped
+    void add(long timeMillis, long count, long amount) {
+        long bucket = Math.floorDiv(timeMillis, widthMillis);
+        int slot = (int) Math.floorMod(bucket, (long) buckets.length);
+        if (buckets[slot] > bucket) return; // The slot already holds a newer bucket: this one was evicted
+        if (buckets[slot] < bucket) { // Evict the old bucket this slot held
+            buckets[slot] = bucket;
+            counts[slot] = 0;
+            sums[slot] = 0;
+        }
+        counts[slot] += count;
+        sums[slot] += amount;
+    }
+
+    // Method to check whether the ring still holds a bucket, given the newest bucket that may have been written
+    boolean covers(long bucket, long newestBucket) {
+        return bucket > newestBucket - buckets.length;
+    }
+
+    // Methods to read a bucket (0 if it is empty or was evicted)
+    long countOf(long bucket) {
+        int slot = (int) Math.floorMod(bucket, (long) buckets.length);
+        return buckets[slot] == bucket ? counts[slot] : 0;
+    }
+
+    long sumOf(long bucket) {
+        int slot = (int) Math.floorMod(bucket, (long) buckets.length);
+        return buckets[slot] == bucket ? sums[slot] : 0;
+    }
+
+    // Method to write the ring to a snapshot
+    void writeTo(DataOutput out) throws IOException {
+        for (int slot = 0; slot < buckets.length; slot++) {
+            out.writeLong(buckets[slot]);
+            out.writeLong(counts[slot]);
+            out.writeLong(sums[slot]);
+        }
+    }
+
+    // Method to read back a ring written by writeTo
+    void readFrom(DataInput in) throws IOException {
+        for (int slot = 0; slot < buckets.length; slot++) {
+            buckets[slot] = in.readLong();
+            counts[slot] = in.readLong();
+            sums[slot] = in.readLong();
+        }
+    }
+}
+
+// Event counts and amounts pre-aggregated into tiers of time buckets, finest first (e.g. hourly for a month, then
+// daily for two years). Every event is added to every tier, so older history is kept only at coarser resolution
+// and the memory used is fixed. A window query adds up whole buckets of the finest tier that still covers the
+// window and whose width divides the requested bucket width, so it never rescans raw events.
+class TimeSeries {
+    private final HistoryTier[] tiers;
+
+    // Constructor for a series with the given tiers, finest first
+    TimeSeries(HistoryTier... tiers) {
+        this.tiers = tiers;
+    }
+
+    // Method to record an event
+    synchronized void record(long timeMillis, long count, long amount) {
+        for (HistoryTier tier : tiers) tier.add(timeMillis, count, amount);
+    }
+
+    // Method to split the window ending at nowMillis into buckets of the given width, oldest first.
+    // The last bucket is the one containing nowMillis, so the window is rounded up to whole buckets.
+    synchronized List<HistoryPoint> points(Duration bucketWidth, Duration window, long nowMillis) {
+        long width = bucketWidth.toMillis();
+        int points = (int) Math.max(1, (window.toMillis() + width - 1) / width);
+        long end = (Math.floorDiv(nowMillis, width) + 1) * width; // Exclusive end of the newest bucket
+        for (HistoryTier tier : tiers) {
+            long tierWidth = tier.getWidthMillis();
+            if (width % tierWidth != 0) continue;
+            long newest = Math.floorDiv(nowMillis, tierWidth);
+            if (!tier.covers(Math.floorDiv(end - points * width, tierWidth), newest)) continue;
+            List<HistoryPoint> result = new ArrayList<>(points);
+            for (long start = end - points * width; start < end; start += width) {
+                long count = 0, sum = 0;
+                for (long bucket = Math.floorDiv(start, tierWidth); bucket < Math.floorDiv(start + width, tierWidth); bucket++) {
+                    count += tier.countOf(bucket);
+                    sum += tier.sumOf(bucket);
+                }
+                result.add(new HistoryPoint(start, count, sum));
+            }
+            return result;
+        }
+        throw new IllegalArgumentException("No history kept for " + points + " buckets of " + bucketWidth);
+    }
+
+    // Method to total the events of the window ending at nowMillis (rounded up to whole buckets of the finest tier covering it)
+    synchronized HistoryPoint total(Duration window, long nowMillis) {
+        for (HistoryTier tier : tiers) {
+            long width = tier.getWidthMillis();
+            long newest = Math.floorDiv(nowMillis, width);
+            long oldest = newest - Math.max(1, (window.toMillis() + width - 1) / width) + 1;
+            if (!tier.covers(oldest, newest)) continue;
+            long count = 0, sum = 0;
+            for (long bucket = oldest; bucket <= newest; bucket++) {
+                count += tier.countOf(bucket);
+                sum += tier.sumOf(bucket);
+            }
+            return new HistoryPoint(oldest * width, count, sum);
+        }
+        throw new IllegalArgumentException("No history kept for a window of " + window);
+    }
+
+    // Methods to save and restore every tier
+    synchronized void writeTo(DataOutput out) throws IOException {
+        for (HistoryTier tier : tiers) tier.writeTo(out);
+    }
+
+    synchronized void readFrom(DataInput in) throws IOException {
+        for (HistoryTier tier : tiers) tier.readFrom(in);
+    }
+}
+
+// One review an adopter received, with its rating and when it was given
+class AdopterReview {
+    private final int rating;
+    private final String review;
+    private final long timeMillis;
+
+    // Constructor for a review
+    AdopterReview(int rating, String review, long timeMillis) {
+        this.rating = rating;
+        this.review = review;
+        this.timeMillis = timeMillis;
+    }
+
+    // Getter methods for the review's values
+    public int getRating() { return rating; }
+    public String getReview() { return review; }
+    public Instant getTime() { return Instant.ofEpochMilli(timeMillis); }
+
+    @Override
+    public String toString() {
+        return rating + " stars: " + review;
+    }
+}
+
+// Adoption history of one breed: its series, the breed's name as first recorded (for display; the history is
+// keyed by the folded name) and when a pet of the breed was last adopted, to find the breed to evict
+class BreedHistory {
+    private final String name;
+    private final TimeSeries series;
+    private final AtomicLong lastAdoption;
+
+    // Constructor for a breed's history
+    BreedHistory(String name, TimeSeries series, long lastAdoption) {
+        this.name = name;
+        this.series = series;
+        this.lastAdoption = new AtomicLong(lastAdoption);
+    }
+
+    // Method to record an adoption of a pet of this breed
+    void record(long timeMillis, long feeCents) {
+        series.record(timeMillis, 1, feeCents);
+        lastAdoption.accumulateAndGet(timeMillis, Math::max);
+    }
+
+    // Getter methods for the breed's display name, series and latest adoption time
+    String getName() { return name; }
+    TimeSeries getSeries() { return series; }
+    long getLastAdoption() { return lastAdoption.get(); }
+}
+
+// Time-bucketed history of a shelter: adoptions (overall and per breed, with the fees paid), donations and the
+// most recent reviews of each adopter. Timestamps come from an injectable clock, so tests can move time forward.
+// Memory is bounded: each series has fixed-size tiers (hourly for 31 days, daily for two years; per breed, daily
+// for 53 weeks), at most MAX_BREEDS breeds keep a series (the least recently adopted one is dropped to make room
+// for a new breed) and each adopter keeps their last MAX_REVIEWS_PER_ADOPTER reviews.
+class ShelterHistory {
+    static final int MAX_REVIEWS_PER_ADOPTER = 20;
+    static final int MAX_BREEDS = 256; // About 9 KB of buckets each
+    private static final Duration HOUR = Duration.ofHours(1), DAY = Duration.ofDays(1);
+
+    private final TimeSeries adoptions = newSeries();
+    private final TimeSeries donations = newSeries();
+    private final ConcurrentHashMap<String, BreedHistory> adoptionsByBreed = new ConcurrentHashMap<>(); // Folded breed -> history
+    private final ConcurrentHashMap<String, Deque<AdopterReview>> reviews = new ConcurrentHashMap<>();
+    private volatile Clock clock = Clock.systemUTC();
+
+    // Method to create a series with the overall tiers
+    private static TimeSeries newSeries() {
+        return new TimeSeries(new HistoryTier(HOUR, 31 * 24), new HistoryTier(DAY, 2 * 366));
+    }
+
+    // Method to create a per-breed series (daily only, a little over a year)
+    private static TimeSeries newBreedSeries() {
+        return new TimeSeries(new HistoryTier(DAY, 53 * 7));
+    }
+
+    // Setter method to change the clock the history is stamped and queried with
+    void setClock(Clock clock) {
+        this.clock = clock;
+    }
+
+    // Method to read the current time
+    public long now() {
+        return clock.millis();
+    }
+
+    // Method to record an adoption of a pet of the given breed for a fee (in cents)
+    void recordAdoption(String breed, long feeCents, long timeMillis) {
+        adoptions.record(timeMillis, 1, feeCents);
+        historyOf(breed).record(timeMillis, feeCents);
+    }
+
+    // Method to find a breed's history, starting one (and evicting the least recently adopted breed if the
+    // history is full) the first time the breed is adopted
+    private BreedHistory historyOf(String breed) {
+        String key = PetAttribute.fold(breed);
+        BreedHistory history = adoptionsByBreed.get(key);
+        if (history != null) return history;
+        synchronized (adoptionsByBreed) { // New breeds are rare; one at a time keeps the count within MAX_BREEDS
+            history = adoptionsByBreed.get(key);
+            if (history != null) return history;
+            if (adoptionsByBreed.size() >= MAX_BREEDS) {
+                String oldest = null;
+                long oldestAdoption = Long.MAX_VALUE;
+                for (Map.Entry<String, BreedHistory> entry : adoptionsByBreed.entrySet()) {
+                    if (entry.getValue().getLastAdoption() < oldestAdoption) {
+                        oldest = entry.getKey();
+                        oldestAdoption = entry.getValue().getLastAdoption();
+                    }
+                }
+                adoptionsByBreed.remove(oldest);
+            }
+            history = new BreedHistory(breed, newBreedSeries(), Long.MIN_VALUE);
+            adoptionsByBreed.put(key, history);
+            return history;
+        }
+    }
+
+    // Method to record one or more donations totalling the given cents
+    void recordDonations(int count, long cents, long timeMillis) {
+        donations.record(timeMillis, count, cents);
+    }
+
+    // Method to record a review of an adopter, dropping their oldest review once they have too many
+    void recordReview(String adopterId, int rating, String review, long timeMillis) {
+        Deque<AdopterReview> history = reviews.computeIfAbsent(adopterId, key -> new ArrayDeque<>());
+        synchronized (history) {
+            history.addLast(new AdopterReview(rating, review, timeMillis));
+            if (history.size() > MAX_REVIEWS_PER_ADOPTER) history.removeFirst();
+        }
+    }
+
+    // Method to retrieve donations per bucket over a window ending now, e.g. hourly over the last 30 days
+    public List<HistoryPoint> donations(Duration bucket, Duration window) {
+        return donations.points(bucket, window, now());
+    }
+
+    // Method to retrieve adoptions (and fees paid) per bucket over a window ending now
+    public List<HistoryPoint> adoptions(Duration bucket, Duration window) {
+        return adoptions.points(bucket, window, now());
+    }
+
+    // Method to retrieve adoptions of one breed per bucket (whole days, e.g. weekly) over a window ending now
+    public List<HistoryPoint> adoptionsOfBreed(String breed, Duration bucket, Duration window) {
+        BreedHistory history = adoptionsByBreed.get(PetAttribute.fold(breed));
+        TimeSeries series = history == null ? newBreedSeries() : history.getSeries(); // Never adopted (or evicted): all zeros
+        return series.points(bucket, window, now());
+    }
+
+    // Method to count adoptions per breed over a window ending now, most adopted first (keyed by the breed's name)
+    public Map<String, Long> adoptionsByBreed(Duration window) {
+        long now = now();
+        List<Map.Entry<String, Long>> counts = new ArrayList<>();
+        adoptionsByBreed.forEach((key, breed) -> {
+            long count = breed.getSeries().total(window, now).getCount();
+            if (count > 0) counts.add(Map.entry(breed.getName(), count));
+        });
+        counts.sort(Map.Entry.<String, Long>comparingByValue().reversed().thenComparing(Map.Entry.comparingByKey()));
+        Map<String, Long> ranking = new LinkedHashMap<>();
+        for (Map.Entry<String, Long> entry : counts) ranking.put(entry.getKey(), entry.getValue());
+        return ranking;
+    }
+
+    // Method to total the donations of a window ending now (count and cents)
+    public HistoryPoint donationTotal(Duration window) {
+        return donations.total(window, now());
+    }
+
+    // Method to retrieve an adopter's recent reviews, oldest first
+    public List<AdopterReview> reviewsOf(String adopterId) {
+        Deque<AdopterReview> history = reviews.get(adopterId);
+        if (history == null) return List.of();
+        synchronized (history) {
+            return List.copyOf(history);
+        }
+    }
+
+    // Method to write the whole history to a snapshot
+    void writeTo(DataOutput out) throws IOException {
+        adoptions.writeTo(out);
+        donations.writeTo(out);
+        Map<String, BreedHistory> breeds = new TreeMap<>(adoptionsByBreed);
+        out.writeInt(breeds.size());
+        for (BreedHistory breed : breeds.values()) {
+            out.writeUTF(breed.getName());
+            out.writeLong(breed.getLastAdoption());
+            breed.getSeries().writeTo(out);
+        }
+        out.writeInt(reviews.size());
+        for (Map.Entry<String, Deque<AdopterReview>> adopter : reviews.entrySet()) {
+            List<AdopterReview> recent = reviewsOf(adopter.getKey());
+            out.writeUTF(adopter.getKey());
+            out.writeInt(recent.size());
+            for (AdopterReview review : recent) {
+                out.writeInt(review.getRating());
+                out.writeUTF(review.getReview());
+                out.writeLong(review.getTime().toEpochMilli());
+            }
+        }
+    }
+
+    // Method to read back a history written by writeTo
+    void readFrom(DataInput in) throws IOException {
+        adoptions.readFrom(in);
+        donations.readFrom(in);
+        for (int i = in.readInt(); i > 0; i--) {
+            String breed = in.readUTF();
+            TimeSeries series = newBreedSeries();
+            adoptionsByBreed.put(PetAttribute.fold(breed), new BreedHistory(breed, series, in.readLong()));
+            series.readFrom(in);
+        }
+        for (int i = in.readInt(); i > 0; i--) {
+            String adopterId = in.readUTF();
+            for (int j = in.readInt(); j > 0; j--) recordReview(adopterId, in.readInt(), in.readUTF(), in.readLong());
+        }
+    }
+}
+
+// ============================== Metrics Classes ==============================
+
+// One metric series that can write itself in the Prometheus text format
+interface Metric {
+    // Getter methods for the metric family's name, help text and type (counter, gauge or summary)
+    String getName();
+    String getHelp();
+    String getType();
+
+    // Method to write the sample lines (without the # HELP and # TYPE lines, which are shared by a family)
+    void writeSamples(Writer out) throws IOException;
+}
+
+// Monotonic counter, optionally split by one label (e.g. adoption outcome). Increments are striped (LongAdder)
+// so threads counting at the same time do not contend.
+class Counter implements Metric {
+    private final String name, help, label;
+    private final LongAdder total = new LongAdder(); // Used when the counter has no label
+    private final ConcurrentHashMap<String, LongAdder> byLabel = new ConcurrentHashMap<>();
+
+    // Constructor for a counter (label is null for an unlabeled counter)
+    Counter(String name, String help, String label) {
+        this.name = name;
+        this.help = help;
+        this.label = label;
+    }
+
+    // Method to add to an unlabeled counter
+    public void add(long amount) {
+        total.add(amount);
+    }
+
+    // Method to add one to the counter for a label value
+    public void increment(String labelValue) {
+        byLabel.computeIfAbsent(labelValue, key -> new LongAdder()).increment();
+    }
+
+    // Getter method to retrieve an unlabeled counter's value
+    public long get() {
+        return total.sum();
+    }
+
+    // Getter method to retrieve the count for one label value
+    public long get(String labelValue) {
+        LongAdder count = byLabel.get(labelValue);
+        return count == null ? 0 : count.sum();
+    }
+
+    @Override public String getName() { return name; }
+    @Override public String getHelp() { return help; }
+    @Override public String getType() { return "counter"; }
+
+    @Override
+    public void writeSamples(Writer out) throws IOException {
+        if (label == null) {
+            out.write(name + " " + total.sum() + "\n");
+            return;
+        }
+        for (Map.Entry<String, LongAdder> entry : new TreeMap<>(byLabel).entrySet()) {
+            out.write(name + "{" + label + "=\"" + Metrics.escapeLabel(entry.getKey()) + "\"} " + entry.getValue().sum() + "\n");
+        }
+    }
+}
+
+// Latency histogram with HDR-style log-linear buckets: every power of two is split into 32 buckets, so any
+// recorded value is known to within about 3% from 1 ns up to hours, in a fixed 1,920 counters.
+// Recording is one array increment; percentiles are computed only when the histogram is read.
+class LatencyHistogram implements Metric {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final double[] EXPORTED_QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final String name, help, labels;
+    private final AtomicLongArray buckets = new AtomicLongArray((64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sumNanos = new LongAdder();
+    private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+    // Constructor for a histogram (labels is e.g. kind="name", or "" for none)
+    LatencyHistogram(String name, String help, String labels) {
+        this.name = name;
+        this.help = help;
+        this.labels = labels;
+    }
+
+    // Method to record the time since start (a Metrics.start() value; 0 means metrics were off and nothing is recorded)
+    public void recordSince(long start) {
+        if (start != 0) record(System.nanoTime() - start);
+    }
+
+    // Method to record one duration in nanoseconds
+    public void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        buckets.incrementAndGet(bucketOf(nanos));
+        count.increment();
+        sumNanos.add(nanos);
+        maxNanos.accumulate(nanos);
+    }
+
+    // Getter method to retrieve the number of recorded values
+    public long getCount() {
+        return count.sum();
+    }
+
+    // Method to read a percentile in nanoseconds (fraction between 0 and 1, nearest rank)
+    public long percentile(double fraction) {
+        long total = 0;
+        long[] counts = new long[buckets.length()];
+        for (int i = 0; i < counts.length; i++) total += counts[i] = buckets.get(i);
+        if (total == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(fraction * total));
+        for (int i = 0; i < counts.length; i++) {
+            rank -= counts[i];
+            if (rank <= 0) return Math.min(valueOf(i), maxNanos.get());
+        }
+        return maxNanos.get();
+    }
+
+    // Method to find the bucket of a value: values below 32 get their own bucket, larger values are
+    // bucketed by their highest set bit and the 5 bits below it
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    // Method to find the middle of a bucket's value range
+    static long valueOf(int bucket) {
+        if (bucket < SUB_BUCKETS) return bucket;
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        return (SUB_BUCKETS + bucket % SUB_BUCKETS) * width + width / 2;
+    }
+
+    // Exported as a Prometheus summary in seconds
+    @Override public String getName() { return name; }
+    @Override public String getHelp() { return help; }
+    @Override public String getType() { return "summary"; }
+
+    @Override
+    public void writeSamples(Writer out) throws IOException {
+        String separator = labels.isEmpty() ? "" : labels + ",";
+        for (double quantile : EXPORTED_QUANTILES) {
+            out.write(name + "{" + separator + "quantile=\"" + quantile + "\"} " + percentile(quantile) / 1e9 + "\n");
+        }
+        String suffix = labels.isEmpty() ? "" : "{" + labels + "}";
+        out.write(name + "_sum" + suffix + " " + sumNanos.sum() / 1e9 + "\n");
+        out.write(name + "_count" + suffix + " " + count.sum() + "\n");
+    }
+}
+
+// Gauge: a value read from the application each time the metrics are exported
+class Gauge implements Metric {
+    private final String name, help, labels;
+    private final DoubleSupplier value;
+
+    // Constructor for a gauge (labels is e.g. shelter="Happy Paws", or "" for none)
+    Gauge(String name, String help, String labels, DoubleSupplier value) {
+        this.name = name;
+        this.help = help;
+        this.labels = labels;
+        this.value = value;
+    }
+
+    @Override public String getName() { return name; }
+    @Override public String getHelp() { return help; }
+    @Override public String getType() { return "gauge"; }
+
+    @Override
+    public void writeSamples(Writer out) throws IOException {
+        out.write(name + (labels.isEmpty() ? "" : "{" + labels + "}") + " " + value.getAsDouble() + "\n");
+    }
+}
+
+// JFR event for an adoption attempt (recorded only while a flight recording with this event enabled is running)
+@jdk.jfr.Name("shelter.Adoption")
+@jdk.jfr.Label("Adoption")
+@jdk.jfr.Category("Pet Adoption")
+class AdoptionEvent extends jdk.jfr.Event {
+    @jdk.jfr.Label("Adopter ID")
+    String adopterId;
+    @jdk.jfr.Label("Pet ID")
+    String petId;
+    @jdk.jfr.Label("Outcome")
+    String outcome;
+}
+
+// JFR event for a pet search
+@jdk.jfr.Name("shelter.PetSearch")
+@jdk.jfr.Label("Pet Search")
+@jdk.jfr.Category("Pet Adoption")
+class PetSearchEvent extends jdk.jfr.Event {
+    @jdk.jfr.Label("Kind")
+    String kind;
+    @jdk.jfr.Label("Criteria")
+    String criteria;
+    @jdk.jfr.Label("Results")
+    int results;
+}
+
+// Metrics of the adoption system, exported in the Prometheus text format (GET /metrics on ShelterHttpServer,
+// or writeTo(file)). Metrics are off by default: instrumented code calls Metrics.start(), which returns 0
+// without reading the clock when they are off, and every recording call returns at once for a 0 start.
+// Turn them on with Metrics.setEnabled(true) or -Dshelter.metrics=true.
+class Metrics {
+    private static volatile boolean enabled = Boolean.getBoolean("shelter.metrics");
+    private static final Metrics GLOBAL = new Metrics();
+
+    final LatencyHistogram searchByName = new LatencyHistogram("shelter_search_duration_seconds", "Time taken by pet searches.", "kind=\"name\"");
+    final LatencyHistogram searchByQuery = new LatencyHistogram("shelter_search_duration_seconds", "Time taken by pet searches.", "kind=\"query\"");
+    final LatencyHistogram adoptionTime = new LatencyHistogram("shelter_adoption_duration_seconds", "Time taken by adoption attempts.", "");
+    final Counter adoptions = new Counter("shelter_adoptions_total", "Adoption attempts by outcome (success or the exception thrown).", "outcome");
+    final Counter petsAdded = new Counter("shelter_pets_added_total", "Pets added to shelters.", null);
+    final Counter donations = new Counter("shelter_donations_total", "Donations accepted.", null);
+    final Counter donatedCents = new Counter("shelter_donated_cents_total", "Money donated, in cents.", null);
+    final LatencyHistogram viewPublish = new LatencyHistogram("shelter_view_publish_duration_seconds", "Time writers spend publishing a new shelter view.", "");
+    private final List<Metric> metrics = new CopyOnWriteArrayList<>(List.of(
+            searchByName, searchByQuery, adoptionTime, adoptions, petsAdded, donations, donatedCents, viewPublish));
+    private final Map<Shelter, List<Metric>> shelterGauges = new HashMap<>(); // Guarded by this; dropped by unregisterShelter
+    private final Map<String, Shelter> sheltersByLabels = new HashMap<>(); // Guarded by this; one shelter per label set
+
+    // Method to retrieve the metrics every shelter and adopter report to
+    static Metrics global() {
+        return GLOBAL;
+    }
+
+    // Method to switch metrics collection on or off
+    static void setEnabled(boolean on) {
+        enabled = on;
+    }
+
+    // Method to check whether metrics are being collected
+    static boolean isEnabled() {
+        return enabled;
+    }
+
+    // Method to start timing an operation: the current time, or 0 when metrics are off
+    static long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    // Method to add gauges for a shelter's pet count, available pet count and donation total; returns false if the
+    // shelter was already registered. The gauges keep the shelter reachable until unregisterShelter is called.
+    public synchronized boolean registerShelter(Shelter shelter) {
+        if (shelterGauges.containsKey(shelter)) return false;
+        String labels = "shelter=\"" + escapeLabel(shelter.getShelterName()) + "\"";
+        if (sheltersByLabels.containsKey(labels)) {
+            throw new IllegalArgumentException("A shelter named " + shelter.getShelterName() + " is already registered.");
+        }
+        List<Metric> gauges = List.of(
+                new Gauge("shelter_pets", "Pets in the shelter, adopted ones included.", labels, shelter::getPetCount),
+                new Gauge("shelter_available_pets", "Pets that can still be adopted.", labels, shelter::getAvailablePetCount),
+                new Gauge("shelter_donations", "Total donations received.", labels, shelter::getTotalDonations));
+        shelterGauges.put(shelter, gauges);
+        sheltersByLabels.put(labels, shelter);
+        metrics.addAll(gauges);
+        return true;
+    }
+
+    // Method to remove a shelter's gauges, so the shelter can be garbage collected; returns false if it was not registered
+    public synchronized boolean unregisterShelter(Shelter shelter) {
+        List<Metric> gauges = shelterGauges.remove(shelter);
+        if (gauges == null) return false;
+        sheltersByLabels.values().remove(shelter);
+        metrics.removeAll(gauges);
+        return true;
+    }
+
+    // Method to record a finished adoption attempt (start is the Metrics.start() value; 0 = metrics off)
+    void adoptionFinished(long start, String outcome) {
+        if (start == 0) return;
+        adoptionTime.recordSince(start);
+        adoptions.increment(outcome);
+    }
+
+    // Method to write every metric in the Prometheus text format
+    public void writePrometheus(Writer out) throws IOException {
+        // Series sharing a name (e.g. one gauge per shelter) are written together under one description
+        Map<String, List<Metric>> families = new LinkedHashMap<>();
+        for (Metric metric : metrics) families.computeIfAbsent(metric.getName(), name -> new ArrayList<>()).add(metric);
+        for (List<Metric> family : families.values()) {
+            Metric first = family.get(0);
+            out.write("# HELP " + first.getName() + " " + first.getHelp() + "\n# TYPE " + first.getName() + " " + first.getType() + "\n");
+            for (Metric metric : family) metric.writeSamples(out);
+        }
+        out.flush();
+    }
+
+    // Method to dump every metric to a file (written to a temporary file first, then moved into place)
+    public void writeTo(Path file) throws IOException {
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (Writer out = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+            writePrometheus(out);
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Method to escape a Prometheus label value
+    static String escapeLabel(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
+
+// ============================== Persistence Classes ==============================
+
+// Writes the payload of a journal record or snapshot
+@FunctionalInterface
+interface JournalPayload {
+    void writeTo(DataOutput out) throws IOException;
+}
+
+// Reads back a snapshot written by a JournalPayload
+@FunctionalInterface
+interface JournalReader {
+    void readFrom(DataInput in) throws IOException;
+}
+
+// Applies one journal record during recovery
+@FunctionalInterface
+interface JournalReplayer {
+    void replay(byte type, DataInput in) throws IOException;
+}
+
+// Tuning knobs for the shelter's write-ahead log
+class JournalOptions {
+    private long flushIntervalMillis = 5; // How long appends are grouped into one batch before it is written (group commit)
+    private int fsyncEveryRecords = 1; // fsync once at least this many records were written (0 = only on sync/close).
+                                       // With 1, a mutation returns only once its record is on disk; with any other value
+                                       // mutations return right away and a crash can lose the records not fsynced yet.
+    private long snapshotEveryRecords = 100_000; // Take a compacted snapshot after this many records (0 = never)
+
+    // Setter methods (chainable) for each option
+    public JournalOptions flushIntervalMillis(long flushIntervalMillis) {
+        this.flushIntervalMillis = Math.max(1, flushIntervalMillis);
+        return this;
+    }
+
+    public JournalOptions fsyncEveryRecords(int fsyncEveryRecords) {
+        this.fsyncEveryRecords = Math.max(0, fsyncEveryRecords);
+        return this;
+    }
+
+    public JournalOptions snapshotEveryRecords(long snapshotEveryRecords) {
+        this.snapshotEveryRecords = Math.max(0, snapshotEveryRecords);
+        return this;
+    }
+
+    // Getter methods for each option
+    public long getFlushIntervalMillis() { return flushIntervalMillis; }
+    public int getFsyncEveryRecords() { return fsyncEveryRecords; }
+    public long getSnapshotEveryRecords() { return snapshotEveryRecords; }
+}
+
+// Per-thread buffer that a record is encoded into before it is handed to the journal.
+// Layout of a record on disk: [int bodyLength][int crc32(body)][body = byte type, long seq, payload]
+class JournalRecordBuffer extends ByteArrayOutputStream {
+    private final DataOutputStream data = new DataOutputStream(this);
+    private final CRC32 crc = new CRC32();
+
+    // Method to start a new record; the sequence number is filled in later by the journal
+    void begin(byte type) {
+        reset();
+        write(type);
+        for (int i = 0; i < Long.BYTES; i++) write(0);
+    }
+
+    // Getter method to retrieve the stream the payload is written to
+    DataOutput data() {
+        return data;
+    }
+
+    // Method to stamp the sequence number and copy the finished record into the journal's batch buffer
+    ByteBuffer finishInto(long seq, ByteBuffer target) {
+        for (int i = 0; i < Long.BYTES; i++) buf[1 + i] = (byte) (seq >>> (56 - 8 * i));
+        crc.reset();
+        crc.update(buf, 0, count);
+        int needed = 2 * Integer.BYTES + count;
+        if (target.remaining() < needed) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(target.capacity() * 2, target.position() + needed));
+            target.flip();
+            target = grown.put(target);
+        }
+        return target.putInt(count).putInt((int) crc.getValue()).put(buf, 0, count);
+    }
+}
+
+// Append-only write-ahead log plus compacted snapshots for one shelter.
+// Mutations are encoded into compact binary records and grouped into batches by a background thread,
+// which writes each batch with one FileChannel write and (depending on the options) one fsync. A snapshot
+// stores the whole state together with the sequence number it covers and starts a new log segment, so
+// recovery loads the snapshot and replays only the records after it.
+class ShelterJournal implements Closeable {
+    // Record types
+    static final byte PET_ADDED = 1;
+    static final byte ADOPTION_STATUS = 2;
+    static final byte DONATION = 3;
+    static final byte ADOPTER_RATED = 4;
+    static final byte SHELTER_RATED = 5;
+    static final byte DONATION_BATCH = 6;
+    static final byte PETS_ADDED = 7;
+    static final byte PRICING_CHANGED = 8;
+    static final byte ADOPTION_COMPLETED = 9;
+
+    private static final int SNAPSHOT_MAGIC = 0x50455453; // "PETS"
+    private static final String SNAPSHOT_FILE = "snapshot.bin";
+    private static final String SEGMENT_PREFIX = "wal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final int FLUSH_THRESHOLD_BYTES = 256 * 1024; // Wake the flusher early once a batch gets this big
+    static final int MAX_RECORD_BYTES = 64 * 1024 * 1024; // Larger records are refused, so recovery can tell a damaged length
+
+    private final Path directory;
+    private final JournalOptions options;
+    private final ReentrantLock appendLock = new ReentrantLock(); // Orders mutations; guards pending, pendingRecords, lastSeq and syncedSeq
+    private final Condition flushRequested = appendLock.newCondition();
+    private final Condition synced = appendLock.newCondition(); // Signalled whenever syncedSeq advances or the journal stops
+    private final Object channelLock = new Object(); // Guards channel, writing and unsyncedRecords
+    private final Object snapshotLock = new Object(); // Lets one snapshot run at a time
+    private final AtomicBoolean snapshotScheduled = new AtomicBoolean();
+    private final ThreadLocal<JournalRecordBuffer> recordBuffers = ThreadLocal.withInitial(JournalRecordBuffer::new);
+    private final AtomicLong recordsSinceSnapshot = new AtomicLong();
+    private ByteBuffer pending = ByteBuffer.allocate(64 * 1024); // Records waiting for the next batch
+    private ByteBuffer writing = ByteBuffer.allocate(64 * 1024); // Batch currently being written
+    private int pendingRecords;
+    private long lastSeq;
+    private long syncedSeq; // Every record up to this sequence number is on disk
+    private boolean stopped; // Set once close() wrote the last batch
+    private long unsyncedRecords;
+    private FileChannel channel;
+    private Supplier<JournalPayload> snapshotState; // Captures the state while no mutation runs; the payload writes it later
+    private Thread flusher;
+    private ExecutorService snapshotter; // Writes the automatic snapshots, so the flusher keeps flushing meanwhile
+    private volatile boolean closed;
+    private volatile IOException failure;
+
+    // Constructor for a journal stored in the given directory
+    public ShelterJournal(Path directory, JournalOptions options) {
+        this.directory = directory;
+        this.options = options;
+    }
+
+    // Method to load the latest snapshot and replay the log tail after it; must be called before start()
+    public void recover(JournalReader snapshotReader, JournalReplayer replayer) throws IOException {
+        Files.createDirectories(directory);
+        long snapshotSeq = 0;
+        Path snapshot = directory.resolve(SNAPSHOT_FILE);
+        if (Files.exists(snapshot)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshot), 1 << 16))) {
+                if (in.readInt() != SNAPSHOT_MAGIC) throw new IOException("Not a shelter snapshot: " + snapshot);
+                snapshotSeq = in.readLong();
+                snapshotReader.readFrom(in);
+            }
+        }
+        lastSeq = snapshotSeq;
+        syncedSeq = snapshotSeq;
+
+        // Skip segments that end before the snapshot, then replay the rest in order
+        List<Path> segments = listSegments();
+        for (int i = 0; i < segments.size(); i++) {
+            boolean last = i + 1 == segments.size();
+            if (last || segmentStart(segments.get(i + 1)) > snapshotSeq + 1) replaySegment(segments.get(i), snapshotSeq, replayer, last);
+        }
+    }
+
+    // Method to open a fresh log segment and start the background flusher
+    public void start(Supplier<JournalPayload> snapshotState) throws IOException {
+        this.snapshotState = snapshotState;
+        synchronized (channelLock) {
+            channel = openSegment(lastSeq + 1);
+        }
+        snapshotter = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "shelter-journal-snapshotter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher = new Thread(this::runFlusher, "shelter-journal-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    // Method to log a mutation and apply it as one step.
+    // The record is encoded on the calling thread first, so a payload that cannot be written (e.g. a string over
+    // 64 KB) rejects the mutation instead of leaving it applied but unlogged. The mutation then runs and takes its
+    // sequence number under one lock, so the log replays mutations in exactly the order they were applied (a pet's
+    // ordinal matches its place in the log, and an adoption is never logged before the pet it adopts). With
+    // fsyncEveryRecords = 1 the caller then waits until the batch holding its record is fsynced; callers that
+    // arrive during one fsync share the next one (group commit).
+    public void record(byte type, Runnable mutation, JournalPayload payload) {
+        if (failure != null) throw new UncheckedIOException("Journal is unusable", failure);
+        JournalRecordBuffer record = recordBuffers.get();
+        record.begin(type);
+        try {
+            payload.writeTo(record.data());
+            if (record.size() > MAX_RECORD_BYTES) throw new IOException("Journal record of " + record.size() + " bytes is larger than " + MAX_RECORD_BYTES);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        boolean durable = options.getFsyncEveryRecords() == 1;
+        appendLock.lock();
+        try {
+            mutation.run();
+            long seq = ++lastSeq;
+            pending = record.finishInto(seq, pending);
+            pendingRecords++;
+            if (durable || pending.position() >= FLUSH_THRESHOLD_BYTES) flushRequested.signal();
+            recordsSinceSnapshot.incrementAndGet();
+            if (!durable) return;
+            while (syncedSeq < seq && failure == null && !stopped) synced.awaitUninterruptibly();
+            if (syncedSeq < seq) throw new UncheckedIOException("Record was applied but not made durable", failure != null ? failure : new IOException("Journal is closed"));
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    // Method to write and fsync everything appended so far
+    public void sync() throws IOException {
+        drain(true);
+    }
+
+    // Method to take a compacted snapshot of the current state and drop the log segments it covers.
+    // Mutations are held off only while the state is captured and the log is cut at the snapshot's sequence
+    // number; the snapshot file is written and fsynced outside the locks while mutations and flushes go on.
+    public void snapshot() throws IOException {
+        synchronized (snapshotLock) {
+            JournalPayload state;
+            long seq;
+            long captured;
+            synchronized (channelLock) {
+                drainLocked(false); // Write the bulk of the pending batch before mutations are held off
+                appendLock.lock();
+                try {
+                    state = snapshotState.get();
+                    seq = lastSeq;
+                    captured = recordsSinceSnapshot.get();
+                    drainLocked(true); // Everything up to seq ends up in the old segments
+                    channel.close();
+                    channel = openSegment(seq + 1); // Records after the snapshot go to a new segment
+                } finally {
+                    appendLock.unlock();
+                }
+            }
+            Path temporary = directory.resolve(SNAPSHOT_FILE + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary), 1 << 16))) {
+                out.writeInt(SNAPSHOT_MAGIC);
+                out.writeLong(seq);
+                state.writeTo(out);
+            }
+            try (FileChannel file = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+                file.force(true); // Make the snapshot durable before it replaces the old one
+            }
+            Files.move(temporary, directory.resolve(SNAPSHOT_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            recordsSinceSnapshot.addAndGet(-captured); // Records logged while the file was written still count
+            for (Path segment : listSegments()) {
+                if (segmentStart(segment) <= seq) Files.deleteIfExists(segment);
+            }
+        }
+    }
+
+    // Method to flush, fsync and stop the background flusher
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        appendLock.lock();
+        try {
+            flushRequested.signal();
+        } finally {
+            appendLock.unlock();
+        }
+        try {
+            if (flusher != null) flusher.join();
+            if (snapshotter != null) {
+                snapshotter.shutdown(); // Let a running snapshot finish before the log is closed
+                snapshotter.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (channelLock) {
+            if (channel != null) {
+                drainLocked(true);
+                channel.close();
+            }
+        }
+        appendLock.lock();
+        try {
+            stopped = true; // Wake callers whose records came in too late to be written
+            synced.signalAll();
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    // Background loop: every flush interval, write whatever was appended as one batch
+    private void runFlusher() {
+        while (!closed) {
+            appendLock.lock();
+            try {
+                if (pendingRecords == 0) flushRequested.await(options.getFlushIntervalMillis(), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                appendLock.unlock();
+            }
+            try {
+                drain(false);
+            } catch (IOException e) {
+                fail(e);
+                return;
+            }
+            long snapshotEvery = options.getSnapshotEveryRecords();
+            if (snapshotEvery > 0 && recordsSinceSnapshot.get() >= snapshotEvery && snapshotScheduled.compareAndSet(false, true)) {
+                snapshotter.execute(this::runSnapshot);
+            }
+        }
+    }
+
+    // Background task: take an automatic snapshot
+    private void runSnapshot() {
+        try {
+            snapshot();
+        } catch (IOException e) {
+            fail(e);
+        } finally {
+            snapshotScheduled.set(false);
+        }
+    }
+
+    // Method to mark the journal as unusable after a failed write
+    private void fail(IOException e) {
+        failure = e; // Later mutations will fail fast instead of silently losing data
+        appendLock.lock();
+        try {
+            synced.signalAll(); // Callers waiting for an fsync get the error
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    // Method to write the pending batch to the log
+    private void drain(boolean forceSync) throws IOException {
+        synchronized (channelLock) {
+            drainLocked(forceSync);
+        }
+    }
+
+    // Method to swap out the pending batch and write it with one channel write (caller holds channelLock)
+    private void drainLocked(boolean forceSync) throws IOException {
+        int records;
+        long batchSeq;
+        appendLock.lock();
+        try {
+            ByteBuffer batch = pending;
+            pending = writing;
+            writing = batch;
+            records = pendingRecords;
+            pendingRecords = 0;
+            batchSeq = lastSeq;
+        } finally {
+            appendLock.unlock();
+        }
+        writing.flip();
+        while (writing.hasRemaining()) channel.write(writing);
+        writing.clear();
+        unsyncedRecords += records;
+        int fsyncEvery = options.getFsyncEveryRecords();
+        if (unsyncedRecords > 0 && (forceSync || (fsyncEvery > 0 && unsyncedRecords >= fsyncEvery))) {
+            channel.force(false);
+            unsyncedRecords = 0;
+            appendLock.lock();
+            try {
+                syncedSeq = batchSeq; // Everything written so far is durable now
+                synced.signalAll();
+            } finally {
+                appendLock.unlock();
+            }
+        }
+    }
+
+    // Method to replay the records of one segment. Only the last record of the last segment can have been cut off
+    // by a crash: such a torn tail is truncated. Any other bad record means the log is damaged, and recovery fails
+    // instead of silently dropping the records after it.
+    private void replaySegment(Path segment, long snapshotSeq, JournalReplayer replayer, boolean last) throws IOException {
+        long size = Files.size(segment);
+        long validBytes = 0;
+        boolean torn = false;
+        CRC32 crc = new CRC32();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(segment), 1 << 16))) {
+            while (true) {
+                if (validBytes == size) break; // Clean end of the segment
+                long end = validBytes + 2L * Integer.BYTES; // Where the record header ends
+                int length = end <= size ? in.readInt() : 0;
+                if (end <= size && (length < 1 + Long.BYTES || length > MAX_RECORD_BYTES)) {
+                    if (!last || !onlyZerosFrom(segment, validBytes)) { // A crash may leave a zero-filled tail, never another length
+                        throw new IOException("Corrupt journal record length " + length + " in " + segment + " at byte " + validBytes);
+                    }
+                    torn = true;
+                    break;
+                }
+                end += length;
+                if (end > size) { // Cut off by the end of the file
+                    if (!last) throw new IOException("Journal segment " + segment + " ends inside a record at byte " + validBytes);
+                    torn = true;
+                    break;
+                }
+                int checksum = in.readInt();
+                byte[] body = new byte[length];
+                in.readFully(body);
+                crc.reset();
+                crc.update(body, 0, length);
+                if ((int) crc.getValue() != checksum) {
+                    if (!last || (end != size && !onlyZerosFrom(segment, end))) {
+                        throw new IOException("Corrupt journal record in " + segment + " at byte " + validBytes);
+                    }
+                    torn = true; // The final write before a crash reached the file's length but not all of its data
+                    break;
+                }
+                DataInputStream record = new DataInputStream(new ByteArrayInputStream(body));
+                byte type = record.readByte();
+                long seq = record.readLong();
+                if (seq > snapshotSeq) {
+                    replayer.replay(type, record);
+                    lastSeq = seq;
+                    syncedSeq = seq;
+                }
+                validBytes += 2 * Integer.BYTES + length;
+            }
+        }
+        if (torn) {
+            try (FileChannel file = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+                file.truncate(validBytes); // Drop the torn tail so it is never read again
+            }
+        }
+    }
+
+    // Method to check whether a file holds nothing but zero bytes from an offset on
+    private static boolean onlyZerosFrom(Path file, long offset) throws IOException {
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(file), 1 << 16)) {
+            in.skipNBytes(offset);
+            for (int b = in.read(); b >= 0; b = in.read()) {
+                if (b != 0) return false;
+            }
+        }
+        return true;
+    }
+
+    // Method to list the log segments sorted by their first sequence number
+    private List<Path> listSegments() throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            files.forEach(segments::add);
+        }
+        segments.sort(Comparator.comparingLong(ShelterJournal::segmentStart));
+        return segments;
+    }
+
+    // Method to read the first sequence number from a segment's file name
+    private static long segmentStart(Path segment) {
+        String fileName = segment.getFileName().toString();
+        return Long.parseLong(fileName.substring(SEGMENT_PREFIX.length(), fileName.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    // Method to open (or create) the segment whose first record has the given sequence number
+    private FileChannel openSegment(long startSeq) throws IOException {
+        Path segment = directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, startSeq, SEGMENT_SUFFIX));
+        return FileChannel.open(segment, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+}
+
+// ============================== Bulk Import Classes ==============================
+
+// One rejected row of a bulk import
+class ImportError {
+    private final long lineNumber;
+    private final String reason;
+
+    // Constructor for a rejected row
+    ImportError(long lineNumber, String reason) {
+        this.lineNumber = lineNumber;
+        this.reason = reason;
+    }
+
+    // Getter method to retrieve the 1-based line number of the rejected row
+    public long getLineNumber() {
+        return lineNumber;
+    }
+
+    // Getter method to retrieve why the row was rejected
+    public String getReason() {
+        return reason;
+    }
+
+    @Override
+    public String toString() {
+        return "Line " + lineNumber + ": " + reason;
+    }
+}
+
+// Outcome of a bulk import: counts, throughput and the rejected rows
+class ImportReport {
+    private final long rowsRead;
+    private final long rowsImported;
+    private final List<ImportError> errors;
+    private final long elapsedNanos;
+
+    // Constructor for a finished import
+    ImportReport(long rowsRead, long rowsImported, List<ImportError> errors, long elapsedNanos) {
+        this.rowsRead = rowsRead;
+        this.rowsImported = rowsImported;
+        this.errors = Collections.unmodifiableList(errors);
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    // Getter methods for the import's results
+    public long getRowsRead() { return rowsRead; }
+    public long getRowsImported() { return rowsImported; }
+    public List<ImportError> getErrors() { return errors; }
+    public long getElapsedNanos() { return elapsedNanos; }
+
+    // Method to compute the import throughput in rows per second
+    public double getRowsPerSecond() {
+        return elapsedNanos == 0 ? 0 : rowsRead / (elapsedNanos / 1e9);
+    }
+
+    // Method to write every rejected row to a text file, one per line
+    public void writeErrorReport(Path file) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            for (ImportError error : errors) {
+                writer.write(error.toString());
+                writer.newLine();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%,d rows read, %,d imported, %,d rejected in %.2f s (%,.0f rows/s)",
+                rowsRead, rowsImported, errors.size(), elapsedNanos / 1e9, getRowsPerSecond());
+    }
+}
+
+// Parsed and validated rows of one chunk of the input file
+class ImportChunkResult {
+    final List<Pet> pets = new ArrayList<>();
+    final List<ImportError> errors = new ArrayList<>(); // Line numbers are relative to the chunk until merged
+    int lines;
+}
+
+// Fork-join task that parses and validates one chunk of a memory-mapped file, line by line.
+// Rejected rows are collected with their reason; no exception is thrown for a bad row.
+class ImportChunkTask extends RecursiveTask<ImportChunkResult> {
+    private static final long serialVersionUID = 1L;
+    static final String[] FIELDS = {"petId", "name", "species", "breed", "size", "gender", "temperament", "age", "healthStatus"};
+    private static final int AGE = 7;
+
+    private final ByteBuffer chunk;
+    private final int[] csvColumns; // Position of each of FIELDS in a CSV row, or null for JSON lines
+    private final Map<String, String> canonical = new HashMap<>(); // Shares repeated category strings within the chunk
+
+    // Constructor for a task over one chunk (csvColumns is null for JSON input)
+    ImportChunkTask(ByteBuffer chunk, int[] csvColumns) {
+        this.chunk = chunk;
+        this.csvColumns = csvColumns;
+    }
+
+    @Override
+    protected ImportChunkResult compute() {
+        ImportChunkResult result = new ImportChunkResult();
+        byte[] line = new byte[256];
+        String[] values = new String[FIELDS.length];
+        int position = 0, limit = chunk.limit();
+        while (position < limit) {
+            // Copy one line (without its line break) out of the mapped buffer
+            int length = 0;
+            while (position < limit && chunk.get(position) != '\n') {
+                if (length == line.length) line = Arrays.copyOf(line, length * 2);
+                line[length++] = chunk.get(position++);
+            }
+            position++; // Skip the '\n'
+            if (length > 0 && line[length - 1] == '\r') length--;
+            result.lines++;
+            if (isBlank(line, length)) continue;
+
+            Arrays.fill(values, null);
+            String problem = csvColumns != null ? parseCsv(line, length, values) : parseJson(line, length, values);
+            if (problem == null) problem = validate(values);
+            if (problem != null) {
+                if (!problem.isEmpty()) result.errors.add(new ImportError(result.lines, problem));
+                continue;
+            }
+            result.pets.add(Pet.createValidated(values[0], values[1], shared(values[2]), shared(values[3]), shared(values[4]),
+                    shared(values[5]), shared(values[6]), parseAge(values[AGE]), shared(values[8])));
+        }
+        return result;
+    }
+
+    // Method to check the parsed values; returns the rejection reason or null if the row is valid
+    private static String validate(String[] values) {
+        for (int i = 0; i < FIELDS.length; i++) {
+            if (values[i] == null || values[i].isEmpty()) return "Missing " + FIELDS[i];
+        }
+        int age = parseAge(values[AGE]);
+        if (age == Integer.MIN_VALUE) return "Age is not a whole number: " + values[AGE];
+        if (!Pet.isValidAge(age)) return "Age cannot be negative for " + values[1];
+        if (!Pet.isFitForAdoption(values[8])) return values[1] + " is not fit for adoption (" + values[8] + ")";
+        return null;
+    }
+
+    // Method to parse an age without exceptions; returns Integer.MIN_VALUE if it is not a whole number
+    static int parseAge(String text) {
+        int i = 0, sign = 1;
+        if (text.charAt(0) == '-') {
+            sign = -1;
+            i = 1;
+        }
+        if (i == text.length() || text.length() - i > 9) return Integer.MIN_VALUE;
+        int value = 0;
+        for (; i < text.length(); i++) {
+            char digit = text.charAt(i);
+            if (digit < '0' || digit > '9') return Integer.MIN_VALUE;
+            value = value * 10 + (digit - '0');
+        }
+        return sign * value;
+    }
+
+    // Method to parse one CSV row into values (fields may be quoted with "", and "" inside quotes is a quote)
+    private String parseCsv(byte[] line, int length, String[] values) {
+        int column = 0, position = 0;
+        ByteArrayOutputStream quoted = null;
+        while (position <= length) {
+            String field;
+            if (position < length && line[position] == '"') {
+                if (quoted == null) quoted = new ByteArrayOutputStream();
+                quoted.reset();
+                position++;
+                while (true) {
+                    if (position >= length) return "Unterminated quoted field (a row must fit on one line)";
+                    if (line[position] == '"') {
+                        if (position + 1 < length && line[position + 1] == '"') {
+                            quoted.write('"');
+                            position += 2;
+                            continue;
+                        }
+                        position++;
+                        break;
+                    }
+                    quoted.write(line[position++]);
+                }
+                if (position < length && line[position] != ',') return "Unexpected text after quoted field " + (column + 1);
+                field = quoted.toString(StandardCharsets.UTF_8);
+            } else {
+                int start = position;
+                while (position < length && line[position] != ',') position++;
+                field = new String(line, start, position - start, StandardCharsets.UTF_8).trim();
+            }
+            for (int i = 0; i < csvColumns.length; i++) if (csvColumns[i] == column) values[i] = field;
+            column++;
+            position++; // Skip the ','
+        }
+        return null;
+    }
+
+    // Method to parse one flat JSON object per line, e.g. {"petId": "P1", "age": 3, ...}.
+    // Lines holding only the brackets of a surrounding array are skipped (returns "" = skip silently).
+    private String parseJson(byte[] line, int length, String[] values) {
+        int position = skipSpace(line, 0, length);
+        if (position < length && (line[position] == '[' || line[position] == ']')) {
+            int rest = skipSpace(line, position + 1, length);
+            if (rest == length || (rest + 1 == length && line[rest] == ',')) return "";
+        }
+        if (position >= length || line[position] != '{') return "Expected a JSON object";
+        position++;
+        StringBuilder text = new StringBuilder();
+        while (true) {
+            position = skipSpace(line, position, length);
+            if (position < length && line[position] == '}') break;
+            if (position >= length || line[position] != '"') return "Expected a field name";
+            position = readJsonString(line, position, length, text);
+            if (position < 0) return "Malformed string";
+            String key = text.toString();
+            position = skipSpace(line, position, length);
+            if (position >= length || line[position] != ':') return "Expected ':' after \"" + key + "\"";
+            position = skipSpace(line, position + 1, length);
+            if (position < length && line[position] == '"') {
+                position = readJsonString(line, position, length, text);
+                if (position < 0) return "Malformed string";
+            } else {
+                int start = position;
+                while (position < length && line[position] != ',' && line[position] != '}' && line[position] != ' ') position++;
+                text.setLength(0);
+                text.append(new String(line, start, position - start, StandardCharsets.UTF_8));
+                if (text.toString().equals("null")) text.setLength(0);
+            }
+            for (int i = 0; i < FIELDS.length; i++) if (FIELDS[i].equals(key)) values[i] = text.toString();
+            position = skipSpace(line, position, length);
+            if (position < length && line[position] == ',') position++;
+            else if (position >= length || line[position] != '}') return "Expected ',' or '}'";
+        }
+        return null;
+    }
+
+    // Method to read a JSON string starting at its opening quote; returns the position after it or -1
+    private static int readJsonString(byte[] line, int position, int length, StringBuilder text) {
+        text.setLength(0);
+        int start = ++position;
+        boolean plain = true; // Fast path: no escapes, decode the bytes in one go
+        while (position < length && line[position] != '"') {
+            if (line[position] == '\\') {
+                plain = false;
+                position++;
+            }
+            position++;
+        }
+        if (position >= length) return -1;
+        String raw = new String(line, start, position - start, StandardCharsets.UTF_8);
+        if (plain) {
+            text.append(raw);
+            return position + 1;
+        }
+        for (int i = 0; i < raw.length(); i++) {
+            char c = raw.charAt(i);
+            if (c != '\\') {
+                text.append(c);
+                continue;
+            }
+            char escaped = raw.charAt(++i);
+            switch (escaped) {
+                case 'n' -> text.append('\n');
+                case 't' -> text.append('\t');
+                case 'r' -> text.append('\r');
+                case 'b' -> text.append('\b');
+                case 'f' -> text.append('\f');
+                case 'u' -> {
+                    if (i + 4 >= raw.length()) return -1;
+                    int code = 0;
+                    for (int j = 1; j <= 4; j++) {
+                        int digit = Character.digit(raw.charAt(i + j), 16);
+                        if (digit < 0) return -1;
+                        code = code * 16 + digit;
+                    }
+                    text.append((char) code);
+                    i += 4;
+                }
+                default -> text.append(escaped); // \" \\ \/
+            }
+        }
+        return position + 1;
+    }
+
+    // Method to skip spaces and tabs
+    private static int skipSpace(byte[] line, int position, int length) {
+        while (position < length && (line[position] == ' ' || line[position] == '\t')) position++;
+        return position;
+    }
+
+    // Method to check whether a line holds only whitespace
+    private static boolean isBlank(byte[] line, int length) {
+        return skipSpace(line, 0, length) == length;
+    }
+
+    // Method to reuse one String instance for repeated category values
+    private String shared(String value) {
+        String existing = canonical.putIfAbsent(value, value);
+        return existing != null ? existing : value;
+    }
+}
+
+// Streaming bulk importer for large CSV or JSON-lines intake files.
+// The file is memory-mapped one region at a time (never loaded whole), each region is cut into chunks at
+// line breaks, and the chunks are parsed and validated in parallel on a fork-join pool. Results are merged
+// in file order, rejected rows go into the report, and valid pets are added to the shelter in batches.
+//
+// CSV files need a header row naming the columns petId, name, species, breed, size, gender, temperament,
+// age and healthStatus (in any order). JSON files (.json, .jsonl, .ndjson) hold one flat object per line,
+// optionally inside a [ ... ] array with the brackets on their own lines. Rows may not span lines, so quoted CSV
+// fields cannot contain line breaks (chunks are cut at any line break). A leading UTF-8 byte order mark is skipped.
+class BulkPetImporter {
+    private static final int REGION_BYTES = 64 << 20; // Mapped at once
+    private static final int CHUNK_BYTES = 1 << 20; // Parsed by one task
+    private static final byte[] BYTE_ORDER_MARK = {(byte) 0xEF, (byte) 0xBB, (byte) 0xBF}; // U+FEFF, written by Excel
+
+    private final ForkJoinPool pool;
+    private final int batchSize;
+
+    // Constructor for an importer on the common fork-join pool that adds 10,000 pets per batch
+    public BulkPetImporter() {
+        this(ForkJoinPool.commonPool(), 10_000);
+    }
+
+    // Constructor for an importer with its own pool and batch size
+    public BulkPetImporter(ForkJoinPool pool, int batchSize) {
+        this.pool = pool;
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    // Method to import a CSV or JSON-lines file into the shelter
+    public ImportReport importFile(Path file, Shelter shelter) throws IOException {
+        String fileName = file.getFileName().toString().toLowerCase(Locale.ROOT);
+        boolean json = fileName.endsWith(".json") || fileName.endsWith(".jsonl") || fileName.endsWith(".ndjson");
+        long started = System.nanoTime();
+        long rowsRead = 0, rowsImported = 0, lineNumber = 1;
+        List<ImportError> errors = new ArrayList<>();
+        List<Pet> batch = new ArrayList<>(batchSize);
+        int[] csvColumns = null;
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            long position = 0;
+            while (position < fileSize) {
+                long length = Math.min(REGION_BYTES, fileSize - position);
+                MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                int end = (int) length;
+                if (position + length < fileSize) {
+                    end = lastLineBreak(region, end) + 1; // The cut-off last line is read with the next region
+                    if (end == 0) throw new IOException("Line " + lineNumber + " is longer than " + REGION_BYTES + " bytes");
+                }
+
+                // The first line of a CSV file is the header
+                int start = position == 0 && startsWithByteOrderMark(region, end) ? BYTE_ORDER_MARK.length : 0;
+                if (!json && csvColumns == null) {
+                    int headerEnd = nextLineBreak(region, start, end);
+                    csvColumns = parseHeader(region, start, headerEnd);
+                    start = Math.min(end, headerEnd + 1);
+                    lineNumber++;
+                }
+
+                // Cut the region into chunks at line breaks and parse them in parallel
+                List<ImportChunkTask> tasks = new ArrayList<>();
+                for (int chunkStart = start; chunkStart < end; ) {
+                    int chunkEnd = chunkStart + CHUNK_BYTES >= end ? end : nextLineBreak(region, chunkStart + CHUNK_BYTES, end) + 1;
+                    tasks.add(new ImportChunkTask(region.slice(chunkStart, Math.min(chunkEnd, end) - chunkStart), csvColumns));
+                    chunkStart = chunkEnd;
+                }
+                tasks.forEach(pool::execute);
+
+                // Merge the results in file order and insert the valid pets in batches
+                for (ImportChunkTask task : tasks) {
+                    ImportChunkResult result = task.join();
+                    for (ImportError error : result.errors) errors.add(new ImportError(lineNumber + error.getLineNumber() - 1, error.getReason()));
+                    rowsRead += result.pets.size() + result.errors.size();
+                    for (Pet pet : result.pets) {
+                        batch.add(pet);
+                        if (batch.size() == batchSize) {
+                            shelter.addPets(batch);
+                            rowsImported += batch.size();
+                            batch = new ArrayList<>(batchSize);
+                        }
+                    }
+                    lineNumber += result.lines;
+                }
+                position += end;
+            }
+        }
+        if (!batch.isEmpty()) {
+            shelter.addPets(batch);
+            rowsImported += batch.size();
+        }
+        return new ImportReport(rowsRead, rowsImported, errors, System.nanoTime() - started);
+    }
+
+    // Method to check whether the file starts with a UTF-8 byte order mark
+    private static boolean startsWithByteOrderMark(ByteBuffer region, int end) {
+        if (end < BYTE_ORDER_MARK.length) return false;
+        for (int i = 0; i < BYTE_ORDER_MARK.length; i++) if (region.get(i) != BYTE_ORDER_MARK[i]) return false;
+        return true;
+    }
+
+    // Method to map the CSV header names to the positions of the expected fields
+    private static int[] parseHeader(ByteBuffer region, int headerStart, int headerEnd) throws IOException {
+        byte[] header = new byte[headerEnd - headerStart];
+        region.get(headerStart, header);
+        String[] names = new String(header, StandardCharsets.UTF_8).trim().split(",");
+        int[] columns = new int[ImportChunkTask.FIELDS.length];
+        for (int field = 0; field < columns.length; field++) {
+            columns[field] = -1;
+            for (int column = 0; column < names.length; column++) {
+                if (names[column].trim().replace("\"", "").equalsIgnoreCase(ImportChunkTask.FIELDS[field])) columns[field] = column;
+            }
+            if (columns[field] < 0) throw new IOException("CSV header has no " + ImportChunkTask.FIELDS[field] + " column");
+        }
+        return columns;
+    }
+
+    // Method to find the next '\n' at or after a position (returns end if there is none)
+    private static int nextLineBreak(ByteBuffer region, int from, int end) {
+        for (int i = from; i < end; i++) if (region.get(i) == '\n') return i;
+        return end;
+    }
+
+    // Method to find the last '\n' before end (returns -1 if there is none)
+    private static int lastLineBreak(ByteBuffer region, int end) {
+        for (int i = end - 1; i >= 0; i--) if (region.get(i) == '\n') return i;
+        return -1;
+    }
+}
+
+// ============================== Shelter View Classes ==============================
+
+// Immutable point-in-time view of a shelter's pets and shelter reviews. Writers publish a new view with the next
+// version after every change; readers take the current one with a single volatile read and run any number of
+// queries against it without locking while pets keep being added and adopted. A view records how far the
+// shelter's append-only lists reached and holds its own AdoptedBitmap, which shares all untouched parts with
+// the views before and after it.
+final class ShelterView {
+    private final long version;
+    private final int petCount;
+    private final int adoptedCount;
+    private final int shelterReviewCount;
+    private final AdoptedBitmap adopted;
+    private final PetStore pets;
+    private final PetIndex index;
+    private final AppendOnlyList<String> shelterReviews;
+
+    // Constructor for a view (only the shelter publishes views)
+    ShelterView(long version, int petCount, int adoptedCount, int shelterReviewCount, AdoptedBitmap adopted,
+                PetStore pets, PetIndex index, AppendOnlyList<String> shelterReviews) {
+        this.version = version;
+        this.petCount = petCount;
+        this.adoptedCount = adoptedCount;
+        this.shelterReviewCount = shelterReviewCount;
+        this.adopted = adopted;
+        this.pets = pets;
+        this.index = index;
+        this.shelterReviews = shelterReviews;
+    }
+
+    // Method to build the view that follows this one
+    ShelterView next(int petCount, int adoptedCount, int shelterReviewCount, AdoptedBitmap adopted) {
+        return new ShelterView(version + 1, petCount, adoptedCount, shelterReviewCount, adopted, pets, index, shelterReviews);
+    }
+
+    // Getter method to retrieve the view's adoption bitmap
+    AdoptedBitmap getAdopted() {
+        return adopted;
+    }
+
+    // Method to read an ordinal's adoption status without a bounds check (for the index's query loops)
+    boolean adopted(int ordinal) {
+        return adopted.get(ordinal);
+    }
+
+    // Getter method to retrieve the version (every published view has a higher version than the one before)
+    public long getVersion() {
+        return version;
+    }
+
+    // Getter method to retrieve the number of pets in the view (ordinals run from 0 to this - 1)
+    public int getPetCount() {
+        return petCount;
+    }
+
+    // Getter method to retrieve the number of pets in the view that can still be adopted
+    public int getAvailablePetCount() {
+        return petCount - adoptedCount;
+    }
+
+    // Getter method to retrieve the number of pets in the view that are adopted
+    public int getAdoptedPetCount() {
+        return adoptedCount;
+    }
+
+    // Getter method to retrieve the number of shelter reviews in the view
+    public int getShelterReviewCount() {
+        return shelterReviewCount;
+    }
+
+    // Method to retrieve the pet at an ordinal (its fee and adoption flag are live; use isAdopted for the view's status)
+    public Pet getPet(int ordinal) {
+        return pets.get(Objects.checkIndex(ordinal, petCount));
+    }
+
+    // Method to check whether the pet at an ordinal was adopted when the view was published
+    public boolean isAdopted(int ordinal) {
+        return adopted.get(Objects.checkIndex(ordinal, petCount));
+    }
+
+    // Method to find the first pet in the view with the given attribute value (case-insensitive); null if there is none
+    public Pet first(PetAttribute attribute, String value) {
+        int ordinal = index.first(attribute, value, this);
+        return ordinal < 0 ? null : pets.get(ordinal);
+    }
+
+    // Method to run a combined query against the view and return the matching ordinals in insertion order
+    public IntList query(PetQuery query) {
+        return index.query(query, this);
+    }
+
+    // Method to find the pets in the view that match a combined query
+    public List<Pet> findPets(PetQuery query) {
+        IntList ordinals = query(query);
+        List<Pet> matches = new ArrayList<>(ordinals.size());
+        for (int i = 0; i < ordinals.size(); i++) matches.add(pets.get(ordinals.get(i)));
+        return Collections.unmodifiableList(matches);
+    }
+
+    // Method to retrieve the shelter reviews in the view, oldest first (later reviews never show up in the list)
+    public List<String> getShelterReviews() {
+        return shelterReviews.prefix(shelterReviewCount);
+    }
+}
+
+// ============================== Shelter Class ==============================
+class Shelter implements Closeable {
+    private static final String RATING_RANGE_MESSAGE =
+            "Rating must be between " + RatingAggregate.MIN_RATING + " and " + RatingAggregate.MAX_RATING + " stars.";
+
+    // Instance variables (attributes) representing the properties of a shelter
+    private String shelterName;
+    private volatile EventBus events; // Where the shelter's events go (null = the default bus)
+    private ShelterJournal journal; // Write-ahead log for the shelter's state (null when the shelter is in-memory only)
+    private PetStore petStore; // Where the pets are kept (a plain list by default, or a columnar store)
+    private PetIndex petIndex; // Inverted index over the stored pets for fast searches
+    private AvailablePetIndex availablePets; // Sorted sets of the pets that can still be adopted, for paging
+    private PricingEngine pricing; // Current price book and repricing of stored pets
+    private PetTextIndex petText; // Full-text index over pet names and breeds
+    private ReviewIndex reviewText; // Full-text index over adopter and shelter reviews
+    private ShelterHistory history; // Time-bucketed adoptions, donations and adopter reviews
+    private volatile ShelterView view; // Latest published point-in-time view; readers never lock
+    private volatile int indexedPetCount; // Pets that are stored and indexed, so the next view may show them
+    private final Object publishLock = new Object(); // Orders the writers that publish views
+    private DonationLedger donations; // Stores the total donations and each donor's total donation amount
+    private Map<String, RatingAggregate> adopterRatings; // Stores adopter IDs and their rating statistics
+    private Map<String, String> adopterReviews; // Stores adopter IDs and their reviews
+    private RatingAggregate shelterRatings; // Stores shelter rating statistics
+    private volatile AdopterRegistry adopters; // Registered adopters; when set, only they can be rated (null = any ID)
+    private AppendOnlyList<String> shelterReviews; // Stores shelter reviews
+
+    // Constructor for creating a new Shelter object
+    public Shelter(String shelterName) {
+        this(shelterName, new ListPetStore());
+    }
+
+    // Constructor for creating a new Shelter object that keeps its pets in the given store
+    public Shelter(String shelterName, PetStore petStore) {
+        this.shelterName = shelterName;
+        this.petStore = petStore; // Initialize the pet store
+        this.petIndex = new PetIndex(); // Initialize the pet index
+        this.availablePets = new AvailablePetIndex(petStore); // Initialize the available-pet listing
+        this.pricing = new PricingEngine(shelterName, petStore, availablePets); // Start with the default fees by size
+        this.petText = new PetTextIndex(); // Initialize the full-text pet search
+        this.reviewText = new ReviewIndex(); // Initialize the full-text review search
+        this.history = new ShelterHistory(); // Initialize the history (stamped with the system clock)
+        petStore.setStatusListener(new OrdinalStatusListener() { // Keep the index current on adoption
+            @Override
+            public void onAdoptionStatusChanged(int ordinal, boolean adopted) {
+                Shelter.this.onAdoptionStatusChanged(ordinal, adopted);
+            }
+
+            @Override
+            public void onAdoptionCompleted(int ordinal, double fee) {
+                Shelter.this.onAdoptionCompleted(ordinal, fee);
+            }
+        });
+        this.donations = new DonationLedger(); // Initialize the donation ledger (total starts at zero)
+        this.adopterRatings = new ConcurrentHashMap<>(); // Initialize the adopter ratings map
+        this.adopterReviews = new ConcurrentHashMap<>(); // Initialize the adopter reviews map
+        this.shelterRatings = new RatingAggregate(); // Initialize the shelter rating statistics
+        this.shelterReviews = new AppendOnlyList<>(); // Initialize the shelter reviews list
+        this.view = new ShelterView(0, 0, 0, 0, AdoptedBitmap.EMPTY, petStore, petIndex, shelterReviews); // Publish the empty shelter
+    }
+
+    // Method to open a shelter whose state is persisted in the given directory.
+    // The latest snapshot is loaded and only the log records written after it are replayed.
+    public static Shelter open(String shelterName, Path directory, JournalOptions options) throws IOException {
+        return open(shelterName, directory, options, new ListPetStore());
+    }
+
+    // Method to open a persistent shelter that keeps its pets in the given store
+    public static Shelter open(String shelterName, Path directory, JournalOptions options, PetStore petStore) throws IOException {
+        Shelter shelter = new Shelter(shelterName, petStore);
+        ShelterJournal journal = new ShelterJournal(directory, options);
+        journal.recover(shelter::readSnapshot, shelter::replay); // Rebuild the state (nothing is logged while the journal is unset)
+        journal.start(shelter::captureSnapshot);
+        shelter.journal = journal; // From now on every mutation is logged
+        return shelter;
+    }
+
+    // Setter method to attach the registry of adopters this shelter works with
+    public void setAdopterRegistry(AdopterRegistry adopters) {
+        this.adopters = adopters;
+    }
+
+    // Getter method to retrieve the attached adopter registry (null if none)
+    public AdopterRegistry getAdopterRegistry() {
+        return adopters;
+    }
+
+    // Setter method to send this shelter's events to a specific bus instead of the default one
+    public void setEventBus(EventBus events) {
+        this.events = events;
+    }
+
+    // Setter method to change the clock that adoptions, donations and reviews are stamped with (e.g. in tests)
+    public void setClock(Clock clock) {
+        history.setClock(clock);
+    }
+
+    // Getter method to retrieve the shelter's history for windowed queries
+    public ShelterHistory getHistory() {
+        return history;
+    }
+
+    // Method to read the time a mutation happened (replay uses the time logged with the record instead)
+    private long eventTime() {
+        return history.now();
+    }
+
+    // Method to take the latest point-in-time view of the shelter (one volatile read; never blocks or copies)
+    public ShelterView view() {
+        return view;
+    }
+
+    // Method to publish a view that includes every pet and shelter review stored so far
+    private void publishAdded() {
+        long start = Metrics.start();
+        synchronized (publishLock) {
+            ShelterView current = view;
+            int petCount = indexedPetCount, adopted = 0; // Not petStore.size(): a pet being added may not be indexed yet
+            AdoptedBitmap.Editor bitmap = null;
+            for (int ordinal = current.getPetCount(); ordinal < petCount; ordinal++) {
+                if (!petStore.get(ordinal).isAdopted()) continue;
+                if (bitmap == null) bitmap = current.getAdopted().edit();
+                bitmap.set(ordinal, true); // Restored from a snapshot or log already adopted (or adopted before it was published)
+                adopted++;
+            }
+            view = current.next(petCount, current.getAdoptedPetCount() + adopted, shelterReviews.size(),
+                    bitmap == null ? current.getAdopted() : bitmap.build());
+        }
+        Metrics.global().viewPublish.recordSince(start);
+    }
+
+    // Method to publish a pet's adoption status change. The pet's status is read again under the lock, so
+    // listener calls that arrive out of order still leave the view with the pet's latest status.
+    private void publishStatus(int ordinal) {
+        long start = Metrics.start();
+        synchronized (publishLock) {
+            ShelterView current = view;
+            if (ordinal < current.getPetCount()) { // Unpublished pets get their status from publishAdded
+                boolean adopted = petStore.get(ordinal).isAdopted();
+                if (adopted != current.adopted(ordinal)) {
+                    view = current.next(current.getPetCount(), current.getAdoptedPetCount() + (adopted ? 1 : -1),
+                            current.getShelterReviewCount(), current.getAdopted().with(ordinal, adopted));
+                }
+            }
+        }
+        Metrics.global().viewPublish.recordSince(start);
+    }
+
+    // Getter method to retrieve the shelter's name
+    public String getShelterName() {
+        return shelterName;
+    }
+
+    // Method to get the bus the shelter publishes to
+    EventBus events() {
+        EventBus bus = events;
+        return bus != null ? bus : EventBus.defaultBus();
+    }
+
+    // Method to publish a rejected request (callers pass constants, or build the message only if anyone listens)
+    private void reject(String message) {
+        events().publish(EventType.REQUEST_REJECTED, null, message, 0, 0, 0);
+    }
+
+    // Method to take a compacted snapshot now (only for persistent shelters)
+    public void snapshot() throws IOException {
+        if (journal != null) journal.snapshot();
+    }
+
+    // Method to flush and close the write-ahead log (does nothing for in-memory shelters)
+    @Override
+    public void close() throws IOException {
+        if (journal != null) journal.close();
+    }
+
+    // Method to add a pet to the shelter; returns the pet as the shelter stores it (a view for columnar stores)
+    public Pet addPet(Pet pet) {
+        Pet[] stored = new Pet[1];
+        mutate(ShelterJournal.PET_ADDED, () -> stored[0] = insertPet(pet), out -> writePet(out, pet)); // Add the pet and log it
+        if (Metrics.isEnabled()) Metrics.global().petsAdded.add(1);
+        EventBus bus = events();
+        if (bus.hasSubscribers()) bus.publish(EventType.PET_ADDED, pet.getName(), null, 0, 0, 0);
+        return stored[0];
+    }
+
+    // Method to add many pets at once (e.g. from a bulk import): one journal record and one event per batch
+    public void addPets(Collection<Pet> pets) {
+        if (pets.isEmpty()) return;
+        mutate(ShelterJournal.PETS_ADDED, () -> insertPets(pets), out -> {
+            out.writeInt(pets.size());
+            for (Pet pet : pets) writePet(out, pet);
+        });
+        if (Metrics.isEnabled()) Metrics.global().petsAdded.add(pets.size());
+        events().publish(EventType.PETS_ADDED, null, null, 0, pets.size(), 0);
+    }
+
+    // Method to store and index several pets while holding the shelter's lock once
+    private synchronized void insertPets(Collection<Pet> pets) {
+        for (Pet pet : pets) storePet(pet);
+        publishAdded(); // One view for the whole batch
+    }
+
+    // Method to store and index a pet and publish it
+    private synchronized Pet insertPet(Pet pet) {
+        Pet stored = storePet(pet);
+        publishAdded();
+        return stored;
+    }
+
+    // Method to store and index a pet (readers see it once the next view is published)
+    private Pet storePet(Pet pet) {
+        int ordinal = petStore.add(pet); // The pet's position in the store identifies it in the index
+        double fee = pricing.priceOf(pet); // Price the pet with this shelter's rules (read under the lock, so no repricing pass misses it)
+        if (fee != pet.getAdoptionFee()) petStore.setFee(ordinal, fee);
+        petIndex.add(pet, ordinal); // Index the pet's attributes
+        petText.add(ordinal, pet); // Make the pet's name and breed searchable
+        availablePets.update(ordinal); // List the pet if it can be adopted
+        indexedPetCount = ordinal + 1; // Ready to be published (by this writer or any other)
+        return petStore.get(ordinal);
+    }
+
+    // Method called whenever one of the shelter's pets is claimed, adopted or given back
+    private void onAdoptionStatusChanged(int ordinal, boolean adopted) {
+        mutate(ShelterJournal.ADOPTION_STATUS, () -> {
+            publishStatus(ordinal);
+            availablePets.update(ordinal);
+        }, out -> {
+            out.writeInt(ordinal);
+            out.writeBoolean(adopted);
+        });
+    }
+
+    // Method called once an adoption has gone through. The history counts adoptions here rather than on the
+    // status change, because a claim is given back when the adopter's slot or funds cannot be reserved.
+    private void onAdoptionCompleted(int ordinal, double fee) {
+        long cents = DonationLedger.toCents(fee);
+        long time = eventTime();
+        mutate(ShelterJournal.ADOPTION_COMPLETED, () -> history.recordAdoption(petStore.get(ordinal).getBreed(), cents, time), out -> {
+            out.writeInt(ordinal);
+            out.writeLong(cents);
+            out.writeLong(time);
+        });
+    }
+
+    // Method to apply a mutation and, if the shelter is persistent, log it (the journal orders, encodes and syncs it)
+    private void mutate(byte type, Runnable mutation, JournalPayload payload) {
+        ShelterJournal current = journal;
+        if (current == null) mutation.run();
+        else current.record(type, mutation, payload);
+    }
+
+    // Method to accept a donation
+    public void acceptDonation(String donorName, double amount) {
+        // Input validation: Check if the donation amount is positive
+        if (!DonationLedger.isValidAmount(amount)) {
+            reject("Donation must be between ₹0.01 and ₹10,000,000 in whole cents.");
+            return;
+        }
+
+        long cents = DonationLedger.toCents(amount); // Donations are kept as exact cents
+        long time = eventTime();
+        mutate(ShelterJournal.DONATION, () -> {
+            donations.record(donorName, cents);
+            history.recordDonations(1, cents, time);
+        }, out -> {
+            out.writeUTF(donorName);
+            out.writeLong(cents);
+            out.writeLong(time);
+        });
+        if (Metrics.isEnabled()) {
+            Metrics.global().donations.add(1);
+            Metrics.global().donatedCents.add(cents);
+        }
+        events().publish(EventType.DONATION_ACCEPTED, donorName, null, amount, 0, 0);
+    }
+
+    // Method to accept many donations at once (e.g. a fundraising drive); invalid amounts are skipped.
+    // The whole batch is logged as one journal record and reported with one summary line.
+    public int acceptDonations(Collection<Donation> batch) {
+        List<Donation> valid = new ArrayList<>(batch.size());
+        for (Donation donation : batch) {
+            if (DonationLedger.isValidAmount(donation.getAmount())) valid.add(donation);
+        }
+        long batchCents = 0;
+        for (Donation donation : valid) batchCents = Math.addExact(batchCents, DonationLedger.toCents(donation.getAmount()));
+        long time = eventTime();
+        long total = batchCents;
+        mutate(ShelterJournal.DONATION_BATCH, () -> {
+            for (Donation donation : valid) donations.record(donation.getDonorName(), DonationLedger.toCents(donation.getAmount()));
+            history.recordDonations(valid.size(), total, time);
+        }, out -> {
+            out.writeInt(valid.size());
+            for (Donation donation : valid) {
+                out.writeUTF(donation.getDonorName());
+                out.writeLong(DonationLedger.toCents(donation.getAmount()));
+            }
+            out.writeLong(time);
+        });
+        if (Metrics.isEnabled()) {
+            Metrics.global().donations.add(valid.size());
+            Metrics.global().donatedCents.add(batchCents);
+        }
+        events().publish(EventType.DONATIONS_ACCEPTED, null, null, DonationLedger.toAmount(batchCents), valid.size(), batch.size() - valid.size());
+        return valid.size();
+    }
+
+    // Getter method to retrieve the total donations
+    public double getTotalDonations() {
+        return donations.getTotal();
+    }
+
+    // Method to take a point-in-time copy of the donation records without blocking donors
+    public DonationSnapshot getDonationSnapshot() {
+        return donations.snapshot();
+    }
+
+    // Method to rate an adopter
+    public void rateAdopter(String adopterId, int rating, String review) {
+        // Input validation: Check if the rating is between 1 and 5 stars
+        if (!RatingAggregate.isValid(rating)) {
+            reject(RATING_RANGE_MESSAGE);
+            return;
+        }
+
+        // Input validation: Check that the adopter is registered (when the shelter has a registry)
+        AdopterRegistry registry = adopters;
+        if (registry != null && !registry.contains(adopterId)) {
+            if (events().hasSubscribers()) reject("Unknown adopter ID: " + adopterId); // Only build the message for a listener
+            return;
+        }
+
+        long time = eventTime();
+        mutate(ShelterJournal.ADOPTER_RATED, () -> {
+            adopterRatings.computeIfAbsent(adopterId, key -> new RatingAggregate()).record(rating); // Add the rating to the adopter's statistics
+            adopterReviews.put(adopterId, review); // Add the review (the latest one is shown by displayAdopterReviews)
+            reviewText.addAdopterReview(adopterId, review); // Make the review searchable
+            history.recordReview(adopterId, rating, review, time); // Keep the earlier reviews as well
+        }, out -> {
+            out.writeUTF(adopterId);
+            out.writeInt(rating);
+            out.writeUTF(review);
+            out.writeLong(time);
+        });
+        events().publish(EventType.RATING_SUBMITTED, adopterId, null, 0, rating, 0);
+    }
+
+    // Method to rate the shelter
+    public void rateShelter(int rating, String review) {
+        // Input validation: Check if the rating is between 1 and 5 stars
+        if (!RatingAggregate.isValid(rating)) {
+            reject(RATING_RANGE_MESSAGE);
+            return;
+        }
+
+        mutate(ShelterJournal.SHELTER_RATED, () -> {
+            shelterRatings.record(rating); // Add the rating to the shelter's statistics
+            shelterReviews.add(review); // Add the review
+            reviewText.addShelterReview(review); // Make the review searchable
+            publishAdded(); // Show the review to readers
+        }, out -> {
+            out.writeInt(rating);
+            out.writeUTF(review);
+        });
+        events().publish(EventType.RATING_SUBMITTED, null, null, 0, rating, 0);
+    }
+
+    // Method to calculate the average shelter rating
+    public double getAverageShelterRating() {
+        return shelterRatings.average(); // Read the running statistics (constant time)
+    }
+
+    // Method to calculate the average rating for a specific adopter
+    public double getAverageAdopterRating(String adopterId) {
+        RatingAggregate ratings = adopterRatings.get(adopterId);
+        return ratings == null ? 0.0 : ratings.average(); // 0.0 if the adopter has no ratings
+    }
+
+    // Getter method to retrieve the shelter's rating statistics (count, min, max, percentiles, ...)
+    public RatingAggregate getShelterRatingStats() {
+        return shelterRatings;
+    }
+
+    // Getter method to retrieve an adopter's rating statistics, or null if the adopter has no ratings
+    public RatingAggregate getAdopterRatingStats(String adopterId) {
+        return adopterRatings.get(adopterId);
+    }
+
+    // Method to rank the n best-rated adopters (highest average first, more ratings breaking ties).
+    // Keeps a min-heap of at most n entries, so it costs O(adopters * log n) instead of sorting everyone.
+    public List<String> getTopRatedAdopters(int n) {
+        if (n <= 0) return List.of();
+        Comparator<Map.Entry<String, double[]>> byRank = Comparator.<Map.Entry<String, double[]>>comparingDouble(entry -> entry.getValue()[0])
+                .thenComparingDouble(entry -> entry.getValue()[1]);
+        PriorityQueue<Map.Entry<String, double[]>> best = new PriorityQueue<>(n + 1, byRank);
+        adopterRatings.forEach((adopterId, ratings) -> {
+            best.add(Map.entry(adopterId, new double[]{ratings.average(), ratings.count()}));
+            if (best.size() > n) best.poll(); // Drop the lowest-ranked adopter
+        });
+        List<String> ranking = new ArrayList<>(best.size());
+        while (!best.isEmpty()) ranking.add(best.poll().getKey());
+        Collections.reverse(ranking); // The heap hands out the lowest rank first
+        return ranking;
+    }
+
+    // Method to display shelter reviews
+    public void displayShelterReviews() {
+        System.out.println("\nShelter Reviews:");
+        view.getShelterReviews().forEach(System.out::println); // Print each review in the current view
+    }
+
+    // Method to display adopter reviews
+    public void displayAdopterReviews() {
+        System.out.println("\nAdopter Reviews:");
+        adopterReviews.forEach((id, review) -> System.out.println("Adopter " + id + ": " + review)); // Print each review with adopter ID
+    }
+
+    // Method to find a pet by name
+    public Pet findPetByName(String name) {
+        PetSearchEvent event = new PetSearchEvent();
+        event.begin();
+        long start = Metrics.start();
+        Pet pet = view.first(PetAttribute.NAME, name); // Look up the first pet with this name (case-insensitive)
+        Metrics.global().searchByName.recordSince(start);
+        if (event.shouldCommit()) {
+            event.kind = "name";
+            event.criteria = name;
+            event.results = pet == null ? 0 : 1;
+            event.commit();
+        }
+        return pet; // Return null if no pet is found
+    }
+
+    // Method to find a pet by its ID (case-insensitive); returns null if there is none
+    public Pet findPetById(String petId) {
+        return view.first(PetAttribute.PET_ID, petId);
+    }
+
+    // Method to find pets by breed
+    public List<Pet> findPetsByBreed(String breed) {
+        return findPets(new PetQuery().breed(breed)); // Use the breed index (case-insensitive)
+    }
+
+    // Method to find pets matching a combined query, e.g. breed=Labrador AND size=Large AND available
+    public List<Pet> findPets(PetQuery query) {
+        PetSearchEvent event = new PetSearchEvent();
+        event.begin();
+        long start = Metrics.start();
+        List<Pet> matches = view.findPets(query); // Intersect the posting lists of every criterion, as of the current view
+        Metrics.global().searchByQuery.recordSince(start);
+        if (event.shouldCommit()) {
+            event.kind = "query";
+            event.criteria = query.getCriteria().toString();
+            event.results = matches.size();
+            event.commit();
+        }
+        return matches; // Return a read-only list of matching pets
+    }
+
+    // Method to search pet names and breeds as free text, tolerating typos and partial words
+    // (e.g. "labradour", "gold retr"); returns up to limit pets, best match first
+    public List<Pet> searchPets(String text, int limit) {
+        ShelterView current = view;
+        IntList ordinals = petText.search(text, limit);
+        List<Pet> matches = new ArrayList<>(ordinals.size());
+        for (int i = 0; i < ordinals.size(); i++) {
+            if (ordinals.get(i) < current.getPetCount()) matches.add(current.getPet(ordinals.get(i))); // Skip pets no view holds yet
+        }
+        return Collections.unmodifiableList(matches);
+    }
+
+    // Method to search adopter and shelter reviews by keyword (typos and partial words allowed); best match first
+    public List<ReviewHit> searchReviews(String text, int limit) {
+        return reviewText.search(text, limit);
+    }
+
+    // Method to display available pets (not adopted)
+    public void showAvailablePets() {
+        System.out.println("\nAvailable Pets:");
+        ShelterView current = view; // One view, so pets added or adopted while printing do not tear the list
+        IntList ordinals = current.query(new PetQuery().available());
+        for (int i = 0; i < ordinals.size(); i++) System.out.println(current.getPet(ordinals.get(i))); // Print each pet that is not adopted
+    }
+
+    // Method to retrieve the number of pets ever added (adopted ones included); ordinals run from 0 to this - 1
+    public int getPetCount() {
+        return view.getPetCount();
+    }
+
+    // Method to retrieve the number of pets that can still be adopted
+    public int getAvailablePetCount() {
+        return view.getAvailablePetCount();
+    }
+
+    // Method to retrieve the number of stored pets, including any that are still being added
+    private synchronized int storedPetCount() {
+        return petStore.size();
+    }
+
+    // Method to retrieve one page of available pets in the given order.
+    // Pass null as the cursor for the first page, then the page's getNextCursor() for each following page.
+    public PetPage availablePets(String cursor, int limit, PetSort sort) {
+        return availablePets.page(view, cursor, limit, sort);
+    }
+
+    // Method to stream all available pets in the given order without building a list of them
+    public java.util.stream.Stream<Pet> streamAvailablePets(PetSort sort) {
+        return availablePets.stream(view, sort);
+    }
+
+    // Method to replace the shelter's pricing rules and reprice every pet in parallel.
+    // Adoptions and searches carry on during the pass; each pet switches to its new fee in one atomic step.
+    public RepriceReport setPricingRules(List<PricingRule> rules) {
+        RepriceReport report = pricing.change(rules, book -> mutate(ShelterJournal.PRICING_CHANGED, () -> pricing.install(book), out -> {
+            out.writeInt(book.getRules().size());
+            for (PricingRule rule : book.getRules()) rule.writeTo(out);
+        }), this::storedPetCount);
+        events().publish(EventType.PETS_REPRICED, null, null, report.getVersion(), (int) report.getPetsChanged(), 0);
+        return report;
+    }
+
+    // Getter method to retrieve the price book new pets are priced with
+    public PriceBook getPriceBook() {
+        return pricing.current();
+    }
+
+    // Method to retrieve a counter that changes whenever stored fees change (odd while a repricing pass runs)
+    long getFeeVersion() {
+        return pricing.getFeeVersion();
+    }
+
+    // Method to display donation information
+    public void showDonations() {
+        DonationSnapshot snapshot = donations.snapshot(); // Copy the records so donors are never blocked while printing
+        System.out.println("\nTotal Donations: ₹" + snapshot.getTotal());
+        System.out.println("Donor Records:");
+        snapshot.getDonorCents().forEach((donor, cents) -> System.out.println(donor + ": ₹" + DonationLedger.toAmount(cents))); // Print each donor and their donation amount
+    }
+
+    // Method to apply one journal record during recovery
+    private void replay(byte type, DataInput in) throws IOException {
+        switch (type) {
+            case ShelterJournal.PET_ADDED -> insertPet(readPet(in));
+            case ShelterJournal.PETS_ADDED -> {
+                for (int i = in.readInt(); i > 0; i--) insertPet(readPet(in));
+            }
+            case ShelterJournal.ADOPTION_STATUS -> {
+                Pet pet = petStore.get(in.readInt());
+                pet.setAdopted(in.readBoolean());
+            }
+            case ShelterJournal.ADOPTION_COMPLETED -> {
+                Pet pet = petStore.get(in.readInt());
+                long cents = in.readLong();
+                history.recordAdoption(pet.getBreed(), cents, in.readLong());
+            }
+            case ShelterJournal.DONATION -> {
+                String donorName = in.readUTF();
+                long cents = in.readLong();
+                donations.record(donorName, cents);
+                history.recordDonations(1, cents, in.readLong());
+            }
+            case ShelterJournal.DONATION_BATCH -> {
+                int count = in.readInt();
+                long total = 0;
+                for (int i = count; i > 0; i--) {
+                    String donorName = in.readUTF();
+                    long cents = in.readLong();
+                    donations.record(donorName, cents);
+                    total += cents;
+                }
+                history.recordDonations(count, total, in.readLong());
+            }
+            case ShelterJournal.ADOPTER_RATED -> {
+                String adopterId = in.readUTF();
+                int rating = in.readInt();
+                adopterRatings.computeIfAbsent(adopterId, key -> new RatingAggregate()).record(rating);
+                String review = in.readUTF();
+                adopterReviews.put(adopterId, review);
+                reviewText.addAdopterReview(adopterId, review);
+                history.recordReview(adopterId, rating, review, in.readLong());
+            }
+            case ShelterJournal.SHELTER_RATED -> {
+                shelterRatings.record(in.readInt());
+                String review = in.readUTF();
+                shelterReviews.add(review);
+                reviewText.addShelterReview(review);
+                publishAdded();
+            }
+            case ShelterJournal.PRICING_CHANGED -> {
+                List<PricingRule> rules = readRules(in);
+                pricing.change(rules, pricing::install, this::storedPetCount);
+            }
+            default -> throw new IOException("Unknown journal record type " + type);
+        }
+    }
+
+    // Method to capture the whole shelter state for a snapshot; the journal calls it while no mutation can run.
+    // Donations, ratings, adopter reviews and the history are copied right away; pets and shelter reviews come from
+    // the published view, whose append-only lists and adoption bitmap stay as they are while the file is written.
+    private JournalPayload captureSnapshot() {
+        PriceBook book = pricing.current();
+        ShelterView pets = view;
+        ByteArrayOutputStream copied = new ByteArrayOutputStream();
+        try {
+            DataOutputStream out = new DataOutputStream(copied);
+            Map<String, Long> donorCents = donations.snapshot().getDonorCents();
+            out.writeInt(donorCents.size());
+            for (Map.Entry<String, Long> donor : donorCents.entrySet()) {
+                out.writeUTF(donor.getKey());
+                out.writeLong(donor.getValue());
+            }
+            out.writeInt(adopterRatings.size());
+            for (Map.Entry<String, RatingAggregate> ratings : adopterRatings.entrySet()) {
+                out.writeUTF(ratings.getKey());
+                writeRatings(out, ratings.getValue());
+            }
+            out.writeInt(adopterReviews.size());
+            for (Map.Entry<String, String> review : adopterReviews.entrySet()) {
+                out.writeUTF(review.getKey());
+                out.writeUTF(review.getValue());
+            }
+            writeRatings(out, shelterRatings);
+            history.writeTo(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // Cannot happen for an in-memory stream
+        }
+        byte[] state = copied.toByteArray();
+        return out -> {
+            out.writeLong(book.getVersion()); // Written first, so pets are priced correctly as they are loaded
+            out.writeInt(book.getRules().size());
+            for (PricingRule rule : book.getRules()) rule.writeTo(out);
+            out.write(state);
+            out.writeInt(pets.getPetCount());
+            for (int ordinal = 0; ordinal < pets.getPetCount(); ordinal++) writePet(out, pets.getPet(ordinal), pets.isAdopted(ordinal));
+            List<String> reviews = pets.getShelterReviews();
+            out.writeInt(reviews.size());
+            for (String review : reviews) out.writeUTF(review);
+        };
+    }
+
+    // Method to restore the whole shelter state from a snapshot
+    private void readSnapshot(DataInput in) throws IOException {
+        long priceVersion = in.readLong();
+        pricing.restore(priceVersion, readRules(in));
+        for (int i = in.readInt(); i > 0; i--) donations.record(in.readUTF(), in.readLong());
+        for (int i = in.readInt(); i > 0; i--) {
+            readRatings(in, adopterRatings.computeIfAbsent(in.readUTF(), key -> new RatingAggregate()));
+        }
+        for (int i = in.readInt(); i > 0; i--) {
+            String adopterId = in.readUTF(), review = in.readUTF();
+            adopterReviews.put(adopterId, review);
+            reviewText.addAdopterReview(adopterId, review);
+        }
+        readRatings(in, shelterRatings);
+        history.readFrom(in);
+        for (int i = in.readInt(); i > 0; i--) insertPet(readPet(in));
+        for (int i = in.readInt(); i > 0; i--) {
+            String review = in.readUTF();
+            shelterReviews.add(review);
+            reviewText.addShelterReview(review);
+        }
+        publishAdded();
+    }
+
+    // Method to write rating statistics as one count per star
+    private static void writeRatings(DataOutput out, RatingAggregate ratings) throws IOException {
+        for (int stars = RatingAggregate.MIN_RATING; stars <= RatingAggregate.MAX_RATING; stars++) out.writeLong(ratings.countOf(stars));
+    }
+
+    // Method to read back rating statistics written by writeRatings
+    private static void readRatings(DataInput in, RatingAggregate ratings) throws IOException {
+        for (int stars = RatingAggregate.MIN_RATING; stars <= RatingAggregate.MAX_RATING; stars++) ratings.record(stars, in.readLong());
+    }
+
+    // Method to read back a list of pricing rules (a count followed by the rules)
+    private static List<PricingRule> readRules(DataInput in) throws IOException {
+        List<PricingRule> rules = new ArrayList<>();
+        for (int i = in.readInt(); i > 0; i--) rules.add(PricingRule.readFrom(in));
+        return rules;
+    }
+
+    // Method to write a pet's attributes and adoption status
+    private static void writePet(DataOutput out, Pet pet) throws IOException {
+        writePet(out, pet, pet.isAdopted());
+    }
+
+    // Method to write a pet's attributes with the given adoption status (e.g. the status in a view)
+    private static void writePet(DataOutput out, Pet pet, boolean adopted) throws IOException {
+        out.writeUTF(pet.getPetId());
+        out.writeUTF(pet.getName());
+        out.writeUTF(pet.getSpecies());
+        out.writeUTF(pet.getBreed());
+        out.writeUTF(pet.getSize());
+        out.writeUTF(pet.getGender());
+        out.writeUTF(pet.getTemperament());
+        out.writeInt(pet.getAge());
+        out.writeUTF(pet.getHealthStatus());
+        out.writeBoolean(adopted);
+    }
+
+    // Method to read back a pet written by writePet
+    private static Pet readPet(DataInput in) throws IOException {
+        String petId = in.readUTF(), name = in.readUTF(), species = in.readUTF(), breed = in.readUTF();
+        String size = in.readUTF(), gender = in.readUTF(), temperament = in.readUTF();
+        int age = in.readInt();
+        String healthStatus = in.readUTF();
+        boolean adopted = in.readBoolean();
+        try {
+            Pet pet = new Pet(petId, name, species, breed, size, gender, temperament, age, healthStatus);
+            pet.setAdopted(adopted);
+            return pet;
+        } catch (InvalidAgeException | PetNotFitForAdoptionException e) {
+            throw new IOException("Corrupt pet record for " + petId, e); // Only valid pets were ever logged
+        }
+    }
+}
+
+// ============================== Federation Classes ==============================
+
+// Merged result of a query fanned out over the shelters of a federation.
+// If a shelter did not answer in time (or failed), its pets are missing and the result is marked partial.
+class FederatedResult {
+    private final List<Pet> pets;
+    private final List<String> unavailableRegions;
+
+    // Constructor for a merged result
+    FederatedResult(List<Pet> pets, List<String> unavailableRegions) {
+        this.pets = Collections.unmodifiableList(pets);
+        this.unavailableRegions = Collections.unmodifiableList(unavailableRegions);
+    }
+
+    // Getter method to retrieve the matching pets from every shelter that answered
+    public List<Pet> getPets() {
+        return pets;
+    }
+
+    // Getter method to retrieve the regions whose shelters did not answer
+    public List<String> getUnavailableRegions() {
+        return unavailableRegions;
+    }
+
+    // Method to check whether some shelters did not answer
+    public boolean isPartial() {
+        return !unavailableRegions.isEmpty();
+    }
+}
+
+// Federation of many shelters running in one JVM, one shelter (shard) per region.
+// Pets are placed in a region explicitly or spread over the shelters by a hash of their petId. Queries run on
+// every shelter in parallel, each with its own timeout, so a query takes about as long as the slowest shelter
+// rather than the sum of all of them; a shelter that misses its timeout has its query cancelled. A directory of
+// petIds keeps each ID in exactly one shelter, so an adoption always goes to the pet's own shelter, where
+// Pet.tryClaim() makes sure it succeeds only once. The shelters belong to the federation once it is created:
+// pets must be added through the federation (the shelters themselves are only exposed as read-only views),
+// otherwise the directory would not know them and could let the same petId into two shelters. Pets the shelters
+// already hold are entered into the directory when the federation is created.
+class ShelterFederation implements Closeable {
+    private static final Pet RESERVED = new Pet(); // Directory placeholder while a pet is being added
+
+    private final String[] regions;
+    private final Shelter[] shelters;
+    private final Map<String, Shelter> sheltersByRegion;
+    private final ConcurrentHashMap<String, Pet> directory = new ConcurrentHashMap<>(); // petId -> pet as stored by its shelter
+    private final Executor executor;
+    private final ExecutorService ownExecutor; // The default executor, shut down on close (null if the caller gave one)
+    private final long shardTimeoutMillis;
+
+    // Constructor for a federation that queries its shelters on its own threads (one per shelter) with a 1 second timeout.
+    // Not the common fork-join pool: it may have a single thread, which would run the shelters one after another.
+    public ShelterFederation(Map<String, Shelter> sheltersByRegion) {
+        this(sheltersByRegion, newQueryPool(sheltersByRegion.size()), 1_000, true);
+    }
+
+    // Constructor for a federation with its own executor for the per-shelter queries and timeout per shelter
+    public ShelterFederation(Map<String, Shelter> sheltersByRegion, Executor executor, long shardTimeoutMillis) {
+        this(sheltersByRegion, executor, shardTimeoutMillis, false);
+    }
+
+    // Constructor shared by the public ones; owned executors are shut down on close
+    private ShelterFederation(Map<String, Shelter> sheltersByRegion, Executor executor, long shardTimeoutMillis, boolean ownsExecutor) {
+        if (sheltersByRegion.isEmpty()) throw new IllegalArgumentException("A federation needs at least one shelter.");
+        this.sheltersByRegion = Collections.unmodifiableMap(new LinkedHashMap<>(sheltersByRegion));
+        this.regions = this.sheltersByRegion.keySet().toArray(new String[0]);
+        this.shelters = this.sheltersByRegion.values().toArray(new Shelter[0]);
+        for (Shelter shelter : shelters) seedDirectory(shelter);
+        this.executor = executor;
+        this.ownExecutor = ownsExecutor ? (ExecutorService) executor : null;
+        this.shardTimeoutMillis = shardTimeoutMillis;
+    }
+
+    // Method to enter the pets a shelter already holds into the directory; a petId held twice is rejected
+    private void seedDirectory(Shelter shelter) {
+        ShelterView view = shelter.view();
+        for (int ordinal = 0; ordinal < view.getPetCount(); ordinal++) {
+            Pet pet = view.getPet(ordinal);
+            if (directory.putIfAbsent(pet.getPetId(), pet) != null) {
+                throw new IllegalArgumentException("Pet ID " + pet.getPetId() + " is held by more than one shelter.");
+            }
+        }
+    }
+
+    // Method to create the default executor: one daemon thread per shelter, so every shelter is queried at once
+    private static ExecutorService newQueryPool(int shelterCount) {
+        AtomicInteger threads = new AtomicInteger();
+        return Executors.newFixedThreadPool(Math.max(1, shelterCount), runnable -> {
+            Thread thread = new Thread(runnable, "shelter-federation-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // Getter method to retrieve the latest read-only view of a region's shelter (null if there is none).
+    // The shelter itself is not handed out, so pets cannot be added around the federation's directory.
+    public ShelterView getView(String region) {
+        Shelter shelter = sheltersByRegion.get(region);
+        return shelter == null ? null : shelter.view();
+    }
+
+    // Getter method to retrieve the region names in shard order
+    public List<String> getRegions() {
+        return List.of(regions);
+    }
+
+    // Method to add a pet to the shelter chosen by the hash of its petId; returns the region it went to
+    public String addPet(Pet pet) {
+        int shard = Math.floorMod(pet.getPetId().hashCode(), shelters.length);
+        register(shelters[shard], pet);
+        return regions[shard];
+    }
+
+    // Method to add a pet to the shelter of the given region
+    public void addPet(String region, Pet pet) {
+        Shelter shelter = sheltersByRegion.get(region);
+        if (shelter == null) throw new IllegalArgumentException("Unknown region: " + region);
+        register(shelter, pet);
+    }
+
+    // Method to reserve the pet's ID across the federation, then store the pet in its shelter
+    private void register(Shelter shelter, Pet pet) {
+        String petId = pet.getPetId();
+        if (directory.putIfAbsent(petId, RESERVED) != null) {
+            throw new IllegalArgumentException("Pet ID " + petId + " is already in the federation.");
+        }
+        try {
+            directory.put(petId, shelter.addPet(pet));
+        } catch (RuntimeException e) {
+            directory.remove(petId, RESERVED);
+            throw e;
+        }
+    }
+
+    // Method to look up a pet by ID in whichever shelter holds it (null if no shelter does)
+    public Pet findPet(String petId) {
+        Pet pet = directory.get(petId);
+        return pet == RESERVED ? null : pet;
+    }
+
+    // Method to adopt a pet from whichever shelter holds it; the claim is made on that shelter's copy of the pet
+    public void adoptPet(Adopter adopter, String petId) throws PetNotFoundException, AdoptionLimitExceededException,
+            AdoptionFormNotFilledException, InsufficientFundsException, PetAlreadyAdoptedException {
+        Pet pet = findPet(petId);
+        if (pet == null) throw new PetNotFoundException("No shelter has a pet with ID " + petId + ".");
+        adopter.adoptPet(pet);
+    }
+
+    // Method to find pets matching a query in every shelter
+    public FederatedResult findPets(PetQuery query) {
+        return fanOut(shelter -> shelter.findPets(query));
+    }
+
+    // Method to find pets by breed in every shelter
+    public FederatedResult findPetsByBreed(String breed) {
+        return findPets(new PetQuery().breed(breed));
+    }
+
+    // Method to find pets by name in every shelter
+    public FederatedResult findPetsByName(String name) {
+        return findPets(new PetQuery().name(name));
+    }
+
+    // Method to run a search on every shelter at once and merge the answers in region order.
+    // Shelters that miss the timeout (or fail) are left out and reported as unavailable; a query that timed out
+    // is cancelled, so it never starts if it is still queued and is interrupted if it is running.
+    private FederatedResult fanOut(Function<Shelter, List<Pet>> search) {
+        List<FutureTask<List<Pet>>> answers = new ArrayList<>(shelters.length);
+        for (Shelter shelter : shelters) {
+            FutureTask<List<Pet>> answer = new FutureTask<>(() -> search.apply(shelter));
+            executor.execute(answer);
+            answers.add(answer);
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(shardTimeoutMillis); // Every shelter gets the same timeout
+        List<Pet> pets = new ArrayList<>();
+        List<String> unavailable = new ArrayList<>();
+        for (int shard = 0; shard < shelters.length; shard++) {
+            FutureTask<List<Pet>> answer = answers.get(shard);
+            try {
+                pets.addAll(answer.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS));
+            } catch (TimeoutException | ExecutionException e) {
+                answer.cancel(true);
+                unavailable.add(regions[shard]);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                answers.forEach(pending -> pending.cancel(true));
+                throw new CancellationException("Interrupted while querying the shelters");
+            }
+        }
+        return new FederatedResult(pets, unavailable);
+    }
+
+    // Method to close every shelter of the federation (flushing their journals) and its default executor
+    @Override
+    public void close() throws IOException {
+        if (ownExecutor != null) ownExecutor.shutdown();
+        IOException failure = null;
+        for (Shelter shelter : shelters) {
+            try {
+                shelter.close();
+            } catch (IOException e) {
+                if (failure == null) failure = e;
+                else failure.addSuppressed(e);
+            }
+        }
+        if (failure != null) throw failure;
+    }
+}
+
+// ============================== Recommendation Classes ==============================
+
+// One recommended pet with its match score (0 to 1, higher is better)
+class Recommendation {
+    private final Pet pet;
+    private final int ordinal; // Breaks ties between equal scores (earlier-added pets first)
+    private final double score;
+
+    // Constructor for a scored pet
+    Recommendation(Pet pet, int ordinal, double score) {
+        this.pet = pet;
+        this.ordinal = ordinal;
+        this.score = score;
+    }
+
+    // Getter method to retrieve the recommended pet
+    public Pet getPet() {
+        return pet;
+    }
+
+    // Getter method to retrieve the match score
+    public double getScore() {
+        return score;
+    }
+
+    // Getter method to retrieve the pet's ordinal in its shelter
+    int getOrdinal() {
+        return ordinal;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s (%s, %s, %s, age %d, $%.1f) score %.2f", pet.getName(), pet.getSpecies(), pet.getSize(),
+                pet.getTemperament(), pet.getAge(), pet.getAdoptionFee(), score);
+    }
+}
+
+// Pets of the same species, size, temperament and age: they differ at most in their fee
+class RecommendationBucket {
+    final String size, temperament;
+    final int age;
+    final int conflicts; // Eligibility restriction bits that rule this bucket out
+    final IntList ordinals = new IntList(); // The bucket's available pets, in insertion order
+    double minFee = Double.MAX_VALUE; // Lowest fee in the bucket, for the bucket's best possible score
+
+    // Constructor for an empty bucket, using one of its pets for the shared values
+    RecommendationBucket(Pet pet) {
+        this.size = pet.getSize();
+        this.temperament = pet.getTemperament();
+        this.age = pet.getAge();
+        this.conflicts = Eligibility.conflictsOf(pet);
+    }
+}
+
+// Recommends pets to adopters. A pet's score for an adopter combines:
+//   size fit (40%)         how well the pet's size suits the adopter's living space and situation
+//   temperament fit (30%)  e.g. calm pets for apartments, energetic pets for houses
+//   affordability (20%)    how small the fee is compared to the balance (pets the adopter cannot afford are excluded)
+//   age (10%)              younger pets score a little higher
+// Pets are grouped into buckets of equal species, size, temperament and age, so everything but the fee is scored
+// once per bucket. Buckets ruled out by the adopter's restrictions are skipped, the rest are visited from the
+// highest possible score down, each pet goes through a bounded top-K heap, and the search stops as soon as no
+// remaining pet could beat the K-th best found so far. The buckets are built incrementally from the shelter's
+// append-only pet ordinals and shared by every adopter, so a batch runs in parallel without copying anything.
+// Buckets hold only available pets: on every catch-up the engine compares the adoption bitmap of the view it
+// last saw with the current one (which costs in proportion to what changed), drops adopted pets and puts back
+// pets that were given back, so scoring never walks past adopted pets however old the shelter gets.
+// Fees are read from the pets when scoring; only the buckets' lowest fees are cached, and they are recomputed
+// after the shelter reprices (while a repricing pass runs, every bucket is bounded as if it were free).
+class RecommendationEngine {
+    private static final double SIZE_WEIGHT = 0.4, TEMPERAMENT_WEIGHT = 0.3, AFFORDABILITY_WEIGHT = 0.2, AGE_WEIGHT = 0.1;
+    private static final int MAX_SCORED_AGE = 15;
+    private static final Comparator<Recommendation> WORST_FIRST = Comparator.comparingDouble(Recommendation::getScore)
+            .thenComparing(Comparator.comparingInt(Recommendation::getOrdinal).reversed());
+
+    private final Shelter shelter;
+    private final Map<String, RecommendationBucket> buckets = new HashMap<>();
+    private final List<RecommendationBucket> bucketOf = new ArrayList<>(); // Bucket of each indexed ordinal, adopted or not
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock(); // Readers score, the writer adds new pets
+    private volatile int indexedPets; // Pets already sorted into buckets (written under the write lock)
+    private volatile AdoptedBitmap indexedAdoptions = AdoptedBitmap.EMPTY; // Adoption statuses the buckets reflect
+    private volatile long feeVersion; // Shelter fee version the buckets' lowest fees were computed for
+
+    // Constructor for an engine recommending the pets of a shelter
+    public RecommendationEngine(Shelter shelter) {
+        this.shelter = shelter;
+    }
+
+    // Method to recommend the k best available pets for an adopter (empty if the adopter cannot adopt right now)
+    public List<Recommendation> recommend(Adopter adopter, int k) {
+        catchUp();
+        return score(adopter, k);
+    }
+
+    // Method to recommend pets for many adopters at once, in parallel; results are keyed by adopterId
+    public Map<String, List<Recommendation>> recommendAll(Collection<Adopter> adopters, int k) {
+        catchUp();
+        Map<String, List<Recommendation>> results = new ConcurrentHashMap<>();
+        adopters.parallelStream().forEach(adopter -> results.put(adopter.getAdopterId(), score(adopter, k)));
+        return results;
+    }
+
+    // Method to sort the pets added since the last call into their buckets and move pets whose status changed
+    private void catchUp() {
+        if (isCurrent(shelter.view(), shelter.getFeeVersion())) return;
+        lock.writeLock().lock();
+        try {
+            // Read the view again under the lock, so a caller that got here with an older view never rolls back a newer one
+            long fees = shelter.getFeeVersion();
+            ShelterView current = shelter.view();
+            if (isCurrent(current, fees)) return;
+            boolean repriced = isRepriced(fees);
+            // Pets adopted or given back since the last catch-up (pets not indexed yet are sorted in below)
+            int indexed = indexedPets;
+            indexedAdoptions.forEachDifference(current.getAdopted(), ordinal -> {
+                if (ordinal >= indexed) return;
+                RecommendationBucket bucket = bucketOf.get(ordinal);
+                if (current.adopted(ordinal)) {
+                    bucket.ordinals.removeSorted(ordinal);
+                } else {
+                    bucket.ordinals.addSorted(ordinal);
+                    bucket.minFee = Math.min(bucket.minFee, current.getPet(ordinal).getAdoptionFee());
+                }
+            });
+            indexedAdoptions = current.getAdopted();
+
+            if (repriced && fees != feeVersion) {
+                for (RecommendationBucket bucket : buckets.values()) {
+                    bucket.minFee = Double.MAX_VALUE;
+                    for (int j = 0; j < bucket.ordinals.size(); j++) {
+                        bucket.minFee = Math.min(bucket.minFee, current.getPet(bucket.ordinals.get(j)).getAdoptionFee());
+                    }
+                }
+                feeVersion = fees;
+            }
+            int count = current.getPetCount();
+            for (int ordinal = indexedPets; ordinal < count; ordinal++) {
+                Pet pet = current.getPet(ordinal);
+                String key = PetAttribute.fold(pet.getSpecies()) + '|' + PetAttribute.fold(pet.getSize()) + '|'
+                        + PetAttribute.fold(pet.getTemperament()) + '|' + pet.getAge();
+                RecommendationBucket bucket = buckets.computeIfAbsent(key, ignored -> new RecommendationBucket(pet));
+                bucketOf.add(bucket);
+                if (current.adopted(ordinal)) continue; // Put back if it is ever given back
+                bucket.ordinals.add(ordinal);
+                bucket.minFee = Math.min(bucket.minFee, pet.getAdoptionFee());
+            }
+            indexedPets = Math.max(indexedPets, count);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Method to check whether the buckets already reflect a view and fee version
+    private boolean isCurrent(ShelterView view, long fees) {
+        return view.getPetCount() == indexedPets && view.getAdopted() == indexedAdoptions && !isRepriced(fees);
+    }
+
+    // Method to check whether a repricing pass finished since the lowest fees were computed
+    private boolean isRepriced(long fees) {
+        return fees != feeVersion && (fees & 1) == 0; // Only refresh once a repricing pass has finished
+    }
+
+    // Method to find the k best pets for one adopter using the current buckets
+    private List<Recommendation> score(Adopter adopter, int k) {
+        int flags = Eligibility.of(adopter);
+        if (k <= 0 || (flags & Eligibility.CAN_ADOPT) != Eligibility.CAN_ADOPT) return List.of();
+        double balance = adopter.getBalance();
+        PriorityQueue<Recommendation> best = new PriorityQueue<>(k + 1, WORST_FIRST);
+
+        lock.readLock().lock();
+        try {
+            // Read under the lock: a view taken before another thread's catchUp could miss pets it put into the buckets
+            boolean repricing = shelter.getFeeVersion() != feeVersion; // Cached lowest fees may be too high until the next catchUp
+            ShelterView current = shelter.view(); // Holds every bucketed pet
+            // Work out the best score each allowed bucket could reach and visit the most promising buckets first.
+            // Each entry packs the bound (as a float rounded up, so it never underestimates) above the bucket's
+            // position, so sorting plain longs sorts the buckets by bound without boxing.
+            RecommendationBucket[] candidates = buckets.values().toArray(new RecommendationBucket[0]);
+            long[] order = new long[candidates.length];
+            double[] bounds = new double[candidates.length]; // Exact bounds
+            int allowed = 0;
+            Map<String, Double> fitBySizeAndTemperament = new HashMap<>(); // Many buckets share these
+            for (int b = 0; b < candidates.length; b++) {
+                RecommendationBucket bucket = candidates[b];
+                double minFee = repricing ? 0 : bucket.minFee;
+                if ((bucket.conflicts & flags) != 0 || minFee > balance) continue; // Restricted or unaffordable
+                double fit = fitBySizeAndTemperament.computeIfAbsent(bucket.size + '|' + bucket.temperament,
+                        ignored -> SIZE_WEIGHT * sizeFit(adopter, bucket.size) + TEMPERAMENT_WEIGHT * temperamentFit(adopter, bucket.temperament));
+                bounds[b] = fit + ageScore(bucket.age) + affordabilityScore(minFee, balance);
+                order[allowed++] = (long) Float.floatToIntBits(Math.nextUp((float) bounds[b])) << 32 | b; // Positive floats sort like their bits
+            }
+            Arrays.sort(order, 0, allowed);
+
+            for (int i = allowed - 1; i >= 0; i--) {
+                int b = (int) order[i];
+                RecommendationBucket bucket = candidates[b];
+                double bound = bounds[b];
+                if (best.size() == k && Float.intBitsToFloat((int) (order[i] >>> 32)) <= best.peek().getScore()) break; // Nothing left can make the top K
+                if (best.size() == k && bound <= best.peek().getScore()) continue; // This bucket cannot, a later one with an equal bound might
+                double shared = SIZE_WEIGHT * sizeFit(adopter, bucket.size) + TEMPERAMENT_WEIGHT * temperamentFit(adopter, bucket.temperament) + ageScore(bucket.age);
+                for (int j = 0; j < bucket.ordinals.size(); j++) {
+                    int ordinal = bucket.ordinals.get(j);
+                    if (current.adopted(ordinal)) continue; // Adopted since the last catch-up
+                    Pet pet = current.getPet(ordinal);
+                    double fee = pet.getAdoptionFee();
+                    if (fee > balance) continue;
+                    Recommendation candidate = new Recommendation(pet, ordinal, shared + affordabilityScore(fee, balance));
+                    if (best.size() < k) best.add(candidate);
+                    else if (WORST_FIRST.compare(candidate, best.peek()) > 0) {
+                        best.poll();
+                        best.add(candidate);
+                    }
+                    if (best.size() == k && bound <= best.peek().getScore()) break; // The rest of the bucket cannot do better
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        List<Recommendation> ranked = new ArrayList<>(best);
+        ranked.sort(WORST_FIRST.reversed());
+        return ranked;
+    }
+
+    // Method to score a fee against the adopter's balance (weighted)
+    private static double affordabilityScore(double fee, double balance) {
+        return AFFORDABILITY_WEIGHT * (balance <= 0 ? 1 : 1 - fee / balance);
+    }
+
+    // Method to score a pet's age (weighted; younger is better)
+    private static double ageScore(int age) {
+        return AGE_WEIGHT * Math.max(0, 1 - (double) age / MAX_SCORED_AGE);
+    }
+
+    // Method to rate how well a pet size suits the adopter's home (0 to 1)
+    static double sizeFit(Adopter adopter, String size) {
+        double space = adopter.getLivingSpace();
+        boolean house = "house".equalsIgnoreCase(adopter.getLivingSituation());
+        return switch (size.toLowerCase(Locale.ROOT)) {
+            case "small" -> 1.0;
+            case "medium" -> space >= 500 ? 1.0 : 0.5;
+            case "large" -> space >= 800 ? (house ? 1.0 : 0.6) : 0.1;
+            default -> 0.5;
+        };
+    }
+
+    // Method to rate how well a pet's temperament suits the adopter's home (0 to 1)
+    static double temperamentFit(Adopter adopter, String temperament) {
+        boolean house = "house".equalsIgnoreCase(adopter.getLivingSituation());
+        return switch (temperament.toLowerCase(Locale.ROOT)) {
+            case "calm" -> house ? 0.7 : 1.0;
+            case "shy", "independent" -> house ? 0.6 : 0.9;
+            case "friendly" -> house ? 0.9 : 0.8;
+            case "playful" -> house ? 1.0 : 0.5;
+            case "energetic" -> house ? 1.0 : 0.2;
+            default -> 0.5;
+        };
+    }
+}
+
+// ============================== HTTP API Classes ==============================
+
+// Exception carrying the HTTP status an API request fails with
+class ApiException extends Exception {
+    private final int status;
+
+    // Constructor for an API error with its HTTP status code
+    public ApiException(int status, String message) {
+        super(message);
+        this.status = status;
+    }
+
+    // Getter method to retrieve the HTTP status code
+    public int getStatus() {
+        return status;
+    }
+}
+
+// Streaming JSON writer: values go straight to the underlying Writer, so a response with thousands of pets
+// is never built up as one big String first. Commas between values are handled automatically.
+class JsonWriter implements Closeable {
+    private final Writer out;
+    private boolean[] hasValue = new boolean[16]; // Per nesting level: does it already hold a value?
+    private int depth;
+    private boolean afterName; // A name was just written, so the next value needs no comma
+
+    // Constructor for a writer over the given character stream
+    public JsonWriter(Writer out) {
+        this.out = out;
+    }
+
+    // Methods to open and close objects and arrays
+    public JsonWriter beginObject() throws IOException { return open('{'); }
+    public JsonWriter endObject() throws IOException { return close('}'); }
+    public JsonWriter beginArray() throws IOException { return open('['); }
+    public JsonWriter endArray() throws IOException { return close(']'); }
+
+    // Method to write the name of the next object member
+    public JsonWriter name(String name) throws IOException {
+        separate();
+        string(name);
+        out.write(':');
+        afterName = true;
+        return this;
+    }
+
+    // Method to write a string value (null is written as JSON null)
+    public JsonWriter value(String value) throws IOException {
+        separate();
+        if (value == null) out.write("null");
+        else string(value);
+        return this;
+    }
+
+    // Method to write a whole number
+    public JsonWriter value(long value) throws IOException {
+        separate();
+        out.write(Long.toString(value));
+        return this;
+    }
+
+    // Method to write a decimal number (NaN and infinities are not valid JSON and are written as null)
+    public JsonWriter value(double value) throws IOException {
+        separate();
+        out.write(Double.isFinite(value) ? Double.toString(value) : "null");
+        return this;
+    }
+
+    // Method to write a boolean
+    public JsonWriter value(boolean value) throws IOException {
+        separate();
+        out.write(value ? "true" : "false");
+        return this;
+    }
+
+    // Method to write a pet as an object
+    public JsonWriter pet(Pet pet) throws IOException {
+        return beginObject()
+                .name("petId").value(pet.getPetId())
+                .name("name").value(pet.getName())
+                .name("species").value(pet.getSpecies())
+                .name("breed").value(pet.getBreed())
+                .name("size").value(pet.getSize())
+                .name("gender").value(pet.getGender())
+                .name("temperament").value(pet.getTemperament())
+                .name("age").value(pet.getAge())
+                .name("healthStatus").value(pet.getHealthStatus())
+                .name("adoptionFee").value(pet.getAdoptionFee())
+                .name("adopted").value(pet.isAdopted())
+                .endObject();
+    }
+
+    // Method to flush everything written so far
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+
+    // Method to start a nested object or array
+    private JsonWriter open(char bracket) throws IOException {
+        separate();
+        out.write(bracket);
+        if (++depth == hasValue.length) hasValue = Arrays.copyOf(hasValue, depth * 2);
+        hasValue[depth] = false;
+        return this;
+    }
+
+    // Method to finish a nested object or array
+    private JsonWriter close(char bracket) throws IOException {
+        depth--;
+        out.write(bracket);
+        return this;
+    }
+
+    // Method to write the comma before a value, unless it is the first one or follows a name
+    private void separate() throws IOException {
+        if (afterName) {
+            afterName = false;
+            return;
+        }
+        if (hasValue[depth]) out.write(',');
+        hasValue[depth] = true;
+    }
+
+    // Method to write a quoted, escaped string, copying runs of plain characters in one call
+    private void string(String value) throws IOException {
+        out.write('"');
+        int plainStart = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c >= 0x20 && c != '"' && c != '\\') continue;
+            out.write(value, plainStart, i - plainStart);
+            switch (c) {
+                case '"' -> out.write("\\\"");
+                case '\\' -> out.write("\\\\");
+                case '\n' -> out.write("\\n");
+                case '\r' -> out.write("\\r");
+                case '\t' -> out.write("\\t");
+                default -> out.write(String.format("\\u%04x", (int) c));
+            }
+            plainStart = i + 1;
+        }
+        out.write(value, plainStart, value.length() - plainStart);
+        out.write('"');
+    }
+}
+
+// Body of a JSON response, written straight to the client
+@FunctionalInterface
+interface JsonBody {
+    void writeTo(JsonWriter json) throws IOException;
+}
+
+// Handler of one API endpoint; params holds the query string and any form-encoded request body
+@FunctionalInterface
+interface ApiHandler {
+    void handle(HttpExchange exchange, Map<String, String> params) throws Exception;
+}
+
+// Embedded HTTP/JSON API for a shelter, built on the JDK's com.sun.net.httpserver.
+//   GET  /pets?name=&breed=&species=&size=&gender=&temperament=&minAge=&maxAge=&available=true&limit=100
+//   GET  /pets/available?cursor=&limit=20&sort=PET_ID|AGE|FEE
+//   POST /adopters     adopterId, name, contactInfo, age, formFilled, balance, livingSituation, livingSpace, petRestrictions
+//   POST /adoptions    adopterId, petId
+//   POST /donations    donor, amount
+//   POST /ratings      rating, review, and adopterId to rate an adopter instead of the shelter
+//   GET  /metrics      Prometheus text format (see Metrics)
+// POST parameters may be sent in the query string or as an application/x-www-form-urlencoded body.
+// Each request runs on its own virtual thread when the JVM has them (Java 21+), otherwise on a fixed pool.
+// The server listens on the loopback interface unless it is given another address to bind to.
+class ShelterHttpServer implements Closeable {
+    private static final System.Logger LOG = System.getLogger(ShelterHttpServer.class.getName());
+    private static final int DEFAULT_LIMIT = 100;
+    private static final int MAX_BODY_BYTES = 64 * 1024; // Larger form bodies are refused with 413 instead of buffered
+
+    static {
+        // Streamed (chunked) responses go out in several writes; without TCP_NODELAY, Nagle's algorithm and delayed
+        // ACKs hold every response back ~40 ms. Must be set before the JDK server's configuration is first read.
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    private final Shelter shelter;
+    private final AdopterRegistry adopters;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final boolean registeredMetrics; // Whether this server registered the shelter's gauges (and so removes them)
+
+    // Constructor for a server on the given loopback port (0 picks a free port); call start() to begin serving
+    public ShelterHttpServer(Shelter shelter, int port) throws IOException {
+        this(shelter, new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+    }
+
+    // Constructor for a server bound to the given address, e.g. new InetSocketAddress(8080) to serve on every interface
+    public ShelterHttpServer(Shelter shelter, InetSocketAddress bindAddress) throws IOException {
+        this.shelter = shelter;
+        if (shelter.getAdopterRegistry() == null) shelter.setAdopterRegistry(new AdopterRegistry());
+        this.adopters = shelter.getAdopterRegistry();
+        this.registeredMetrics = Metrics.global().registerShelter(shelter);
+        try {
+            this.server = HttpServer.create(bindAddress, 16_384); // Deep accept queue for connection bursts
+        } catch (IOException | RuntimeException e) {
+            if (registeredMetrics) Metrics.global().unregisterShelter(shelter);
+            throw e;
+        }
+        this.executor = newRequestExecutor();
+        server.setExecutor(executor);
+        route("/pets", "GET", this::searchPets);
+        route("/pets/available", "GET", this::availablePets);
+        route("/pets/search", "GET", this::searchPetText);
+        route("/reviews/search", "GET", this::searchReviews);
+        route("/adopters", "POST", this::registerAdopter);
+        route("/adoptions", "POST", this::adoptPet);
+        route("/donations", "POST", this::donate);
+        route("/ratings", "POST", this::rate);
+        route("/metrics", "GET", this::metrics);
+    }
+
+    // Method to create the executor requests run on: one virtual thread per request if the JVM supports it
+    static ExecutorService newRequestExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            // Java 17-20: requests only touch in-memory state, so a pool a few times the core count is enough
+            return Executors.newFixedThreadPool(Math.max(16, Runtime.getRuntime().availableProcessors() * 4), runnable -> {
+                Thread thread = new Thread(runnable, "shelter-http");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    // Method to start accepting requests
+    public void start() {
+        server.start();
+    }
+
+    // Getter method to retrieve the port the server listens on
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    // Method to stop the server (requests in progress are not waited for)
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+        if (registeredMetrics) Metrics.global().unregisterShelter(shelter);
+    }
+
+    // Method to register a handler for a path, answering 405 to other HTTP methods
+    void route(String path, String method, ApiHandler handler) {
+        server.createContext(path, exchange -> {
+            try (exchange) {
+                try {
+                    if (!exchange.getRequestURI().getPath().equals(path)) throw new ApiException(404, "No such endpoint: " + exchange.getRequestURI().getPath());
+                    if (!exchange.getRequestMethod().equalsIgnoreCase(method)) {
+                        exchange.getResponseHeaders().set("Allow", method);
+                        throw new ApiException(405, "Use " + method + " for " + path);
+                    }
+                    handler.handle(exchange, parameters(exchange));
+                } catch (ApiException e) {
+                    respond(exchange, e.getStatus(), json -> json.beginObject().name("error").value(e.getMessage()).endObject());
+                } catch (Exception e) {
+                    // The details stay in the server's log; clients only learn that something went wrong
+                    LOG.log(System.Logger.Level.ERROR, exchange.getRequestMethod() + " " + exchange.getRequestURI().getPath() + " failed", e);
+                    respond(exchange, 500, json -> json.beginObject().name("error").value("Internal error").endObject());
+                }
+            }
+        });
+    }
+
+    // GET /pets: search by any combination of attributes
+    private void searchPets(HttpExchange exchange, Map<String, String> params) throws Exception {
+        PetQuery query = new PetQuery();
+        for (PetAttribute attribute : PetAttribute.values()) {
+            String name = attribute == PetAttribute.PET_ID ? "petId" : attribute.name().toLowerCase(Locale.ROOT);
+            String value = params.get(name);
+            if (value != null) query.where(attribute, value);
+        }
+        if (params.containsKey("minAge") || params.containsKey("maxAge")) {
+            query.ageBetween(intParam(params, "minAge", 0), intParam(params, "maxAge", Integer.MAX_VALUE));
+        }
+        if (Boolean.parseBoolean(params.get("available"))) query.available();
+        List<Pet> pets = shelter.findPets(query.limit(limitParam(params, DEFAULT_LIMIT)));
+        respond(exchange, 200, json -> {
+            json.beginObject().name("count").value(pets.size()).name("pets").beginArray();
+            for (Pet pet : pets) json.pet(pet);
+            json.endArray().endObject();
+        });
+    }
+
+    // GET /pets/search: free-text search over pet names and breeds
+    private void searchPetText(HttpExchange exchange, Map<String, String> params) throws Exception {
+        List<Pet> pets = shelter.searchPets(required(params, "q"), limitParam(params, DEFAULT_LIMIT));
+        respond(exchange, 200, json -> {
+            json.beginObject().name("count").value(pets.size()).name("pets").beginArray();
+            for (Pet pet : pets) json.pet(pet);
+            json.endArray().endObject();
+        });
+    }
+
+    // GET /reviews/search: free-text search over adopter and shelter reviews
+    private void searchReviews(HttpExchange exchange, Map<String, String> params) throws Exception {
+        List<ReviewHit> hits = shelter.searchReviews(required(params, "q"), limitParam(params, DEFAULT_LIMIT));
+        respond(exchange, 200, json -> {
+            json.beginObject().name("count").value(hits.size()).name("reviews").beginArray();
+            for (ReviewHit hit : hits) {
+                json.beginObject().name("adopterId").value(hit.getAdopterId()).name("review").value(hit.getReview())
+                        .name("score").value(hit.getScore()).endObject();
+            }
+            json.endArray().endObject();
+        });
+    }
+
+    // GET /pets/available: one page of the available-pets listing
+    private void availablePets(HttpExchange exchange, Map<String, String> params) throws Exception {
+        PetSort sort;
+        try {
+            sort = PetSort.valueOf(params.getOrDefault("sort", "PET_ID").toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new ApiException(400, "sort must be one of " + Arrays.toString(PetSort.values()));
+        }
+        PetPage page;
+        try {
+            page = shelter.availablePets(params.get("cursor"), limitParam(params, 20), sort);
+        } catch (IllegalArgumentException e) {
+            throw new ApiException(400, e.getMessage());
+        }
+        respond(exchange, 200, json -> {
+            json.beginObject().name("pets").beginArray();
+            for (Pet pet : page.getPets()) json.pet(pet);
+            json.endArray().name("nextCursor").value(page.getNextCursor()).endObject();
+        });
+    }
+
+    // POST /adopters: register a new adopter
+    private void registerAdopter(HttpExchange exchange, Map<String, String> params) throws Exception {
+        Adopter adopter;
+        try {
+            adopter = new Adopter(required(params, "adopterId"), required(params, "name"), required(params, "contactInfo"),
+                    intParam(params, "age", -1), Boolean.parseBoolean(params.get("formFilled")), nonNegativeParam(params, "balance"),
+                    params.getOrDefault("livingSituation", ""), nonNegativeParam(params, "livingSpace"), params.getOrDefault("petRestrictions", "No Restrictions"));
+            adopter.setEventBus(shelter.events()); // Adoption events go where the shelter's events go
+            adopters.register(adopter);
+        } catch (AdopterAgeException | LivingSituationNotSuitableException e) {
+            throw new ApiException(422, e.getMessage());
+        } catch (IllegalArgumentException e) {
+            throw new ApiException(409, e.getMessage());
+        }
+        respond(exchange, 201, json -> json.beginObject().name("adopterId").value(adopter.getAdopterId()).endObject());
+    }
+
+    // POST /adoptions: adopt a pet for a registered adopter
+    private void adoptPet(HttpExchange exchange, Map<String, String> params) throws Exception {
+        Adopter adopter = adopters.get(required(params, "adopterId"));
+        if (adopter == null) throw new ApiException(404, "Unknown adopter ID: " + params.get("adopterId"));
+        Pet pet = shelter.findPetById(required(params, "petId"));
+        if (pet == null) throw new ApiException(404, "Unknown pet ID: " + params.get("petId"));
+        try {
+            adopter.adoptPet(pet);
+        } catch (PetAlreadyAdoptedException e) {
+            throw new ApiException(409, e.getMessage());
+        } catch (AdoptionLimitExceededException | AdoptionFormNotFilledException | InsufficientFundsException e) {
+            throw new ApiException(422, e.getMessage());
+        }
+        respond(exchange, 201, json -> json.beginObject().name("adopterId").value(adopter.getAdopterId())
+                .name("pet").pet(pet).name("balance").value(adopter.getBalance()).endObject());
+    }
+
+    // POST /donations: accept a donation
+    private void donate(HttpExchange exchange, Map<String, String> params) throws Exception {
+        String donor = required(params, "donor");
+        double amount = doubleParam(params, "amount", 0);
+        if (!DonationLedger.isValidAmount(amount)) throw new ApiException(422, "Donation amount must be between 0.01 and 10000000 in whole cents.");
+        shelter.acceptDonation(donor, amount);
+        respond(exchange, 201, json -> json.beginObject().name("donor").value(donor).name("amount").value(amount)
+                .name("totalDonations").value(shelter.getTotalDonations()).endObject());
+    }
+
+    // POST /ratings: rate the shelter, or an adopter when adopterId is given
+    private void rate(HttpExchange exchange, Map<String, String> params) throws Exception {
+        int rating = intParam(params, "rating", 0);
+        if (!RatingAggregate.isValid(rating)) throw new ApiException(422, "Rating must be between " + RatingAggregate.MIN_RATING + " and " + RatingAggregate.MAX_RATING + " stars.");
+        String adopterId = params.get("adopterId");
+        String review = params.getOrDefault("review", "");
+        if (adopterId == null) {
+            shelter.rateShelter(rating, review);
+        } else {
+            if (!adopters.contains(adopterId)) throw new ApiException(404, "Unknown adopter ID: " + adopterId);
+            shelter.rateAdopter(adopterId, rating, review);
+        }
+        respond(exchange, 201, json -> json.beginObject().name("rating").value(rating)
+                .name("averageRating").value(adopterId == null ? shelter.getAverageShelterRating() : shelter.getAverageAdopterRating(adopterId)).endObject());
+    }
+
+    // GET /metrics: every metric in the Prometheus text format
+    private void metrics(HttpExchange exchange, Map<String, String> params) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(200, 0);
+        Metrics.global().writePrometheus(new BufferedWriter(new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8)));
+    }
+
+    // Method to send a JSON response, streaming the body (chunked) instead of building it in memory
+    private static void respond(HttpExchange exchange, int status, JsonBody body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, 0);
+        JsonWriter json = new JsonWriter(new BufferedWriter(new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8), 8_192));
+        body.writeTo(json);
+        json.flush();
+    }
+
+    // Method to collect the query string and a form-encoded body into one map
+    private static Map<String, String> parameters(HttpExchange exchange) throws IOException, ApiException {
+        Map<String, String> params = new HashMap<>();
+        parseForm(exchange.getRequestURI().getRawQuery(), params);
+        String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+        if (contentType != null && contentType.startsWith("application/x-www-form-urlencoded")) {
+            byte[] body = exchange.getRequestBody().readNBytes(MAX_BODY_BYTES + 1); // One byte more tells a body that is too large
+            if (body.length > MAX_BODY_BYTES) throw new ApiException(413, "Request body is larger than " + MAX_BODY_BYTES / 1024 + " KiB.");
+            parseForm(new String(body, StandardCharsets.UTF_8), params);
+        }
+        return params;
+    }
+
+    // Method to parse name=value pairs separated by '&'
+    private static void parseForm(String form, Map<String, String> params) {
+        if (form == null || form.isEmpty()) return;
+        for (String pair : form.split("&")) {
+            int equals = pair.indexOf('=');
+            String name = equals < 0 ? pair : pair.substring(0, equals);
+            String value = equals < 0 ? "" : pair.substring(equals + 1);
+            params.put(URLDecoder.decode(name, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+        }
+    }
+
+    // Method to read a parameter that must be present
+    private static String required(Map<String, String> params, String name) throws ApiException {
+        String value = params.get(name);
+        if (value == null || value.isEmpty()) throw new ApiException(400, "Missing parameter: " + name);
+        return value;
+    }
+
+    // Method to read a whole-number parameter
+    private static int intParam(Map<String, String> params, String name, int defaultValue) throws ApiException {
+        String value = params.get(name);
+        if (value == null) return defaultValue;
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new ApiException(400, name + " must be a whole number");
+        }
+    }
+
+    // Method to read a decimal parameter
+    private static double doubleParam(Map<String, String> params, String name, double defaultValue) throws ApiException {
+        String value = params.get(name);
+        if (value == null) return defaultValue;
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            throw new ApiException(400, name + " must be a number");
+        }
+    }
+
+    // Method to read a page or result limit, which must be positive
+    private static int limitParam(Map<String, String> params, int defaultValue) throws ApiException {
+        int limit = intParam(params, "limit", defaultValue);
+        if (limit <= 0) throw new ApiException(400, "limit must be positive");
+        return limit;
+    }
+
+    // Method to read an amount that must be finite and not negative (0 if missing); NaN would pass every balance check
+    private static double nonNegativeParam(Map<String, String> params, String name) throws ApiException {
+        double value = doubleParam(params, name, 0);
+        if (!Double.isFinite(value) || value < 0) throw new ApiException(422, name + " must be a finite number of at least 0");
+        return value;
+    }
+}
+
+// Load generator for the HTTP API. Starts an embedded server over generated pets (or targets --url), keeps
+// --concurrency requests in flight with the JDK's asynchronous HttpClient, and reports throughput and latency
+// percentiles. The request mix is 40% name lookups, 30% available-pet pages, 20% breed searches and 10% donations.
+//
+//   java ShelterLoadGenerator --pets 100000 --requests 200000 --concurrency 10000
+//
+// Each in-flight request holds a client socket (and a server socket when the server is embedded), so raise the
+// open-files limit (ulimit -n) above twice the concurrency.
+class ShelterLoadGenerator {
+    public static void main(String[] args) throws Exception {
+        int pets = 100_000, requests = 200_000, concurrency = 10_000;
+        String url = null;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--pets" -> pets = Integer.parseInt(args[i + 1].replace("_", ""));
+                case "--requests" -> requests = Integer.parseInt(args[i + 1].replace("_", ""));
+                case "--concurrency" -> concurrency = Integer.parseInt(args[i + 1].replace("_", ""));
+                case "--url" -> url = args[i + 1];
+                default -> throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+
+        ShelterHttpServer server = null;
+        PetDataGenerator data = new PetDataGenerator(42);
+        if (url == null) {
+            EventBus.setDefaultBus(EventBus.synchronous()); // No console output per request
+            Shelter shelter = new Shelter("Load Test Shelter");
+            List<Pet> batch = new ArrayList<>();
+            for (int i = 0; i < pets; i++) batch.add(data.nextPet());
+            shelter.addPets(batch);
+            server = new ShelterHttpServer(shelter, 0);
+            server.start();
+            url = "http://localhost:" + server.getPort();
+        }
+        try {
+            LoadResult result = run(url, requests, concurrency, data);
+            System.out.printf("%,d requests, %,d concurrent: %,.0f req/s, p50 %.2f ms, p99 %.2f ms, max %.2f ms, %,d failed%n",
+                    requests, concurrency, result.throughput, result.percentile(0.50), result.percentile(0.99), result.percentile(1.0), result.failures);
+            if (result.firstFailure != null) System.out.println("First failure: " + result.firstFailure);
+        } finally {
+            if (server != null) server.close();
+        }
+    }
+
+    // Latencies of one load run
+    static class LoadResult {
+        final long[] latencies; // Nanoseconds, sorted
+        final double throughput;
+        final int failures;
+        final String firstFailure;
+
+        LoadResult(long[] latencies, double throughput, int failures, String firstFailure) {
+            this.latencies = latencies;
+            this.throughput = throughput;
+            this.failures = failures;
+            this.firstFailure = firstFailure;
+        }
+
+        // Method to read a latency percentile in milliseconds (nearest rank)
+        double percentile(double fraction) {
+            if (latencies.length == 0) return 0;
+            int rank = (int) Math.ceil(fraction * latencies.length);
+            return latencies[Math.max(0, Math.min(latencies.length, rank) - 1)] / 1e6;
+        }
+    }
+
+    // Method to send the requests, keeping at most concurrency of them in flight
+    static LoadResult run(String url, int requests, int concurrency, PetDataGenerator data) throws InterruptedException {
+        HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).connectTimeout(java.time.Duration.ofSeconds(30)).build();
+        Semaphore inFlight = new Semaphore(concurrency);
+        CountDownLatch finished = new CountDownLatch(requests);
+        long[] latencies = new long[requests];
+        AtomicInteger failures = new AtomicInteger();
+        AtomicReference<String> firstFailure = new AtomicReference<>();
+        long started = System.nanoTime();
+        for (int i = 0; i < requests; i++) {
+            HttpRequest request = nextRequest(url, i, data);
+            inFlight.acquire();
+            int index = i;
+            long sent = System.nanoTime();
+            client.sendAsync(request, HttpResponse.BodyHandlers.discarding()).whenComplete((response, error) -> {
+                latencies[index] = System.nanoTime() - sent;
+                if (error != null || response.statusCode() >= 500) {
+                    failures.incrementAndGet();
+                    firstFailure.compareAndSet(null, error != null ? error.toString() : "HTTP " + response.statusCode());
+                }
+                inFlight.release();
+                finished.countDown();
+            });
+        }
+        finished.await();
+        double seconds = (System.nanoTime() - started) / 1e9;
+        Arrays.sort(latencies);
+        return new LoadResult(latencies, requests / seconds, failures.get(), firstFailure.get());
+    }
+
+    // Method to build the i-th request of the mix
+    private static HttpRequest nextRequest(String url, int i, PetDataGenerator data) {
+        int kind = i % 10;
+        if (kind < 4) return get(url + "/pets?limit=20&name=" + encode(data.randomName()));
+        if (kind < 7) return get(url + "/pets/available?limit=20&sort=" + PetSort.values()[i % 3]);
+        if (kind < 9) return get(url + "/pets?limit=20&available=true&breed=" + encode(data.randomBreed()));
+        return HttpRequest.newBuilder(URI.create(url + "/donations"))
+                .header("Content-Type", "application/x-www-form-urlencoded")
+                .POST(HttpRequest.BodyPublishers.ofString("donor=" + encode(data.randomDonor()) + "&amount=" + data.randomDonation()))
+                .build();
+    }
+
+    // Method to build a GET request
+    private static HttpRequest get(String uri) {
+        return HttpRequest.newBuilder(URI.create(uri)).GET().build();
+    }
+
+    // Method to URL-encode a parameter value
+    private static String encode(String value) {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8);
+    }
+}
+
+// ============================== Benchmark Classes ==============================
+
+// Seeded generator of realistic synthetic shelter data: skewed species and breed mixes,
+// mostly young pets, popular names that repeat, and donors who give more than once.
+class PetDataGenerator {
+    private static final String[] DOG_BREEDS = {"Labrador", "Mixed", "German Shepherd", "Golden Retriever", "Beagle", "Bulldog",
+            "Poodle", "Rottweiler", "Dachshund", "Boxer", "Husky", "Chihuahua", "Pit Bull", "Shih Tzu", "Border Collie"};
+    private static final String[] CAT_BREEDS = {"Domestic Shorthair", "Mixed", "Siamese", "Persian", "Maine Coon", "Bengal",
+            "Ragdoll", "Sphynx", "Tabby", "British Shorthair"};
+    private static final String[] RABBIT_BREEDS = {"Holland Lop", "Mixed", "Mini Rex", "Lionhead", "Dutch"};
+    private static final String[] NAMES = {"Buddy", "Bella", "Max", "Luna", "Charlie", "Lucy", "Cooper", "Daisy", "Rocky", "Molly",
+            "Bear", "Sadie", "Duke", "Whiskers", "Milo", "Chloe", "Tucker", "Oliver", "Jack", "Lily", "Toby", "Zoe", "Oscar",
+            "Coco", "Leo", "Nala", "Simba", "Pepper", "Shadow", "Ginger"};
+    private static final String[] TEMPERAMENTS = {"Friendly", "Playful", "Calm", "Shy", "Energetic", "Independent"};
+    private static final String[] SIZES = {"Small", "Medium", "Large"};
+
+    private final Random random;
+    private int nextPetNumber;
+
+    // Constructor for a generator that always produces the same data for the same seed
+    public PetDataGenerator(long seed) {
+        this.random = new Random(seed);
+    }
+
+    // Method to generate the next pet
+    public Pet nextPet() {
+        int number = nextPetNumber++;
+        int roll = random.nextInt(100);
+        String species = roll < 60 ? "Dog" : roll < 95 ? "Cat" : "Rabbit";
+        String[] breeds = species.equals("Dog") ? DOG_BREEDS : species.equals("Cat") ? CAT_BREEDS : RABBIT_BREEDS;
+        String size = species.equals("Dog") ? SIZES[random.nextInt(3)] : species.equals("Cat") ? SIZES[random.nextInt(2)] : "Small";
+        try {
+            return new Pet(String.format("P%08d", number), randomName(), species, breeds[skewed(breeds.length)], size,
+                    random.nextBoolean() ? "Male" : "Female", TEMPERAMENTS[skewed(TEMPERAMENTS.length)],
+                    Math.min(15, (int) Math.abs(random.nextGaussian() * 4)), random.nextInt(4) == 0 ? "Microchipped" : "Vaccinated");
+        } catch (InvalidAgeException | PetNotFitForAdoptionException e) {
+            throw new IllegalStateException(e); // Generated pets are always valid
+        }
+    }
+
+    // Method to pick a pet name: popular names repeat, the rest get a number to make them unique
+    public String randomName() {
+        String name = NAMES[skewed(NAMES.length)];
+        return random.nextInt(10) < 3 ? name : name + " " + random.nextInt(1_000_000);
+    }
+
+    // Method to pick a breed the way searches do (popular breeds are searched more often)
+    public String randomBreed() {
+        String[] breeds = random.nextInt(100) < 65 ? DOG_BREEDS : CAT_BREEDS;
+        return breeds[skewed(breeds.length)];
+    }
+
+    // Method to pick a donor; a small group of regular donors gives most of the donations
+    public String randomDonor() {
+        return random.nextInt(10) < 7 ? "Regular Donor " + random.nextInt(100) : "Donor " + random.nextInt(1_000_000);
+    }
+
+    // Method to pick a donation amount between 10 and 500 in steps of 5
+    public double randomDonation() {
+        return 10 + 5 * random.nextInt(99);
+    }
+
+    // Method to pick a star rating, skewed towards good ratings
+    public int randomRating() {
+        return 5 - skewed(5);
+    }
+
+    // Method to pick an index in [0, bound) where low indexes are much more likely (roughly Zipf-shaped)
+    public int skewed(int bound) {
+        return (int) (bound * Math.pow(random.nextDouble(), 2.5));
+    }
+
+    // Getter method to retrieve the underlying random source
+    public Random random() {
+        return random;
+    }
+}
+
+// One benchmark operation; returns a value that is consumed so the JIT cannot drop the work
+@FunctionalInterface
+interface BenchmarkOperation {
+    long run(int invocation) throws Exception;
+}
+
+// Result of one benchmark at one shelter size
+class BenchmarkResult {
+    final String name;
+    final int size;
+    final double opsPerSecond;
+    final double errorPercent;
+    final double bytesPerOp;
+    final long gcCount;
+    final long gcMillis;
+
+    // Constructor for a finished benchmark result
+    BenchmarkResult(String name, int size, double opsPerSecond, double errorPercent, double bytesPerOp, long gcCount, long gcMillis) {
+        this.name = name;
+        this.size = size;
+        this.opsPerSecond = opsPerSecond;
+        this.errorPercent = errorPercent;
+        this.bytesPerOp = bytesPerOp;
+        this.gcCount = gcCount;
+        this.gcMillis = gcMillis;
+    }
+
+    // Method to build the key used to match results against a baseline
+    String key() {
+        return name + "@" + size;
+    }
+}
+
+// Benchmark suite for the shelter hot paths. Each benchmark runs warmup iterations and then timed
+// measurement iterations at every shelter size, and reports throughput, allocated bytes per operation
+// and GC activity. Results can be saved and compared against a saved baseline to catch regressions.
+//
+// Usage: java ShelterBenchmark [--sizes 1000,10000,...] [--store list|columnar] [--warmup 3] [--iterations 5]
+//                              [--iteration-millis 1000] [--only name,...] [--save file] [--baseline file] [--tolerance 0.10]
+class ShelterBenchmark {
+    private static final long SEED = 42;
+    private static volatile long sink; // Consumes benchmark results
+
+    private int[] sizes = {1_000, 10_000, 100_000};
+    private String store = "list";
+    private int warmupIterations = 3;
+    private int measurementIterations = 5;
+    private long iterationMillis = 1_000;
+    private Set<String> only = new HashSet<>();
+    private Path savePath;
+    private Path baselinePath;
+    private double tolerance = 0.10;
+    private final PrintStream report = System.out;
+
+    public static void main(String[] args) throws Exception {
+        ShelterBenchmark benchmark = new ShelterBenchmark();
+        benchmark.parseArguments(args);
+        System.exit(benchmark.run() ? 0 : 1);
+    }
+
+    // Method to read the command line options
+    private void parseArguments(String[] args) {
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--sizes" -> sizes = Arrays.stream(value.split(",")).mapToInt(size -> Integer.parseInt(size.trim().replace("_", ""))).toArray();
+                case "--store" -> store = value;
+                case "--warmup" -> warmupIterations = Integer.parseInt(value);
+                case "--iterations" -> measurementIterations = Integer.parseInt(value);
+                case "--iteration-millis" -> iterationMillis = Long.parseLong(value);
+                case "--only" -> only = new HashSet<>(Arrays.asList(value.split(",")));
+                case "--save" -> savePath = Paths.get(value);
+                case "--baseline" -> baselinePath = Paths.get(value);
+                case "--tolerance" -> tolerance = Double.parseDouble(value);
+                default -> throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+    }
+
+    // Method to run every benchmark at every size; returns false if a regression against the baseline was found
+    public boolean run() throws Exception {
+        List<BenchmarkResult> results = new ArrayList<>();
+        report.printf("%-26s %10s %14s %8s %12s %8s %8s%n", "Benchmark", "Pets", "ops/s", "error", "B/op", "GCs", "GC ms");
+        System.setOut(new PrintStream(OutputStream.nullOutputStream())); // The shelter prints on every operation
+        try {
+            for (int size : sizes) {
+                PetDataGenerator data = new PetDataGenerator(SEED);
+
+                // addPet: time building whole shelters (one operation per pet); the last one is used by everything below
+                String[] names = new String[1_024];
+                Shelter shelter = benchmarkAddPet(results, size, data, names);
+
+                // Search paths (half of the name lookups hit an existing pet, half are generated and mostly miss)
+                for (int i = 1; i < names.length; i += 2) names[i] = data.randomName();
+                String[] breeds = new String[1_024];
+                for (int i = 0; i < breeds.length; i++) breeds[i] = data.randomBreed();
+                runBenchmark(results, "findPetByName", size, i -> shelter.findPetByName(names[i & 1_023]) == null ? 0 : 1);
+                runBenchmark(results, "findPetsByBreed", size, i -> shelter.findPetsByBreed(breeds[i & 1_023]).size());
+                runBenchmark(results, "showAvailablePets", size, i -> {
+                    shelter.showAvailablePets();
+                    return i;
+                });
+                runBenchmark(results, "availablePets", size, i -> shelter.availablePets(null, 20, PetSort.FEE).getPets().size());
 
-        // Check if the adopter has sufficient funds to adopt the pet
-        if (balance < pet.getAdoptionFee()) throw new InsufficientFundsException("Insufficient funds to adopt " + pet.getName());
+                // Donations
+                String[] donors = new String[1_024];
+                double[] amounts = new double[1_024];
+                for (int i = 0; i < donors.length; i++) {
+                    donors[i] = data.randomDonor();
+                    amounts[i] = data.randomDonation();
+                }
+                runBenchmark(results, "acceptDonation", size, i -> {
+                    shelter.acceptDonation(donors[i & 1_023], amounts[i & 1_023]);
+                    return i;
+                });
 
-        // Deduct the adoption fee from the adopter's balance
-        balance -= pet.getAdoptionFee();
+                // Ratings: one rating per ten pets, spread over one adopter per hundred pets
+                int adopterCount = Math.max(1, size / 100);
+                for (int i = 0; i < Math.max(1, size / 10); i++) {
+                    shelter.rateAdopter("A" + data.random().nextInt(adopterCount), data.randomRating(), "Review " + i);
+                    shelter.rateShelter(data.randomRating(), "Review " + i);
+                }
+                String[] adopterIds = new String[1_024];
+                for (int i = 0; i < adopterIds.length; i++) adopterIds[i] = "A" + data.random().nextInt(adopterCount);
+                runBenchmark(results, "getAverageShelterRating", size, i -> (long) shelter.getAverageShelterRating());
+                runBenchmark(results, "getAverageAdopterRating", size, i -> (long) shelter.getAverageAdopterRating(adopterIds[i & 1_023]));
 
-        // Add the adopted pet to the adopter's list of adopted pets
-        adoptedPets.add(pet);
+                // adoptPet: adopt the shelter's pets in order, three per adopter. Once every pet has been adopted the
+                // pets are adopted again, so later rounds also pay for giving each pet back first.
+                List<Pet> available = shelter.findPets(new PetQuery().available());
+                Adopter[] adopter = new Adopter[1];
+                runBenchmark(results, "adoptPet", size, i -> {
+                    Pet pet = available.get(i % available.size());
+                    if (pet.isAdopted()) pet.releaseClaim();
+                    if (i % Adopter.MAX_ADOPTIONS == 0) {
+                        adopter[0] = new Adopter("B" + i, "Benchmark Adopter", "bench@email.com", 30, true, 1_000, "House", 1_000, "No Restrictions");
+                    }
+                    adopter[0].adoptPet(pet);
+                    return i;
+                });
+            }
+        } finally {
+            System.setOut(report);
+        }
+        if (savePath != null) saveResults(results);
+        return baselinePath == null || compareWithBaseline(results);
+    }
 
-        // Set the pet's adoption status to adopted
-        pet.setAdopted(true);
+    // Method to create an empty shelter with the selected pet store
+    private Shelter newShelter() {
+        return new Shelter("Benchmark Shelter", store.equals("columnar") ? new ColumnarPetStore() : new ListPetStore());
+    }
 
-        // Print a confirmation message
-        System.out.println(name + " adopted " + pet.getName() + " for $" + pet.getAdoptionFee());
+    // Method to check whether a benchmark was selected with --only
+    private boolean selected(String name) {
+        return only.isEmpty() || only.contains(name);
     }
-}
 
-// ============================== Shelter Class ==============================
-class Shelter {
-    // Instance variables (attributes) representing the properties of a shelter
-    private String shelterName;
-    private List<Pet> petList;
-    private double totalDonations;
-    private Map<String, Double> donorRecords; // Stores donor names and their total donation amounts
-    private Map<String, List<Integer>> adopterRatings; // Stores adopter IDs and their ratings
-    private Map<String, String> adopterReviews; // Stores adopter IDs and their reviews
-    private List<Integer> shelterRatings; // Stores shelter ratings
-    private List<String> shelterReviews; // Stores shelter reviews
+    // Method to benchmark addPet like runBenchmark does the others: warmup fills of throwaway shelters, then one
+    // measured iteration per fresh shelter, each filled with the same pets. Returns the last filled shelter (built
+    // from data, so the benchmarks after it see the same pets and random sequence as before) for the other benchmarks.
+    private Shelter benchmarkAddPet(List<BenchmarkResult> results, int size, PetDataGenerator data, String[] sampleNames) {
+        if (!selected("addPet")) {
+            Shelter shelter = newShelter();
+            fillShelter(shelter, size, data, sampleNames);
+            return shelter;
+        }
+        for (int i = 0; i < warmupIterations; i++) fillShelter(newShelter(), size, new PetDataGenerator(SEED), new String[sampleNames.length]);
 
-    // Constructor for creating a new Shelter object
-    public Shelter(String shelterName) {
-        this.shelterName = shelterName;
-        this.petList = new ArrayList<>(); // Initialize the pet list
-        this.totalDonations = 0.0; // Initialize total donations to zero
-        this.donorRecords = new HashMap<>(); // Initialize the donor records map
-        this.adopterRatings = new HashMap<>(); // Initialize the adopter ratings map
-        this.adopterReviews = new HashMap<>(); // Initialize the adopter reviews map
-        this.shelterRatings = new ArrayList<>(); // Initialize the shelter ratings list
-        this.shelterReviews = new ArrayList<>(); // Initialize the shelter reviews list
+        int iterations = Math.max(1, measurementIterations);
+        double[] rates = new double[iterations];
+        long allocated = 0;
+        Shelter shelter = null;
+        GcSample gcBefore = GcSample.now();
+        for (int i = 0; i < iterations; i++) {
+            boolean last = i == iterations - 1;
+            shelter = newShelter();
+            long[] fill = fillShelter(shelter, size, last ? data : new PetDataGenerator(SEED), sampleNames);
+            rates[i] = size / (fill[0] / 1e9);
+            allocated += fill[1];
+        }
+        GcSample gc = GcSample.now().minus(gcBefore);
+        BenchmarkResult result = summarize("addPet", size, rates, (double) allocated / ((long) size * iterations), gc);
+        print(result);
+        results.add(result);
+        return shelter;
     }
 
-    // Method to add a pet to the shelter
-    public void addPet(Pet pet) {
-        petList.add(pet); // Add the pet to the pet list
-        System.out.println(pet.getName() + " added to the shelter.");
+    // Method to fill the shelter, timing only the addPet calls (pets are generated in untimed chunks).
+    // Returns the nanoseconds spent in addPet and the bytes it allocated; the even slots of sampleNames get names of added pets.
+    private long[] fillShelter(Shelter shelter, int size, PetDataGenerator data, String[] sampleNames) {
+        Pet[] chunk = new Pet[Math.min(size, 65_536)];
+        int sampleEvery = Math.max(1, size / (sampleNames.length / 2));
+        long elapsed = 0, allocated = 0;
+        for (int added = 0; added < size; ) {
+            int count = Math.min(chunk.length, size - added);
+            for (int i = 0; i < count; i++) chunk[i] = data.nextPet();
+            long allocatedBefore = allocatedBytes();
+            long start = System.nanoTime();
+            for (int i = 0; i < count; i++) shelter.addPet(chunk[i]);
+            elapsed += System.nanoTime() - start;
+            allocated += allocatedBytes() - allocatedBefore;
+            for (int i = 0; i < count; i++) {
+                int sample = 2 * ((added + i) / sampleEvery);
+                if ((added + i) % sampleEvery == 0 && sample < sampleNames.length) sampleNames[sample] = chunk[i].getName();
+            }
+            added += count;
+        }
+        for (int i = 0; i < sampleNames.length; i += 2) if (sampleNames[i] == null) sampleNames[i] = sampleNames[0];
+        return new long[]{elapsed, allocated};
     }
 
-    // Method to accept a donation
-    public void acceptDonation(String donorName, double amount) {
-        // Input validation: Check if the donation amount is positive
-        if (amount <= 0) {
-            System.out.println("Donation must be greater than zero.");
-            return;
+    // Method to run warmup and measurement iterations of one benchmark
+    private void runBenchmark(List<BenchmarkResult> results, String name, int size, BenchmarkOperation operation) throws Exception {
+        if (!selected(name)) return;
+        int invocation = 0;
+        for (int i = 0; i < warmupIterations; i++) invocation = iterate(operation, invocation, null);
+
+        double[] rates = new double[measurementIterations];
+        long[] operations = new long[1];
+        GcSample gcBefore = GcSample.now();
+        long allocatedBefore = allocatedBytes();
+        for (int i = 0; i < measurementIterations; i++) {
+            long start = System.nanoTime();
+            int before = invocation;
+            invocation = iterate(operation, invocation, operations);
+            rates[i] = (invocation - before) / ((System.nanoTime() - start) / 1e9);
         }
+        long allocated = allocatedBytes() - allocatedBefore;
+        GcSample gc = GcSample.now().minus(gcBefore);
 
-        totalDonations += amount; // Update the total donations
-        donorRecords.put(donorName, donorRecords.getOrDefault(donorName, 0.0) + amount); // Update donor records (add new or increment existing)
-        System.out.println(donorName + " donated ₹" + amount + ".");
+        BenchmarkResult result = summarize(name, size, rates, (double) allocated / Math.max(1, operations[0]), gc);
+        print(result);
+        results.add(result);
     }
 
-    // Method to rate an adopter
-    public void rateAdopter(String adopterId, int rating, String review) {
-        adopterRatings.putIfAbsent(adopterId, new ArrayList<>()); // Create a new list for the adopter if it doesn't exist
-        adopterRatings.get(adopterId).add(rating); // Add the rating
-        adopterReviews.put(adopterId, review); // Add the review
-        System.out.println("Adopter " + adopterId + " received a rating of " + rating + " stars.");
+    // Method to combine the rates of the measured iterations into a result (mean and relative standard deviation)
+    private static BenchmarkResult summarize(String name, int size, double[] rates, double bytesPerOp, GcSample gc) {
+        double mean = Arrays.stream(rates).average().orElse(0);
+        double deviation = Math.sqrt(Arrays.stream(rates).map(rate -> (rate - mean) * (rate - mean)).sum() / Math.max(1, rates.length - 1));
+        return new BenchmarkResult(name, size, mean, mean == 0 ? 0 : 100 * deviation / mean, bytesPerOp, gc.count, gc.millis);
     }
 
-    // Method to rate the shelter
-    public void rateShelter(int rating, String review) {
-        shelterRatings.add(rating); // Add the rating
-        shelterReviews.add(review); // Add the review
-        System.out.println("Shelter received a rating of " + rating + " stars.");
+    // Method to call an operation repeatedly for one iteration; returns the next invocation number
+    private int iterate(BenchmarkOperation operation, int invocation, long[] operations) throws Exception {
+        int start = invocation;
+        long deadline = System.nanoTime() + iterationMillis * 1_000_000;
+        long consumed = 0;
+        do {
+            // Check the clock only every 64 calls so fast operations are not dominated by nanoTime
+            for (int i = 0; i < 64; i++) consumed += operation.run(invocation++);
+        } while (System.nanoTime() < deadline);
+        sink += consumed;
+        if (operations != null) operations[0] += invocation - start;
+        return invocation;
     }
 
-    // Method to calculate the average shelter rating
-    public double getAverageShelterRating() {
-        return shelterRatings.stream().mapToInt(Integer::intValue).average().orElse(0.0); // Calculate average using streams
+    // Method to print one result line
+    private void print(BenchmarkResult result) {
+        report.printf("%-26s %,10d %,14.1f %7.1f%% %,12.1f %8d %8d%n", result.name, result.size, result.opsPerSecond,
+                result.errorPercent, result.bytesPerOp, result.gcCount, result.gcMillis);
     }
 
-    // Method to calculate the average rating for a specific adopter
-    public double getAverageAdopterRating(String adopterId) {
-        return adopterRatings.getOrDefault(adopterId, new ArrayList<>()) // Get ratings for the adopter or an empty list if not found
-                .stream().mapToInt(Integer::intValue).average().orElse(0.0); // Calculate average using streams
+    // Method to save results as tab-separated lines (benchmark@size, ops/s)
+    private void saveResults(List<BenchmarkResult> results) throws IOException {
+        List<String> lines = new ArrayList<>();
+        for (BenchmarkResult result : results) lines.add(result.key() + "\t" + result.opsPerSecond + "\t" + result.bytesPerOp);
+        Files.write(savePath, lines, StandardCharsets.UTF_8);
+        report.println("Results saved to " + savePath);
     }
 
-    // Method to display shelter reviews
-    public void displayShelterReviews() {
-        System.out.println("\nShelter Reviews:");
-        shelterReviews.forEach(System.out::println); // Print each review
+    // Method to compare results with a saved baseline; returns false if anything got slower than the tolerance allows
+    private boolean compareWithBaseline(List<BenchmarkResult> results) throws IOException {
+        Map<String, Double> baseline = new HashMap<>();
+        for (String line : Files.readAllLines(baselinePath, StandardCharsets.UTF_8)) {
+            String[] fields = line.split("\t");
+            if (fields.length >= 2) baseline.put(fields[0], Double.parseDouble(fields[1]));
+        }
+        boolean passed = true;
+        for (BenchmarkResult result : results) {
+            Double expected = baseline.get(result.key());
+            if (expected == null || expected == 0) continue;
+            double change = result.opsPerSecond / expected - 1;
+            if (change < -tolerance) {
+                passed = false;
+                report.printf("REGRESSION %s: %,.1f ops/s vs baseline %,.1f (%+.1f%%)%n", result.key(), result.opsPerSecond, expected, 100 * change);
+            }
+        }
+        report.println(passed ? "No regressions against " + baselinePath : "Regressions found against " + baselinePath);
+        return passed;
     }
 
-    // Method to display adopter reviews
-    public void displayAdopterReviews() {
-        System.out.println("\nAdopter Reviews:");
-        adopterReviews.forEach((id, review) -> System.out.println("Adopter " + id + ": " + review)); // Print each review with adopter ID
+    // Method to read how many bytes the current thread has allocated so far
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean allocations) {
+            return allocations.getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0; // Allocation tracking is not available on this JVM
     }
+}
 
-    // Method to find a pet by name
-    public Pet findPetByName(String name) {
-        return petList.stream()
-                .filter(pet -> pet.getName().equalsIgnoreCase(name)) // Filter pets by name (case-insensitive)
-                .findFirst() // Get the first matching pet
-                .orElse(null); // Return null if no pet is found
-    }
+// Collection count and time summed over all garbage collectors
+class GcSample {
+    final long count;
+    final long millis;
 
-    // Method to find pets by breed
-    public List<Pet> findPetsByBreed(String breed) {
-        return petList.stream()
-                .filter(pet -> pet.getBreed().equalsIgnoreCase(breed)) // Filter pets by breed (case-insensitive)
-                .toList(); // Collect the matching pets into a list
+    // Constructor for a sample
+    GcSample(long count, long millis) {
+        this.count = count;
+        this.millis = millis;
     }
 
-    // Method to display available pets (not adopted)
-    public void showAvailablePets() {
-        System.out.println("\nAvailable Pets:");
-        petList.stream()
-                .filter(pet -> !pet.isAdopted()) // Filter pets that are not adopted
-                .forEach(System.out::println); // Print each available pet
+    // Method to read the current totals
+    static GcSample now() {
+        long count = 0, millis = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, collector.getCollectionCount());
+            millis += Math.max(0, collector.getCollectionTime());
+        }
+        return new GcSample(count, millis);
     }
 
-    // Method to display donation information
-    public void showDonations() {
-        System.out.println("\nTotal Donations: ₹" + totalDonations);
-        System.out.println("Donor Records:");
-        donorRecords.forEach((donor, amount) -> System.out.println(donor + ": ₹" + amount)); // Print each donor and their donation amount
+    // Method to compute the difference to an earlier sample
+    GcSample minus(GcSample earlier) {
+        return new GcSample(count - earlier.count, millis - earlier.millis);
     }
 }
 
 // Main Class 
 public class PetAdoptionSystem{
     public static void main(String[] args) {
+        // Print events on this thread as they happen, so they line up with the test script's own output
+        EventBus console = EventBus.synchronous();
+        console.subscribe(new ConsoleEventSink());
+        EventBus.setDefaultBus(console);
+
         System.out.println("============= PET ADOPTION SYSTEM TESTING =============\n");
         Shelter shelter = new Shelter("Happy Paws Shelter");
 
@@ -452,6 +7023,18 @@ public class PetAdoptionSystem{
         List<Pet> labradors = shelter.findPetsByBreed("Labrador");
         System.out.println("Number of Labradors found: " + labradors.size());
 
+        // Combined search using the index (breed AND size AND available)
+        List<Pet> smallMixed = shelter.findPets(new PetQuery().breed("mixed").size("SMALL").available());
+        System.out.println("Number of available small Mixed pets found: " + smallMixed.size());
+
+        // Search by age range
+        List<Pet> youngPets = shelter.findPets(new PetQuery().species("Dog").ageBetween(0, 1));
+        System.out.println("Number of dogs aged 0-1 found: " + youngPets.size());
+
+        // An empty age range matches nothing, with or without other criteria
+        System.out.println("Pets aged 5 down to 1: " + shelter.findPets(new PetQuery().ageBetween(5, 1)).size()
+                + ", dogs: " + shelter.findPets(new PetQuery().species("Dog").ageBetween(5, 1)).size());
+
         // Test Case 5: Testing Donation System
         System.out.println("\nTEST CASE 5: DONATION SYSTEM");
         System.out.println("----------------------------");
@@ -463,7 +7046,15 @@ public class PetAdoptionSystem{
         
         // Negative donation
         shelter.acceptDonation("Confused Donor", -100);
+
+        // Absurdly large and sub-cent donations
+        shelter.acceptDonation("Overflowing Donor", 1e300);
+        shelter.acceptDonation("Fractional Donor", 0.005);
         
+        // Batch donations from a fundraising drive (one invalid amount is skipped)
+        shelter.acceptDonations(List.of(new Donation("Generous Donor", 250), new Donation("Drive Donor", 49.99),
+                new Donation("Drive Donor", 0.01), new Donation("Confused Donor", -5)));
+
         // Show donation summary
         shelter.showDonations();
 
@@ -479,13 +7070,917 @@ public class PetAdoptionSystem{
         // Display ratings and reviews
         System.out.println("Average Shelter Rating: " + shelter.getAverageShelterRating());
         System.out.println("Average Rating for Adopter A004: " + shelter.getAverageAdopterRating("A004"));
+
+        // Invalid rating, rating statistics and adopter ranking
+        shelter.rateShelter(7, "Off the scale!");
+        shelter.rateAdopter("A006", 3, "Returned paperwork late");
+        RatingAggregate shelterStats = shelter.getShelterRatingStats();
+        System.out.println("Shelter ratings: " + shelterStats.count() + " (min " + shelterStats.min() + ", max " + shelterStats.max()
+                + ", median " + shelterStats.percentile(50) + ")");
+        System.out.println("Top rated adopters: " + shelter.getTopRatedAdopters(2));
         
         shelter.displayShelterReviews();
         shelter.displayAdopterReviews();
 
+        // Test Case 7: Testing Concurrent Adoptions
+        System.out.println("\nTEST CASE 7: CONCURRENT ADOPTIONS");
+        System.out.println("--------------------------------");
+        runConcurrentAdoptionStressTest(new ListPetStore(), 2_000, 400, Runtime.getRuntime().availableProcessors() * 2);
+        runConcurrentAdoptionStressTest(new ColumnarPetStore(), 2_000, 400, Runtime.getRuntime().availableProcessors() * 2);
+
+        // Test Case 8: Testing Persistence (write-ahead log + snapshot)
+        System.out.println("\nTEST CASE 8: PERSISTENCE");
+        System.out.println("------------------------");
+        try {
+            Path dataDirectory = Files.createTempDirectory("shelter-journal");
+            try (Shelter durableShelter = Shelter.open("Durable Shelter", dataDirectory, new JournalOptions())) {
+                durableShelter.addPet(new Pet("D001", "Rex", "Dog", "Beagle", "Medium", "Male", "Playful", 4, "Vaccinated"));
+                durableShelter.addPet(new Pet("D002", "Mittens", "Cat", "Tabby", "Small", "Female", "Calm", 2, "Microchipped"));
+                durableShelter.acceptDonation("Early Donor", 250);
+                durableShelter.snapshot(); // Everything so far goes into the snapshot
+
+                // These mutations only exist in the log tail after the snapshot
+                Adopter durableAdopter = new Adopter("A007", "Jane Roe", "jane@email.com", 31, true, 500, "House", 800, "No Restrictions");
+                durableAdopter.adoptPet(durableShelter.findPetByName("Rex"));
+                durableShelter.acceptDonation("Late Donor", 100);
+                durableShelter.rateShelter(5, "Never lost a record!");
+                try {
+                    durableShelter.rateShelter(1, "x".repeat(70_000)); // Too long for the log, so it must not be applied either
+                } catch (UncheckedIOException e) {
+                    System.out.println("Expected error caught: review too long to log; average rating still " + durableShelter.getAverageShelterRating());
+                }
+            }
+
+            // Reopen the shelter from disk and check that nothing was lost
+            try (Shelter recoveredShelter = Shelter.open("Durable Shelter", dataDirectory, new JournalOptions())) {
+                System.out.println("Recovered pets: " + recoveredShelter.findPets(new PetQuery()).size()
+                        + ", available: " + recoveredShelter.findPets(new PetQuery().available()).size());
+                System.out.println("Recovered average shelter rating: " + recoveredShelter.getAverageShelterRating());
+                recoveredShelter.showDonations();
+            }
+
+            // A crash can cut off the last record of the log: that torn tail is dropped. Damage anywhere else stops the open
+            List<Path> segments;
+            try (java.util.stream.Stream<Path> files = Files.list(dataDirectory)) {
+                segments = files.filter(file -> file.getFileName().toString().startsWith("wal-")).sorted().toList();
+            }
+            Files.write(segments.get(segments.size() - 1), new byte[]{0, 0, 1}, StandardOpenOption.APPEND); // Half of a record length
+            try (Shelter tornShelter = Shelter.open("Durable Shelter", dataDirectory, new JournalOptions())) {
+                System.out.println("Pets after a torn tail: " + tornShelter.findPets(new PetQuery()).size());
+            }
+            Path damagedSegment = Collections.max(segments, Comparator.comparingLong(segment -> segment.toFile().length()));
+            byte[] damaged = Files.readAllBytes(damagedSegment);
+            damaged[0] = 0x7f; // The first record now claims to be about 2 GB long
+            Files.write(damagedSegment, damaged);
+            try (Shelter damagedShelter = Shelter.open("Durable Shelter", dataDirectory, new JournalOptions())) {
+                System.out.println("Damaged journal opened with " + damagedShelter.findPets(new PetQuery()).size() + " pets");
+            } catch (IOException e) {
+                System.out.println("Expected error caught: damaged journal refused (" + e.getMessage().startsWith("Corrupt journal record") + ")");
+            }
+            deleteDirectory(dataDirectory);
+        } catch (Exception e) {
+            System.out.println("Unexpected error: " + e.getMessage());
+        }
+
+        // Test Case 9: Testing Memory Footprint of the pet stores
+        System.out.println("\nTEST CASE 9: MEMORY FOOTPRINT");
+        System.out.println("----------------------------");
+        int footprintPets = 200_000;
+        double listBytes = measureBytesPerPet(ListPetStore::new, footprintPets);
+        double columnarBytes = measureBytesPerPet(() -> new ColumnarPetStore(footprintPets), footprintPets);
+        System.out.printf("ListPetStore: %.1f bytes/pet, ColumnarPetStore: %.1f bytes/pet (%.1fx smaller) for %,d pets%n",
+                listBytes, columnarBytes, listBytes / columnarBytes, footprintPets);
+
+        // Test Case 10: Testing the asynchronous event pipeline
+        System.out.println("\nTEST CASE 10: EVENT PIPELINE");
+        System.out.println("----------------------------");
+        try {
+            Path eventLog = Files.createTempFile("shelter-events", ".log");
+            InMemoryEventSink recentEvents = new InMemoryEventSink(100);
+            try (EventBus pipeline = new EventBus(1_024)) {
+                pipeline.subscribe(recentEvents);
+                pipeline.subscribe(new FileEventSink(eventLog));
+                Shelter busyShelter = new Shelter("Busy Shelter");
+                busyShelter.setEventBus(pipeline);
+
+                // Four threads donate at once; their events are batched by the background consumer
+                Thread[] donors = new Thread[4];
+                for (int t = 0; t < donors.length; t++) {
+                    String donorName = "Drive Donor " + t;
+                    donors[t] = new Thread(() -> {
+                        for (int i = 0; i < 5_000; i++) busyShelter.acceptDonation(donorName, 1);
+                    });
+                    donors[t].start();
+                }
+                for (Thread donor : donors) donor.join();
+                pipeline.flush(); // Wait until every event reached the sinks
+                System.out.println("Events received by the in-memory sink: " + recentEvents.getReceived()
+                        + " (kept " + recentEvents.getEvents().size() + ")");
+                System.out.println("Last event: " + recentEvents.getEvents().get(recentEvents.getEvents().size() - 1).format());
+                System.out.println("Total donations recorded: ₹" + busyShelter.getTotalDonations());
+            }
+            try (java.util.stream.Stream<String> lines = Files.lines(eventLog, StandardCharsets.UTF_8)) {
+                System.out.println("Lines written by the file sink: " + lines.count());
+            }
+            Files.delete(eventLog);
+
+            // Closing without a flush still delivers everything published before close(); later events are dropped and counted
+            InMemoryEventSink closingSink = new InMemoryEventSink(10);
+            EventBus closingBus = new EventBus(64);
+            closingBus.subscribe(closingSink);
+            for (int i = 0; i < 10_000; i++) closingBus.publish(EventType.DONATION_ACCEPTED, "Closing Donor", null, 1, 0, 0);
+            closingBus.close();
+            closingBus.publish(EventType.DONATION_ACCEPTED, "Late Donor", null, 1, 0, 0);
+            System.out.println("Events delivered before close: " + closingSink.getReceived() + ", dropped after close: " + closingBus.getDroppedEvents());
+
+            // Publishers racing close(): every event is either delivered or counted as dropped
+            InMemoryEventSink racingSink = new InMemoryEventSink(10);
+            EventBus racingBus = new EventBus(64);
+            racingBus.subscribe(racingSink);
+            Thread[] racers = new Thread[4];
+            for (int t = 0; t < racers.length; t++) {
+                racers[t] = new Thread(() -> {
+                    for (int i = 0; i < 50_000; i++) racingBus.publish(EventType.DONATION_ACCEPTED, "Racing Donor", null, 1, 0, 0);
+                });
+                racers[t].start();
+            }
+            Thread.sleep(5);
+            racingBus.close();
+            for (Thread racer : racers) racer.join();
+            System.out.println("Events published while closing, delivered or dropped: " + (racingSink.getReceived() + racingBus.getDroppedEvents())
+                    + " of " + racers.length * 50_000);
+        } catch (Exception e) {
+            System.out.println("Unexpected error: " + e.getMessage());
+        }
+
+        // Test Case 11: Bulk import of intake files
+        System.out.println("\nTEST CASE 11: BULK IMPORT");
+        System.out.println("-------------------------");
+        try {
+            Path csvFile = Files.createTempFile("intake", ".csv");
+            Path jsonFile = Files.createTempFile("intake", ".jsonl");
+            PetDataGenerator generator = new PetDataGenerator(11);
+            try (BufferedWriter csv = Files.newBufferedWriter(csvFile, StandardCharsets.UTF_8)) {
+                csv.write("\uFEFFname,petId,species,breed,size,gender,temperament,age,healthStatus\n"); // Byte order mark as Excel writes it; columns in any order
+                for (int i = 0; i < 200_000; i++) {
+                    Pet pet = generator.nextPet();
+                    csv.write("\"" + pet.getName() + "\"," + pet.getPetId() + "," + pet.getSpecies() + "," + pet.getBreed() + ","
+                            + pet.getSize() + "," + pet.getGender() + "," + pet.getTemperament() + "," + pet.getAge() + "," + pet.getHealthStatus() + "\n");
+                }
+                csv.write("\"Ghost, the Cat\",X1,Cat,Mixed,Small,Male,Shy,two,Vaccinated\n");
+                csv.write("Patch,X2,Dog,Mixed,Small,Male,Shy,-1,Vaccinated\n");
+                csv.write("Sickly,X3,Dog,Mixed,Small,Male,Shy,4,Not Vaccinated\n");
+                csv.write("Half,X4,Dog\n");
+            }
+            Files.writeString(jsonFile, "[\n"
+                    + "{\"petId\": \"J1\", \"name\": \"Noodle \\\"The Brave\\\"\", \"species\": \"Dog\", \"breed\": \"Beagle\", \"size\": \"Small\", \"gender\": \"Male\", \"temperament\": \"Playful\", \"age\": 2, \"healthStatus\": \"Vaccinated\"},\n"
+                    + "{\"petId\": \"J2\", \"name\": \"Mochi\", \"species\": \"Cat\", \"breed\": \"Siamese\", \"size\": \"Small\", \"gender\": \"Female\", \"temperament\": \"Calm\", \"age\": 5, \"healthStatus\": \"Microchipped\"},\n"
+                    + "{\"petId\": \"J3\", \"name\": \"Rex\", \"species\": \"Dog\"\n"
+                    + "]\n", StandardCharsets.UTF_8);
+
+            Shelter intakeShelter = new Shelter("Intake Shelter");
+            intakeShelter.setEventBus(EventBus.synchronous()); // No subscribers: the batches are imported quietly
+            BulkPetImporter importer = new BulkPetImporter();
+            ImportReport csvReport = importer.importFile(csvFile, intakeShelter);
+            System.out.println("CSV: " + csvReport.getRowsImported() + " of " + csvReport.getRowsRead() + " rows imported, "
+                    + csvReport.getErrors().size() + " rejected");
+            csvReport.getErrors().forEach(error -> System.out.println("  " + error));
+            ImportReport jsonReport = importer.importFile(jsonFile, intakeShelter);
+            System.out.println("JSON: " + jsonReport.getRowsImported() + " of " + jsonReport.getRowsRead() + " rows imported");
+            jsonReport.getErrors().forEach(error -> System.out.println("  " + error));
+            System.out.println("Found after import: " + intakeShelter.findPetByName("Noodle \"The Brave\"").getPetId());
+            Files.delete(csvFile);
+            Files.delete(jsonFile);
+        } catch (Exception e) {
+            System.out.println("Unexpected error: " + e.getMessage());
+        }
+
+        // Test Case 12: Paging through the available pets
+        System.out.println("\nTEST CASE 12: PAGINATED AVAILABLE PETS");
+        System.out.println("--------------------------------------");
+        Shelter listingShelter = new Shelter("Listing Shelter");
+        listingShelter.setEventBus(EventBus.synchronous());
+        PetDataGenerator listingData = new PetDataGenerator(12);
+        for (int i = 0; i < 10; i++) listingShelter.addPet(listingData.nextPet());
+        for (PetSort sort : new PetSort[]{PetSort.FEE, PetSort.AGE}) {
+            System.out.println("Sorted by " + sort + ", 4 per page:");
+            String cursor = null;
+            int pageNumber = 1;
+            do {
+                PetPage page = listingShelter.availablePets(cursor, 4, sort);
+                StringBuilder line = new StringBuilder("  Page " + pageNumber++ + ":");
+                for (Pet pet : page.getPets()) line.append(" ").append(pet.getPetId()).append(" (age ").append(pet.getAge()).append(", $").append(pet.getAdoptionFee()).append(")");
+                System.out.println(line);
+                if (pageNumber == 2) page.getPets().get(0).setAdopted(true); // Adopted between page views: later pages do not shift
+                cursor = page.getNextCursor();
+            } while (cursor != null);
+        }
+        System.out.println("Youngest available pet: " + listingShelter.streamAvailablePets(PetSort.AGE).findFirst().map(Pet::getPetId).orElse("none"));
+        try {
+            listingShelter.availablePets("not-a-cursor", 4, PetSort.PET_ID);
+        } catch (IllegalArgumentException e) {
+            System.out.println("Error: " + e.getMessage());
+        }
+
+        // Test Case 13: Federation of regional shelters
+        System.out.println("\nTEST CASE 13: SHELTER FEDERATION");
+        System.out.println("--------------------------------");
+        Map<String, Shelter> regionalShelters = new LinkedHashMap<>();
+        for (String region : new String[]{"North", "South", "East", "West"}) {
+            Shelter regional = new Shelter(region + " Shelter");
+            regional.setEventBus(EventBus.synchronous()); // Quiet: no subscribers
+            regionalShelters.put(region, regional);
+        }
+        try (ShelterFederation federation = new ShelterFederation(regionalShelters)) {
+            PetDataGenerator federationData = new PetDataGenerator(13);
+            for (int i = 0; i < 40_000; i++) federation.addPet(federationData.nextPet()); // Spread by petId hash
+            federation.addPet("North", new Pet("F001", "Biscuit", "Dog", "Beagle", "Small", "Male", "Friendly", 3, "Vaccinated"));
+            for (String region : federation.getRegions()) {
+                System.out.println(region + " shelter holds " + federation.getView(region).getPetCount() + " pets");
+            }
+            FederatedResult beagles = federation.findPetsByBreed("Beagle");
+            System.out.println("Beagles across all shelters: " + beagles.getPets().size() + (beagles.isPartial() ? " (partial)" : ""));
+            System.out.println("Biscuit found by name: " + federation.findPetsByName("Biscuit").getPets().get(0).getPetId());
+
+            // Two adopters race for the same pet; the claim succeeds exactly once across the federation
+            Adopter first = new Adopter("FA1", "Ada", "ada@email.com", 30, true, 1000, "House", 1000, "No Restrictions");
+            Adopter second = new Adopter("FA2", "Ben", "ben@email.com", 35, true, 1000, "House", 1000, "No Restrictions");
+            federation.adoptPet(first, "F001");
+            try {
+                federation.adoptPet(second, "F001");
+            } catch (PetAlreadyAdoptedException e) {
+                System.out.println("Error: " + e.getMessage());
+            }
+            try {
+                federation.addPet("South", new Pet("F001", "Impostor", "Cat", "Mixed", "Small", "Female", "Shy", 1, "Vaccinated"));
+            } catch (IllegalArgumentException e) {
+                System.out.println("Error: " + e.getMessage());
+            }
+            try {
+                federation.adoptPet(second, "F999");
+            } catch (PetNotFoundException e) {
+                System.out.println("Error: " + e.getMessage());
+            }
+        } catch (Exception e) {
+            System.out.println("Unexpected error: " + e.getMessage());
+        }
+
+        // Shelters that already hold pets: their pets can be found and adopted, and a petId held twice is refused
+        try {
+            Shelter harbour = new Shelter("Harbour Shelter");
+            harbour.setEventBus(EventBus.synchronous());
+            harbour.addPet(new Pet("H001", "Pickles", "Cat", "Tabby", "Small", "Female", "Calm", 4, "Vaccinated"));
+            Shelter hills = new Shelter("Hills Shelter");
+            hills.setEventBus(EventBus.synchronous());
+            try (ShelterFederation federation = new ShelterFederation(Map.of("Harbour", harbour, "Hills", hills))) {
+                Adopter local = new Adopter("FA3", "Cleo", "cleo@email.com", 28, true, 1000, "House", 1000, "No Restrictions");
+                local.setEventBus(EventBus.synchronous());
+                federation.adoptPet(local, "H001");
+                System.out.println("Pickles adopted through the federation: " + federation.findPet("H001").isAdopted());
+                try {
+                    federation.addPet("Hills", new Pet("H001", "Copycat", "Cat", "Tabby", "Small", "Male", "Shy", 1, "Vaccinated"));
+                } catch (IllegalArgumentException e) {
+                    System.out.println("Error: " + e.getMessage());
+                }
+            }
+            hills.addPet(new Pet("H001", "Copycat", "Cat", "Tabby", "Small", "Male", "Shy", 1, "Vaccinated"));
+            try {
+                new ShelterFederation(Map.of("Harbour", harbour, "Hills", hills)).close();
+                System.out.println("Federation created although a petId is held twice");
+            } catch (IllegalArgumentException e) {
+                System.out.println("Error: " + e.getMessage());
+            }
+        } catch (Exception e) {
+            System.out.println("Unexpected error: " + e.getMessage());
+        }
+
+        // Test Case 14: Adopter registry and eligibility matching
+        System.out.println("\nTEST CASE 14: ADOPTER REGISTRY");
+        System.out.println("------------------------------");
+        try {
+            AdopterRegistry registry = new AdopterRegistry();
+            registry.register(new Adopter("R001", "Alice", "alice@email.com", 28, true, 400, "House", 900, "No Restrictions"));
+            registry.register(new Adopter("R002", "Bob", "bob@email.com", 40, true, 1200, "Apartment", 350, "No Dogs"));
+            registry.register(new Adopter("R003", "Carol", "carol@email.com", 33, false, 5000, "House", 1500, "No Restrictions"));
+            registry.register(new Adopter("R004", "Dan", "dan@email.com", 22, true, 30, "Apartment", 320, "Small Pets Only"));
+            try {
+                registry.register(new Adopter("R005", "Alice Again", "ALICE@email.com", 29, true, 100, "House", 500, "No Restrictions"));
+            } catch (IllegalArgumentException e) {
+                System.out.println("Error: " + e.getMessage());
+            }
+            System.out.println("Registered adopters: " + registry.size());
+            System.out.println("Found by contact: " + registry.findByContact("bob@email.com").getAdopterName());
+            System.out.println("Living in an apartment: " + registry.findByLivingSituation("apartment").size());
+
+            Pet labrador = new Pet("R-P1", "Goldie", "Dog", "Labrador", "Large", "Female", "Friendly", 3, "Vaccinated"); // $150 fee
+            Pet kitten = new Pet("R-P2", "Pebble", "Cat", "Mixed", "Small", "Male", "Playful", 1, "Vaccinated"); // $50 fee
+            for (Pet pet : new Pet[]{labrador, kitten}) {
+                StringBuilder names = new StringBuilder();
+                for (Adopter adopter : registry.findEligibleAdopters(pet, 10)) names.append(" ").append(adopter.getAdopterName());
+                System.out.println("Can adopt " + pet.getName() + " ($" + pet.getAdoptionFee() + "):" + names);
+            }
+            registry.get("R004").addFunds(100); // Dan can now afford the kitten
+            System.out.println("After Dan's top-up, can adopt Pebble: " + registry.findEligibleAdopters(kitten, 10).size() + " adopters");
+
+            Shelter registryShelter = new Shelter("Registry Shelter");
+            registryShelter.setAdopterRegistry(registry);
+            registryShelter.rateAdopter("R001", 5, "Wonderful home.");
+            registryShelter.rateAdopter("X999", 4, "Who is this?");
+        } catch (Exception e) {
+            System.out.println("Unexpected error: " + e.getMessage());
+        }
+
+        // Test Case 15: Pet recommendations
+        System.out.println("\nTEST CASE 15: PET RECOMMENDATIONS");
+        System.out.println("---------------------------------");
+        try {
+            Shelter matchingShelter = new Shelter("Matching Shelter");
+            matchingShelter.setEventBus(EventBus.synchronous());
+            PetDataGenerator matchingData = new PetDataGenerator(15);
+            List<Pet> intake = new ArrayList<>();
+            for (int i = 0; i < 20_000; i++) intake.add(matchingData.nextPet());
+            matchingShelter.addPets(intake);
+            RecommendationEngine engine = new RecommendationEngine(matchingShelter);
+
+            Adopter familyWithGarden = new Adopter("M001", "Priya", "priya@email.com", 38, true, 600, "House", 1200, "No Restrictions");
+            Adopter cityFlat = new Adopter("M002", "Tom", "tom@email.com", 26, true, 120, "Apartment", 350, "No Dogs");
+            for (Adopter adopter : new Adopter[]{familyWithGarden, cityFlat}) {
+                System.out.println("Top 3 for " + adopter.getAdopterName() + " (" + adopter.getLivingSituation() + ", " + adopter.getPetRestrictions() + ", $" + adopter.getBalance() + "):");
+                engine.recommend(adopter, 3).forEach(recommendation -> System.out.println("  " + recommendation));
+            }
+
+            // Adopted pets leave the engine's buckets, and come back if they are given back
+            Pet topPick = engine.recommend(familyWithGarden, 1).get(0).getPet();
+            familyWithGarden.setEventBus(EventBus.synchronous());
+            familyWithGarden.adoptPet(topPick);
+            String afterAdoption = engine.recommend(familyWithGarden, 1).get(0).getPet().getName();
+            topPick.setAdopted(false); // Given back
+            System.out.println("After Priya adopts " + topPick.getName() + ", her top pick is " + afterAdoption
+                    + "; once it is given back: " + engine.recommend(familyWithGarden, 1).get(0).getPet().getName());
+
+            // Batch: many adopters at once, scored in parallel
+            List<Adopter> crowd = new ArrayList<>();
+            for (int i = 0; i < 2_000; i++) {
+                crowd.add(new Adopter("C" + i, "Crowd " + i, "crowd" + i + "@email.com", 30, true, 40 + (i * 37) % 400,
+                        i % 2 == 0 ? "House" : "Apartment", 300 + (i * 53) % 900, i % 3 == 0 ? "No Cats" : "No Restrictions"));
+            }
+            long batchStart = System.nanoTime();
+            Map<String, List<Recommendation>> batch = engine.recommendAll(crowd, 5);
+            long withFive = batch.values().stream().filter(list -> list.size() == 5).count();
+            System.out.printf("Recommended 5 pets each to %d of %d adopters in %.1f ms%n", withFive, crowd.size(), (System.nanoTime() - batchStart) / 1e6);
+
+            // Recommendations while pets are being added: every bucketed pet must be in the view a reader scores against
+            Shelter growingShelter = new Shelter("Growing Shelter");
+            growingShelter.setEventBus(EventBus.synchronous());
+            RecommendationEngine growingEngine = new RecommendationEngine(growingShelter);
+            AtomicInteger recommendFailures = new AtomicInteger();
+            Thread intakeThread = new Thread(() -> {
+                PetDataGenerator growingData = new PetDataGenerator(16);
+                for (int i = 0; i < 20_000; i++) growingShelter.addPet(growingData.nextPet());
+            });
+            Thread[] recommenders = new Thread[4];
+            for (int t = 0; t < recommenders.length; t++) {
+                recommenders[t] = new Thread(() -> {
+                    while (intakeThread.isAlive()) {
+                        try {
+                            growingEngine.recommend(familyWithGarden, 50);
+                        } catch (RuntimeException e) {
+                            recommendFailures.incrementAndGet();
+                        }
+                    }
+                });
+            }
+            intakeThread.start();
+            for (Thread recommender : recommenders) recommender.start();
+            intakeThread.join();
+            for (Thread recommender : recommenders) recommender.join();
+            System.out.println("Recommendations failed while pets were added: " + recommendFailures.get());
+        } catch (Exception e) {
+            System.out.println("Unexpected error: " + e.getMessage());
+        }
+
+        // Test Case 16: HTTP API
+        System.out.println("\nTEST CASE 16: HTTP API");
+        System.out.println("----------------------");
+        Shelter webShelter = new Shelter("Web Shelter");
+        webShelter.setEventBus(EventBus.synchronous());
+        try (ShelterHttpServer api = new ShelterHttpServer(webShelter, 0)) {
+            webShelter.addPet(new Pet("W001", "Pixel", "Cat", "Bengal", "Small", "Female", "Playful", 2, "Vaccinated"));
+            webShelter.addPet(new Pet("W002", "Byte", "Dog", "Beagle", "Medium", "Male", "Friendly", 4, "Microchipped"));
+            api.start();
+            HttpClient client = HttpClient.newHttpClient();
+            String base = "http://localhost:" + api.getPort();
+            String[][] calls = {
+                    {"GET", "/pets?species=cat"},
+                    {"GET", "/pets/available?limit=1&sort=FEE"},
+                    {"POST", "/adopters", "adopterId=WA1&name=Sam&contactInfo=sam%40email.com&age=29&formFilled=true&balance=300&livingSituation=House&livingSpace=700"},
+                    {"POST", "/adoptions", "adopterId=WA1&petId=W002"},
+                    {"POST", "/adoptions", "adopterId=WA1&petId=W002"},
+                    {"POST", "/donations", "donor=Web+Donor&amount=75"},
+                    {"POST", "/ratings", "rating=6"},
+                    {"DELETE", "/pets"},
+                    {"POST", "/donations", "donor=Wordy+Donor&amount=5&note=" + "a".repeat(70_000)},
+                    {"POST", "/adopters", "adopterId=WA2&name=Nan&contactInfo=nan%40email.com&age=33&formFilled=true&balance=NaN&livingSituation=House&livingSpace=700"},
+                    {"GET", "/pets?species=cat&limit=0"},
+                    {"GET", "/pets?minAge=5&maxAge=1"},
+            };
+            for (String[] call : calls) {
+                HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(base + call[1]));
+                if (call[0].equals("POST")) request.header("Content-Type", "application/x-www-form-urlencoded").POST(HttpRequest.BodyPublishers.ofString(call[2]));
+                else request.method(call[0], HttpRequest.BodyPublishers.noBody());
+                HttpResponse<String> response = client.send(request.build(), HttpResponse.BodyHandlers.ofString());
+                System.out.println(call[0] + " " + call[1] + " -> " + response.statusCode() + " " + response.body());
+            }
+        } catch (Exception e) {
+            System.out.println("Unexpected error: " + e.getMessage());
+        }
+
+        // Test Case 17: Metrics
+        System.out.println("\nTEST CASE 17: METRICS");
+        System.out.println("---------------------");
+        Metrics.setEnabled(true);
+        try {
+            Shelter meteredShelter = new Shelter("Metered Shelter");
+            meteredShelter.setEventBus(EventBus.synchronous());
+            Metrics.global().registerShelter(meteredShelter);
+            PetDataGenerator meteredData = new PetDataGenerator(17);
+            for (int i = 0; i < 1_000; i++) meteredShelter.addPet(meteredData.nextPet());
+            for (int i = 0; i < 500; i++) meteredShelter.findPetByName(meteredData.randomName());
+            Adopter meteredAdopter = new Adopter("MA1", "Kim", "kim@email.com", 45, true, 260, "House", 900, "No Restrictions");
+            meteredAdopter.setEventBus(EventBus.synchronous());
+            for (Pet pet : meteredShelter.findPets(new PetQuery().available().limit(5))) {
+                try {
+                    meteredAdopter.adoptPet(pet);
+                } catch (AdoptionLimitExceededException | InsufficientFundsException e) {
+                    // Counted by outcome in shelter_adoptions_total
+                }
+            }
+            meteredShelter.acceptDonation("Metered Donor", 120.50);
+
+            Path metricsFile = Files.createTempFile("shelter-metrics", ".prom");
+            Metrics.global().writeTo(metricsFile);
+            for (String line : Files.readAllLines(metricsFile, StandardCharsets.UTF_8)) {
+                // Latencies differ from run to run; print the counts and gauges
+                if (line.startsWith("shelter_adoptions_total") || line.startsWith("shelter_search_duration_seconds_count")
+                        || line.startsWith("shelter_donated_cents_total") || line.contains("{shelter=\"Metered Shelter\"}")) {
+                    System.out.println(line);
+                }
+            }
+            Files.delete(metricsFile);
+            try {
+                Metrics.global().registerShelter(new Shelter("Metered Shelter"));
+            } catch (IllegalArgumentException e) {
+                System.out.println("Error: " + e.getMessage());
+            }
+            Metrics.global().unregisterShelter(meteredShelter);
+            StringWriter afterUnregister = new StringWriter();
+            Metrics.global().writePrometheus(afterUnregister);
+            System.out.println("Metered Shelter gauges after unregistering: " + afterUnregister.toString().lines().filter(line -> line.contains("Metered Shelter")).count());
+        } catch (Exception e) {
+            System.out.println("Unexpected error: " + e.getMessage());
+        } finally {
+            Metrics.setEnabled(false);
+        }
+
+        // Test Case 18: Pricing rules and bulk repricing
+        System.out.println("\nTEST CASE 18: PRICING RULES");
+        System.out.println("---------------------------");
+        try {
+            List<PricingRule> springDrive = List.of(
+                    new PricingRule("Base fee", PriceAction.SET, 60.0),
+                    new PricingRule("Medium pets", PriceAction.ADD, 40.0).size("Medium"),
+                    new PricingRule("Large pets", PriceAction.ADD, 90.0).size("Large"),
+                    new PricingRule("Huskies", PriceAction.SET, 250.0).species("Dog").breed("Husky"),
+                    new PricingRule("Rabbits", PriceAction.SET, 35.0).species("Rabbit"),
+                    new PricingRule("Seniors half price", PriceAction.MULTIPLY, 0.5).ages(8, Integer.MAX_VALUE),
+                    new PricingRule("Spring drive cap", PriceAction.AT_MOST, 200.0).shelter("Pricing Shelter"),
+                    new PricingRule("Other shelter surcharge", PriceAction.ADD, 1000.0).shelter("Elsewhere"));
+            PriceBook preview = new PriceBook(1, springDrive, "Pricing Shelter");
+            System.out.println("Senior Husky: $" + preview.feeOf("Dog", "Large", "Husky", 9) + ", young Husky: $" + preview.feeOf("dog", "large", "HUSKY", 2)
+                    + ", old rabbit: $" + preview.feeOf("Rabbit", "Small", "Dutch", 12) + ", medium cat: $" + preview.feeOf("Cat", "Medium", "Tabby", 3));
+
+            // Reprice a large catalog while another thread keeps adopting
+            Shelter pricingShelter = new Shelter("Pricing Shelter", new ColumnarPetStore(200_000));
+            pricingShelter.setEventBus(EventBus.synchronous());
+            PetDataGenerator pricingData = new PetDataGenerator(18);
+            List<Pet> catalog = new ArrayList<>();
+            for (int i = 0; i < 200_000; i++) catalog.add(pricingData.nextPet());
+            pricingShelter.addPets(catalog);
+            List<Pet> toAdopt = pricingShelter.findPets(new PetQuery().available().limit(3_000));
+            AtomicLong charged = new AtomicLong(), adopted = new AtomicLong();
+            Thread adoptions = new Thread(() -> {
+                for (int i = 0; i < toAdopt.size(); i++) {
+                    try {
+                        Adopter buyer = new Adopter("PB" + i, "Buyer " + i, "buyer" + i + "@email.com", 30, true, 1_000, "House", 900, "No Restrictions");
+                        buyer.setEventBus(EventBus.synchronous());
+                        buyer.adoptPet(toAdopt.get(i));
+                        charged.addAndGet(DonationLedger.toCents(1_000 - buyer.getBalance()));
+                        adopted.incrementAndGet();
+                    } catch (Exception e) {
+                        // Not expected: every buyer can afford any fee
+                    }
+                }
+            });
+            adoptions.start();
+            RepriceReport report = pricingShelter.setPricingRules(springDrive);
+            adoptions.join();
+            System.out.println("Repriced " + report.getPetsPriced() + " pets to price book v" + report.getVersion() + ", "
+                    + report.getPetsChanged() + " fees changed; " + adopted.get() + " adoptions ran meanwhile");
+
+            // Every adoption charged either the old or the new price of its pet
+            boolean consistent = true;
+            long expectedOld = 0, expectedNew = 0;
+            for (Pet pet : toAdopt) {
+                expectedOld += DonationLedger.toCents(PriceBook.DEFAULT.feeOf(pet));
+                expectedNew += DonationLedger.toCents(pet.getAdoptionFee());
+                consistent &= pet.getAdoptionFee() == pricingShelter.getPriceBook().feeOf(pet);
+            }
+            consistent &= charged.get() >= Math.min(expectedOld, expectedNew) && charged.get() <= Math.max(expectedOld, expectedNew);
+
+            // The fee order of available pets follows the new fees
+            double previousFee = -1;
+            long listed = 0;
+            for (Pet pet : (Iterable<Pet>) pricingShelter.streamAvailablePets(PetSort.FEE)::iterator) {
+                consistent &= pet.getAdoptionFee() >= previousFee;
+                previousFee = pet.getAdoptionFee();
+                listed++;
+            }
+            consistent &= listed == pricingShelter.getAvailablePetCount();
+            System.out.println("Fees, charges and fee order consistent: " + (consistent ? "PASSED" : "FAILED"));
+            Pet cheapest = pricingShelter.availablePets(null, 1, PetSort.FEE).getPets().get(0);
+            System.out.println("Cheapest available pet: " + cheapest.getSpecies() + " for $" + cheapest.getAdoptionFee());
+            Pet newcomer = pricingShelter.addPet(new Pet("NEW1", "Nova", "Dog", "Husky", "Large", "Female", "Energetic", 1, "Vaccinated"));
+            System.out.println("Husky added after the change: $" + newcomer.getAdoptionFee());
+
+            // Rules survive a restart, whether they are in the snapshot or only in the log
+            Path pricingDirectory = Files.createTempDirectory("shelter-pricing");
+            try (Shelter durablePricing = Shelter.open("Pricing Shelter", pricingDirectory, new JournalOptions())) {
+                durablePricing.setEventBus(EventBus.synchronous());
+                durablePricing.addPet(new Pet("DP1", "Sky", "Dog", "Husky", "Large", "Male", "Playful", 3, "Vaccinated"));
+                durablePricing.setPricingRules(springDrive);
+                durablePricing.snapshot();
+                durablePricing.addPet(new Pet("DP2", "Bun", "Rabbit", "Dutch", "Small", "Female", "Calm", 10, "Vaccinated"));
+                durablePricing.setPricingRules(List.of(new PricingRule("Flat fee", PriceAction.SET, 75.0), new PricingRule("Rabbits", PriceAction.SET, 20.0).species("Rabbit")));
+            }
+            try (Shelter recoveredPricing = Shelter.open("Pricing Shelter", pricingDirectory, new JournalOptions())) {
+                System.out.println("Recovered price book v" + recoveredPricing.getPriceBook().getVersion() + ": Sky $" + recoveredPricing.findPetById("DP1").getAdoptionFee()
+                        + ", Bun $" + recoveredPricing.findPetById("DP2").getAdoptionFee());
+            }
+            deleteDirectory(pricingDirectory);
+        } catch (Exception e) {
+            System.out.println("Unexpected error: " + e.getMessage());
+        }
+
+        // Test Case 19: Full-text and fuzzy search
+        System.out.println("\nTEST CASE 19: TEXT SEARCH");
+        System.out.println("-------------------------");
+        try {
+            Shelter searchShelter = new Shelter("Search Shelter");
+            searchShelter.setEventBus(EventBus.synchronous());
+            searchShelter.addPet(new Pet("S001", "Goldie", "Dog", "Golden Retriever", "Large", "Female", "Friendly", 3, "Vaccinated"));
+            searchShelter.addPet(new Pet("S002", "Captain Whiskers", "Cat", "Maine Coon", "Medium", "Male", "Calm", 6, "Microchipped"));
+            searchShelter.addPet(new Pet("S003", "Lab Rat", "Dog", "Labrador", "Large", "Male", "Playful", 1, "Vaccinated"));
+            PetDataGenerator searchData = new PetDataGenerator(19);
+            List<Pet> searchCatalog = new ArrayList<>();
+            for (int i = 0; i < 50_000; i++) searchCatalog.add(searchData.nextPet());
+            searchShelter.addPets(searchCatalog);
+            for (String text : new String[]{"labradour", "golden retr", "captian whiskers", "maine"}) {
+                List<Pet> found = searchShelter.searchPets(text, 3);
+                StringBuilder line = new StringBuilder("\"" + text + "\" ->");
+                for (Pet pet : found) line.append(" ").append(pet.getName()).append(" (").append(pet.getBreed()).append(")");
+                System.out.println(line);
+            }
+
+            searchShelter.rateAdopter("SA1", 5, "Very responsible, kept the vet appointments");
+            searchShelter.rateAdopter("SA2", 2, "Returned the paperwork late");
+            searchShelter.rateAdopter("SA2", 4, "Paperwork on time after a reminder"); // Replaces SA2's previous review
+            searchShelter.rateShelter(5, "Friendly staff and a clean kennel");
+            searchShelter.rateShelter(3, "Long wait for the adoption paperwork");
+            for (String text : new String[]{"paperwork", "responsable", "frendly kennel", "late"}) {
+                System.out.println("\"" + text + "\" -> " + searchShelter.searchReviews(text, 3));
+            }
+        } catch (Exception e) {
+            System.out.println("Unexpected error: " + e.getMessage());
+        }
+
+        // Test Case 20: Time-bucketed history
+        System.out.println("\nTEST CASE 20: HISTORY");
+        System.out.println("---------------------");
+        try {
+            Path historyDirectory = Files.createTempDirectory("shelter-history");
+            Instant campaignStart = Instant.parse("2026-03-01T00:00:00Z");
+            String[] historyBreeds = {"Labrador", "Beagle", "Siamese", "Labrador"};
+            try (Shelter historyShelter = Shelter.open("History Shelter", historyDirectory, new JournalOptions())) {
+                historyShelter.setEventBus(EventBus.synchronous());
+                Adopter regular = null;
+                for (int day = 0; day < 60; day++) {
+                    if (day == 40) historyShelter.snapshot(); // The first 40 days come back from the snapshot, the rest from the log
+                    for (int hour = 9; hour < 17; hour++) {
+                        historyShelter.setClock(Clock.fixed(campaignStart.plus(Duration.ofDays(day).plusHours(hour)), ZoneOffset.UTC));
+                        historyShelter.acceptDonation("Donor " + hour, 5 + hour); // $14-$21 every opening hour
+                    }
+                    if (day % 2 == 0) { // An adoption every other day, alternating breeds
+                        historyShelter.setClock(Clock.fixed(campaignStart.plus(Duration.ofDays(day).plusHours(12)), ZoneOffset.UTC));
+                        Pet pet = historyShelter.addPet(new Pet("H" + day, "Pet " + day, day % 4 == 2 ? "Cat" : "Dog", historyBreeds[(day / 2) % 4],
+                                "Small", "Female", "Calm", 2, "Vaccinated"));
+                        if (regular == null || regular.getAdoptedPets().size() == 3) {
+                            regular = new Adopter("HA" + day, "Regular " + day, "regular" + day + "@email.com", 40, true, 500, "House", 900, "No Restrictions");
+                            regular.setEventBus(EventBus.synchronous());
+                        }
+                        regular.adoptPet(pet);
+                    }
+                }
+                historyShelter.rateAdopter("HA0", 3, "Late with the paperwork");
+                historyShelter.rateAdopter("HA0", 5, "Brought the vet records early");
+            }
+
+            // Reopen: the history comes back from the journal with the original timestamps
+            try (Shelter historyShelter = Shelter.open("History Shelter", historyDirectory, new JournalOptions())) {
+                historyShelter.setClock(Clock.fixed(campaignStart.plus(Duration.ofDays(59).plusHours(18)), ZoneOffset.UTC));
+                ShelterHistory history = historyShelter.getHistory();
+                List<HistoryPoint> hourly = history.donations(Duration.ofHours(1), Duration.ofDays(30));
+                HistoryPoint busiest = Collections.max(hourly, Comparator.comparingLong(HistoryPoint::getSum));
+                System.out.println("Hourly donation buckets over 30 days: " + hourly.size() + ", busiest: " + busiest);
+                HistoryPoint month = history.donationTotal(Duration.ofDays(30));
+                System.out.println("Donations in the last 30 days: " + month.getCount() + " totalling " + DonationLedger.toAmount(month.getSum()));
+                try {
+                    history.donations(Duration.ofHours(1), Duration.ofDays(45));
+                } catch (IllegalArgumentException e) {
+                    System.out.println("Error: " + e.getMessage() + " (use daily buckets)");
+                }
+                StringBuilder weekly = new StringBuilder("Labrador adoptions per week (last 4 weeks):");
+                for (HistoryPoint week : history.adoptionsOfBreed("labrador", Duration.ofDays(7), Duration.ofDays(28))) weekly.append(" ").append(week.getCount());
+                System.out.println(weekly);
+                System.out.println("Adoptions by breed, last 14 days: " + history.adoptionsByBreed(Duration.ofDays(14)));
+                System.out.println("Review history of HA0: " + history.reviewsOf("HA0"));
+            }
+            deleteDirectory(historyDirectory);
+
+            // A pet that is claimed and then given back because the adopter's funds ran out is not counted, now or after a restart
+            Path failedDirectory = Files.createTempDirectory("shelter-failed-adoption");
+            try (Shelter failedShelter = Shelter.open("Failed Adoption Shelter", failedDirectory, new JournalOptions())) {
+                failedShelter.setEventBus(EventBus.synchronous());
+                Adopter tightBudget = new Adopter("FA1", "Tight Budget", "tight@email.com", 30, true, 80, "Apartment", 500, "No Restrictions");
+                tightBudget.setEventBus(EventBus.synchronous());
+                Pet biscuit = failedShelter.addPet(new Pet("FX1", "Biscuit", "Dog", "Poodle", "Small", "Female", "Calm", 2, "Vaccinated"));
+                Pet pebble = failedShelter.addPet(new Pet("FX2", "Pebble", "Dog", "Poodle", "Small", "Male", "Calm", 3, "Vaccinated") {
+                    @Override
+                    public boolean tryClaim() { // The adopter's other adoption spends the funds right after this claim
+                        if (!super.tryClaim()) return false;
+                        try {
+                            tightBudget.adoptPet(biscuit);
+                        } catch (Exception e) {
+                            throw new IllegalStateException(e);
+                        }
+                        return true;
+                    }
+                });
+                try {
+                    tightBudget.adoptPet(pebble);
+                } catch (InsufficientFundsException e) {
+                    System.out.println("Error: " + e.getMessage() + " (Pebble adopted: " + pebble.isAdopted() + ")");
+                }
+                ShelterHistory history = failedShelter.getHistory();
+                System.out.println("Adoptions counted: " + history.adoptionsByBreed(Duration.ofDays(1)) + ", fees "
+                        + DonationLedger.toAmount(history.adoptions(Duration.ofHours(1), Duration.ofDays(1)).stream().mapToLong(HistoryPoint::getSum).sum()));
+            }
+            try (Shelter failedShelter = Shelter.open("Failed Adoption Shelter", failedDirectory, new JournalOptions())) {
+                ShelterHistory history = failedShelter.getHistory();
+                System.out.println("Adoptions counted after reopening: " + history.adoptionsByBreed(Duration.ofDays(1)) + ", fees "
+                        + DonationLedger.toAmount(history.adoptions(Duration.ofHours(1), Duration.ofDays(1)).stream().mapToLong(HistoryPoint::getSum).sum()));
+            }
+            deleteDirectory(failedDirectory);
+        } catch (Exception e) {
+            System.out.println("Unexpected error: " + e.getMessage());
+        }
+
+        // Test Case 21: Point-in-time views under concurrent writes
+        System.out.println("\nTEST CASE 21: CONCURRENT READERS");
+        System.out.println("--------------------------------");
+        try {
+            Shelter viewShelter = new Shelter("View Shelter");
+            viewShelter.setEventBus(EventBus.synchronous());
+            PetDataGenerator viewData = new PetDataGenerator(21);
+            List<Pet> firstPets = new ArrayList<>();
+            for (int i = 0; i < 20_000; i++) firstPets.add(viewData.nextPet());
+            viewShelter.addPets(firstPets);
+            List<Pet> laterPets = new ArrayList<>();
+            for (int i = 0; i < 20_000; i++) laterPets.add(viewData.nextPet());
+            ShelterView before = viewShelter.view();
+
+            // Writers: one adds pets, one adopts (and gives back every tenth pet), one posts shelter reviews
+            AtomicBoolean writing = new AtomicBoolean(true);
+            AtomicInteger writerErrors = new AtomicInteger();
+            Runnable adder = () -> {
+                for (Pet pet : laterPets) viewShelter.addPet(pet);
+            };
+            Runnable adoptions = () -> {
+                Adopter viewAdopter = null;
+                for (int i = 0; i < 3_000; i++) {
+                    try {
+                        if (i % Adopter.MAX_ADOPTIONS == 0) {
+                            viewAdopter = new Adopter("VA" + i, "View Adopter", "view" + i + "@email.com", 30, true, 1_000, "House", 1_000, "No Restrictions");
+                            viewAdopter.setEventBus(EventBus.synchronous());
+                        }
+                        Pet pet = firstPets.get(i * 6);
+                        viewAdopter.adoptPet(pet);
+                        if (i % 10 == 0) pet.setAdopted(false); // Given back
+                    } catch (Exception e) {
+                        writerErrors.incrementAndGet();
+                    }
+                }
+            };
+            Runnable reviews = () -> {
+                for (int i = 0; i < 2_000; i++) viewShelter.rateShelter(1 + i % 5, "Visit " + i);
+            };
+
+            // Readers: every view must agree with itself, however long it is held while the writers carry on
+            AtomicLong viewsChecked = new AtomicLong();
+            AtomicInteger inconsistent = new AtomicInteger();
+            Runnable reader = () -> {
+                PetQuery available = new PetQuery().available();
+                PetQuery availableLabradors = new PetQuery().breed("Labrador").available();
+                while (writing.get()) {
+                    try {
+                        ShelterView current = viewShelter.view();
+                        IntList availableLabradorsBefore = current.query(availableLabradors);
+                        boolean ok = current.query(available).size() == current.getAvailablePetCount();
+                        int reviewCount = 0;
+                        for (String review : current.getShelterReviews()) reviewCount += review != null ? 1 : 0;
+                        ok &= reviewCount == current.getShelterReviewCount();
+                        Pet last = current.getPet(current.getPetCount() - 1);
+                        ok &= current.first(PetAttribute.PET_ID, last.getPetId()) != null;
+                        IntList availableLabradorsAfter = current.query(availableLabradors); // Repeatable: the same view gives the same answer
+                        ok &= availableLabradorsAfter.size() == availableLabradorsBefore.size();
+                        for (int i = 0; ok && i < availableLabradorsAfter.size(); i++) ok = availableLabradorsAfter.get(i) == availableLabradorsBefore.get(i);
+                        if (!ok) inconsistent.incrementAndGet();
+                        viewShelter.findPetsByBreed("Beagle"); // The shelter's own read methods run on the latest view
+                        viewsChecked.incrementAndGet();
+                    } catch (RuntimeException e) {
+                        inconsistent.incrementAndGet(); // e.g. a ConcurrentModificationException
+                    }
+                }
+            };
+
+            long publishesBefore = Metrics.global().viewPublish.getCount();
+            Metrics.setEnabled(true);
+            long started = System.nanoTime();
+            List<Thread> readers = List.of(new Thread(reader), new Thread(reader));
+            List<Thread> writers = List.of(new Thread(adder), new Thread(adoptions), new Thread(reviews));
+            readers.forEach(Thread::start);
+            writers.forEach(Thread::start);
+            for (Thread writer : writers) writer.join();
+            writing.set(false);
+            for (Thread thread : readers) thread.join();
+            double seconds = (System.nanoTime() - started) / 1e9;
+            Metrics.setEnabled(false);
+
+            ShelterView after = viewShelter.view();
+            System.out.println("Views consistent under concurrent writes: " + (inconsistent.get() == 0 && writerErrors.get() == 0 ? "PASSED" : "FAILED"));
+            System.out.println("Latest view: " + after.getPetCount() + " pets, " + after.getAvailablePetCount() + " available, "
+                    + after.getShelterReviewCount() + " shelter reviews");
+            System.out.println("View taken before the writes: " + before.getPetCount() + " pets, " + before.query(new PetQuery().available()).size()
+                    + " available, " + before.getShelterReviews().size() + " shelter reviews");
+            Pet flipped = viewShelter.view().getPet(1); // Not touched by the writers above
+            ShelterView held = viewShelter.view();
+            for (int i = 0; i < 5; i++) flipped.setAdopted(i % 2 == 0); // Adopted, given back, ... five status changes
+            System.out.println("Held view after five status changes of one pet: adopted=" + held.isAdopted(1)
+                    + ", latest view: adopted=" + viewShelter.view().isAdopted(1));
+            LatencyHistogram publishes = Metrics.global().viewPublish;
+            System.out.printf("Checked %d views in %.1f s; %d views published, p50 %.1f us, p99 %.1f us%n", viewsChecked.get(), seconds,
+                    publishes.getCount() - publishesBefore, publishes.percentile(0.50) / 1e3, publishes.percentile(0.99) / 1e3);
+        } catch (Exception e) {
+            System.out.println("Unexpected error: " + e.getMessage());
+        }
+
         // Final Status
         System.out.println("\nFINAL SYSTEM STATUS");
         System.out.println("-------------------");
         shelter.showAvailablePets();
     }
+
+    // Method to delete a directory created by a test case
+    private static void deleteDirectory(Path directory) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) Files.delete(file);
+        }
+        Files.delete(directory);
+    }
+
+    // Method to measure the heap a pet store uses per pet. Every pet gets its own String instances,
+    // like pets parsed from an intake file would, so nothing is shared through the string literal pool.
+    static double measureBytesPerPet(Supplier<PetStore> storeFactory, int petCount) {
+        String[] species = {"Dog", "Cat", "Rabbit"}, sizes = {"Small", "Medium", "Large"}, genders = {"Male", "Female"};
+        String[] temperaments = {"Friendly", "Shy", "Calm", "Playful"}, healthStatuses = {"Vaccinated", "Microchipped"};
+        long before = usedHeap();
+        PetStore petStore = storeFactory.get();
+        try {
+            for (int i = 0; i < petCount; i++) {
+                petStore.add(new Pet("P" + i, "Pet" + i, new String(species[i % 3]), "Breed" + (i % 200), new String(sizes[i % 3]),
+                        new String(genders[i % 2]), new String(temperaments[i % 4]), i % 15, new String(healthStatuses[i % 2])));
+            }
+        } catch (InvalidAgeException | PetNotFitForAdoptionException e) {
+            throw new IllegalStateException(e);
+        }
+        long after = usedHeap();
+        if (petStore.size() != petCount) throw new IllegalStateException("Store lost pets"); // Keeps the store reachable until now
+        return (double) (after - before) / petCount;
+    }
+
+    // Method to read the used heap after asking for a full collection
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    // Stress test: many threads adopt random pets for random adopters at the same time, then the
+    // invariants are checked (no pet adopted twice, no negative balance, nobody over the limit).
+    static boolean runConcurrentAdoptionStressTest(PetStore petStore, int petCount, int adopterCount, int threadCount) {
+        Shelter stressShelter = new Shelter("Stress Test Shelter", petStore);
+        List<Adopter> adopters = new ArrayList<>();
+        double startingBalance = 275.0; // Enough for a few small/medium pets, so both the funds and the limit checks get hit
+        EventBus quiet = new EventBus(16); // No sinks, so the per-pet/per-adoption events are skipped
+        stressShelter.setEventBus(quiet);
+        try {
+            String[] sizes = {"Small", "Medium", "Large"};
+            for (int i = 0; i < petCount; i++) {
+                stressShelter.addPet(new Pet("S" + i, "StressPet" + i, "Dog", "Mixed", sizes[i % sizes.length], "Male", "Friendly", i % 15, "Vaccinated"));
+            }
+            for (int i = 0; i < adopterCount; i++) {
+                adopters.add(new Adopter("SA" + i, "Stress Adopter " + i, "stress" + i + "@email.com", 30, true,
+                        startingBalance, "House", 1000, "No Restrictions"));
+                adopters.get(i).setEventBus(quiet);
+            }
+        } catch (Exception e) {
+            System.out.println("Unexpected error: " + e.getMessage());
+            return false;
+        }
+
+        // All threads wait on the latch so the adoption requests arrive as one burst
+        List<Pet> pets = stressShelter.findPets(new PetQuery());
+        CountDownLatch startGate = new CountDownLatch(1);
+        Map<String, LongAdder> outcomes = new ConcurrentHashMap<>();
+        ExecutorService pool = Executors.newFixedThreadPool(threadCount);
+        for (int t = 0; t < threadCount; t++) {
+            long seed = t;
+            pool.execute(() -> {
+                Random random = new Random(seed);
+                try {
+                    startGate.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                for (int i = 0; i < petCount; i++) {
+                    Adopter adopter = adopters.get(random.nextInt(adopters.size()));
+                    Pet pet = pets.get(random.nextInt(pets.size()));
+                    String outcome;
+                    try {
+                        adopter.adoptPet(pet);
+                        outcome = "Adopted";
+                    } catch (Exception e) {
+                        outcome = e.getClass().getSimpleName();
+                    }
+                    outcomes.computeIfAbsent(outcome, key -> new LongAdder()).increment();
+                }
+            });
+        }
+        startGate.countDown();
+        pool.shutdown();
+        try {
+            if (!pool.awaitTermination(1, TimeUnit.MINUTES)) {
+                pool.shutdownNow();
+                System.out.println("Adoption threads did not finish within a minute");
+                return false; // The invariants only hold once every adoption is done
+            }
+        } catch (InterruptedException e) {
+            pool.shutdownNow();
+            Thread.currentThread().interrupt();
+            return false;
+        }
+
+        // Check the invariants
+        Set<Pet> claimed = new HashSet<>();
+        boolean passed = true;
+        for (Adopter adopter : adopters) {
+            double spent = 0;
+            for (Pet pet : adopter.getAdoptedPets()) {
+                if (!claimed.add(pet)) passed = false; // The same pet in two adopters' lists
+                spent += pet.getAdoptionFee();
+            }
+            if (adopter.getAdoptedPets().size() > Adopter.MAX_ADOPTIONS) passed = false;
+            if (adopter.getBalance() < 0 || adopter.getBalance() + spent != startingBalance) passed = false;
+        }
+        long adoptedPets = pets.stream().filter(Pet::isAdopted).count();
+        if (adoptedPets != claimed.size()) passed = false; // Every adopted pet belongs to exactly one adopter
+        if (adoptedPets != outcomes.getOrDefault("Adopted", new LongAdder()).sum()) passed = false;
+        if (stressShelter.findPets(new PetQuery().available()).size() != petCount - adoptedPets) passed = false; // Index kept in sync
+
+        System.out.println(petStore.getClass().getSimpleName() + " - threads: " + threadCount + ", adoption attempts: " + (long) threadCount * petCount);
+        new TreeMap<>(outcomes).forEach((outcome, count) -> System.out.println("  " + outcome + ": " + count.sum()));
+        System.out.println("Pets adopted: " + adoptedPets + " of " + petCount);
+        System.out.println("Concurrent adoption invariants: " + (passed ? "PASSED" : "FAILED"));
+        return passed;
+    }
 }
\ No newline at end of file